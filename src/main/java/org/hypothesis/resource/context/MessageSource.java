@@ -101,4 +101,55 @@ public interface MessageSource {
 	 */
 	String getMessage(MessageSourceResolvable resolvable, Locale locale) throws NoSuchMessageException;
 
+	/**
+	 * Try to resolve the message, returning {@code null} if it can't be found.
+	 * <p>
+	 * Intended for callers probing for optional messages: in contrast to
+	 * {@link #getMessage(String, Object[], Locale)}, a missing message does not
+	 * cause a {@code NoSuchMessageException} to be created and thrown.
+	 * <p>
+	 * The default implementation delegates to
+	 * {@link #getMessage(String, Object[], String, Locale)} with a
+	 * {@code null} default message.
+	 * 
+	 * @param code
+	 *            the code to lookup up, such as 'calculator.noRateSet'
+	 * @param args
+	 *            Array of arguments that will be filled in for params within
+	 *            the message (params look like "{0}", "{1,date}", "{2,time}"
+	 *            within a message), or {@code null} if none.
+	 * @param locale
+	 *            the Locale in which to do the lookup
+	 * @return the resolved message, or {@code null} if not found
+	 * @see java.text.MessageFormat
+	 */
+	default String findMessage(String code, Object[] args, Locale locale) {
+		return getMessage(code, args, null, locale);
+	}
+
+	/**
+	 * Try to resolve the message using all the attributes contained within the
+	 * {@code MessageSourceResolvable} argument that was passed in, returning
+	 * {@code null} if it can't be found.
+	 * <p>
+	 * The default implementation delegates to
+	 * {@link #getMessage(MessageSourceResolvable, Locale)}; implementations are
+	 * encouraged to override it with a lookup that does not throw.
+	 * 
+	 * @param resolvable
+	 *            value object storing attributes required to properly resolve a
+	 *            message
+	 * @param locale
+	 *            the Locale in which to do the lookup
+	 * @return the resolved message, or {@code null} if not found
+	 * @see java.text.MessageFormat
+	 */
+	default String findMessage(MessageSourceResolvable resolvable, Locale locale) {
+		try {
+			return getMessage(resolvable, locale);
+		} catch (NoSuchMessageException ex) {
+			return null;
+		}
+	}
+
 }
@@ -38,6 +38,24 @@ public class NoSuchMessageException extends RuntimeException {
 		super("No message found under code '" + code + "' for locale '" + locale + "'.");
 	}
 
+	/**
+	 * Create a new exception, optionally without a stack trace.
+	 * <p>
+	 * Skipping the stack trace avoids the cost of {@code fillInStackTrace} for
+	 * callers that routinely expect misses.
+	 * 
+	 * @param code
+	 *            code that could not be resolved for given locale
+	 * @param locale
+	 *            locale that was used to search for the code within
+	 * @param writableStackTrace
+	 *            whether the stack trace should be filled in
+	 */
+	public NoSuchMessageException(String code, Locale locale, boolean writableStackTrace) {
+		super("No message found under code '" + code + "' for locale '" + locale + "'.", null, true,
+				writableStackTrace);
+	}
+
 	/**
 	 * Create a new exception.
 	 * 
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hypothesis.resource.context.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an interface as a typed view onto a message bundle. The
+ * {@link org.hypothesis.resource.processor.MessageBundleProcessor}, which
+ * javac picks up from this library on the class path, validates the
+ * interface against the bundle files at compile time and generates an
+ * implementation backed by a
+ * {@link org.hypothesis.resource.context.support.ReloadableResourceBundleMessageSource}.
+ *
+ * <p>
+ * Every abstract method of the interface must return {@code String} and
+ * stands for one message code, given by a {@link Message} annotation or else
+ * by the method name itself. An optional first parameter of type
+ * {@link java.util.Locale} selects the locale of the message; all other
+ * parameters are passed as message arguments, so their number has to match
+ * the argument placeholders of the message pattern.
+ *
+ * @see Message
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface MessageBundle {
+
+	/**
+	 * The basename of the bundle, following the basic ResourceBundle
+	 * convention of not specifying file extension or language codes, relative
+	 * to the root of the class path: e.g. "messages" or "com/example/messages".
+	 */
+	String value();
+
+	/**
+	 * The simple name of the generated implementation class. Default is the
+	 * name of the annotated interface with an "Impl" suffix.
+	 */
+	String className() default "";
+
+}
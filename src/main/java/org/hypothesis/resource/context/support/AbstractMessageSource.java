@@ -16,13 +16,25 @@
 
 package org.hypothesis.resource.context.support;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.Validate;
 import org.hypothesis.resource.context.HierarchicalMessageSource;
 import org.hypothesis.resource.context.MessageSource;
 import org.hypothesis.resource.context.MessageSourceResolvable;
@@ -67,12 +79,42 @@ import org.hypothesis.resource.context.NoSuchMessageException;
  */
 public abstract class AbstractMessageSource extends MessageSourceSupport implements HierarchicalMessageSource {
 
+	/** Maximum number of (code, Locale) pairs in the hot message profile */
+	private static final int HOT_MESSAGE_PROFILE_MAX_SIZE = 10000;
+
 	private MessageSource parentMessageSource;
 
 	private Properties commonMessages;
 
 	private boolean useCodeAsDefaultMessage = false;
 
+	private boolean stacklessExceptions = false;
+
+	/** Keys issued by this MessageSource, per message code */
+	private final ConcurrentMap<String, MessageKey> messageKeys = new ConcurrentHashMap<>();
+
+	private final AtomicInteger messageKeyCount = new AtomicInteger();
+
+	/** Cache of formatted messages, if enabled */
+	private volatile FormattedMessageCache formattedMessageCache;
+
+	private File hotMessageProfileFile;
+
+	private int hotMessageSampleRate = 100;
+
+	private int hotMessageProfileWriteSeconds = 60;
+
+	private ScheduledExecutorService hotMessageProfileExecutor;
+
+	/** Executor created by {@link #warmUp()} if none is set */
+	private ScheduledExecutorService defaultHotMessageProfileExecutor;
+
+	/** Periodic writing of the hot message profile, once warmed up */
+	private ScheduledFuture<?> hotMessageProfileWrites;
+
+	/** Profile of the messages used in this run, once warmed up */
+	private volatile HotMessageProfile hotMessageProfile;
+
 	@Override
 	public void setParentMessageSource(MessageSource parent) {
 		this.parentMessageSource = parent;
@@ -142,6 +184,411 @@ public abstract class AbstractMessageSource extends MessageSourceSupport impleme
 		return this.useCodeAsDefaultMessage;
 	}
 
+	/**
+	 * Set whether to throw {@link NoSuchMessageException NoSuchMessageExceptions}
+	 * without a stack trace. Default is "false".
+	 * <p>
+	 * Switch this flag to "true" for miss-heavy workloads where the exception
+	 * is an expected outcome rather than an error, so that unresolvable codes
+	 * do not pay for {@code fillInStackTrace}. Alternatively, use the
+	 * {@code findMessage} variants, which do not throw at all.
+	 * 
+	 * @see #findMessage(String, Object[], Locale)
+	 * @see #findMessage(MessageSourceResolvable, Locale)
+	 */
+	public void setStacklessExceptions(boolean stacklessExceptions) {
+		this.stacklessExceptions = stacklessExceptions;
+	}
+
+	/**
+	 * Return whether to throw {@link NoSuchMessageException
+	 * NoSuchMessageExceptions} without a stack trace.
+	 */
+	protected boolean isStacklessExceptions() {
+		return this.stacklessExceptions;
+	}
+
+	/**
+	 * Set the maximum number of formatted messages to cache per message code,
+	 * Locale and argument values. Default is 0, i.e. no caching.
+	 * <p>
+	 * Only messages with arguments that are resolved from this MessageSource's
+	 * own messages and whose arguments are all of immutable, well-known types
+	 * (Strings, boxed primitives, BigIntegers, BigDecimals and enums) get
+	 * cached. This pays off for messages that get formatted with the same
+	 * arguments over and over, e.g. with status names or small counts. The
+	 * message code still gets resolved for cached messages, so that refresh
+	 * checks of subclasses keep taking place; just the formatting is skipped.
+	 * Subclasses are responsible for invalidating the cache through
+	 * {@link #clearFormattedMessageCache()} whenever their messages change.
+	 * 
+	 * @see #getFormattedMessageCacheHitCount()
+	 * @see #getFormattedMessageCacheMissCount()
+	 */
+	public void setFormattedMessageCacheSize(int formattedMessageCacheSize) {
+		this.formattedMessageCache = formattedMessageCacheSize > 0
+				? new FormattedMessageCache(formattedMessageCacheSize) : null;
+	}
+
+	/**
+	 * Return the number of formatted messages currently cached.
+	 * 
+	 * @see #setFormattedMessageCacheSize
+	 */
+	public int getFormattedMessageCacheSize() {
+		FormattedMessageCache cache = this.formattedMessageCache;
+		return cache != null ? cache.size() : 0;
+	}
+
+	/**
+	 * Return the number of lookups served from the formatted message cache.
+	 * 
+	 * @see #setFormattedMessageCacheSize
+	 */
+	public long getFormattedMessageCacheHitCount() {
+		FormattedMessageCache cache = this.formattedMessageCache;
+		return cache != null ? cache.getHitCount() : 0;
+	}
+
+	/**
+	 * Return the number of cacheable lookups not served from the formatted
+	 * message cache.
+	 * 
+	 * @see #setFormattedMessageCacheSize
+	 */
+	public long getFormattedMessageCacheMissCount() {
+		FormattedMessageCache cache = this.formattedMessageCache;
+		return cache != null ? cache.getMissCount() : 0;
+	}
+
+	/**
+	 * Return the number of formatted messages evicted from the cache because
+	 * of its size limit or to keep within a memory budget.
+	 * 
+	 * @see #setFormattedMessageCacheSize
+	 */
+	public long getFormattedMessageCacheEvictionCount() {
+		FormattedMessageCache cache = this.formattedMessageCache;
+		return cache != null ? cache.getEvictionCount() : 0;
+	}
+
+	/**
+	 * Clear the cache of formatted messages, if enabled. To be invoked by
+	 * subclasses whenever their messages change.
+	 * 
+	 * @see #setFormattedMessageCacheSize
+	 */
+	protected void clearFormattedMessageCache() {
+		FormattedMessageCache cache = this.formattedMessageCache;
+		if (cache != null) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Remove the formatted messages cached for the given Locales, if
+	 * enabled.
+	 */
+	void removeFormattedMessages(Set<Locale> locales) {
+		FormattedMessageCache cache = this.formattedMessageCache;
+		if (cache != null) {
+			cache.removeLocales(locales);
+		}
+	}
+
+	/**
+	 * Return the estimated heap weight of the cached formatted messages, in
+	 * bytes.
+	 * 
+	 * @see #setFormattedMessageCacheSize
+	 */
+	protected long getFormattedMessageCacheWeight() {
+		FormattedMessageCache cache = this.formattedMessageCache;
+		return cache != null ? cache.weigh() : 0;
+	}
+
+	/**
+	 * Add a candidate for each cached formatted message to the given list,
+	 * for evicting them one by one to get back within a memory budget.
+	 */
+	void addFormattedMessageEvictionCandidates(List<MemoryWeigher.Candidate> candidates) {
+		FormattedMessageCache cache = this.formattedMessageCache;
+		if (cache != null) {
+			cache.addEvictionCandidates(candidates);
+		}
+	}
+
+	/**
+	 * Set the file to keep a profile of the messages actually used in, for
+	 * precompiling exactly those messages on the next start, rather than all
+	 * messages or none.
+	 * <p>
+	 * Default is none. With a profile file, {@link #warmUp()} precompiles the
+	 * messages recorded by the previous run in the background and starts
+	 * recording a sample of the codes and Locales looked up in this run,
+	 * periodically writing the most frequent ones to the file, along with
+	 * those of previous runs that are still among them.
+	 * 
+	 * @see #setHotMessageSampleRate
+	 * @see #setHotMessageProfileWriteSeconds
+	 */
+	public void setHotMessageProfile(File hotMessageProfile) {
+		this.hotMessageProfileFile = hotMessageProfile;
+	}
+
+	/**
+	 * Set the number of lookups to record one of, on average, in the hot
+	 * message profile. Default is 100; 1 records every lookup.
+	 * 
+	 * @see #setHotMessageProfile
+	 */
+	public void setHotMessageSampleRate(int hotMessageSampleRate) {
+		this.hotMessageSampleRate = hotMessageSampleRate;
+	}
+
+	/**
+	 * Set the interval for writing the hot message profile to its file, in
+	 * seconds. Default is 60.
+	 * 
+	 * @see #setHotMessageProfile
+	 * @see #writeHotMessageProfile()
+	 */
+	public void setHotMessageProfileWriteSeconds(int hotMessageProfileWriteSeconds) {
+		this.hotMessageProfileWriteSeconds = hotMessageProfileWriteSeconds;
+	}
+
+	/**
+	 * Set the executor to precompile the messages of the hot message profile
+	 * on and to write the profile with. Default is a single daemon thread
+	 * created by {@link #warmUp()} and shut down by {@link #destroy()}.
+	 * 
+	 * @see #setHotMessageProfile
+	 */
+	public void setHotMessageProfileExecutor(ScheduledExecutorService hotMessageProfileExecutor) {
+		this.hotMessageProfileExecutor = hotMessageProfileExecutor;
+	}
+
+	/**
+	 * Precompile the messages recorded in the hot message profile by the
+	 * previous run, in the background, and start recording the messages used
+	 * in this run. To be invoked once, after this MessageSource has been
+	 * configured and before traffic arrives, e.g. from an init method. Does
+	 * nothing without a hot message profile.
+	 * 
+	 * @see #setHotMessageProfile
+	 * @see #warmUpMessage
+	 * @see #destroy()
+	 */
+	public synchronized void warmUp() {
+		if (this.hotMessageProfileFile == null || this.hotMessageProfile != null) {
+			return;
+		}
+		HotMessageProfile profile = new HotMessageProfile(this.hotMessageProfileFile, HOT_MESSAGE_PROFILE_MAX_SIZE);
+		ScheduledExecutorService executor = this.hotMessageProfileExecutor;
+		if (executor == null) {
+			executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "hot-message-profile");
+				thread.setDaemon(true);
+				return thread;
+			});
+			this.defaultHotMessageProfileExecutor = executor;
+		}
+		executor.execute(() -> warmUp(profile));
+		this.hotMessageProfileWrites = executor.scheduleWithFixedDelay(this::writeHotMessageProfile,
+				this.hotMessageProfileWriteSeconds, this.hotMessageProfileWriteSeconds, TimeUnit.SECONDS);
+		this.hotMessageProfile = profile;
+	}
+
+	/**
+	 * Stop recording the hot message profile, writing it a last time, and
+	 * shut down the executor created for it by {@link #warmUp()}, if any. To
+	 * be invoked once this MessageSource is no longer used, e.g. from a
+	 * destroy method. Does nothing if not warmed up.
+	 * 
+	 * @see #setHotMessageProfileExecutor
+	 */
+	public synchronized void destroy() {
+		if (this.hotMessageProfileWrites != null) {
+			this.hotMessageProfileWrites.cancel(false);
+			this.hotMessageProfileWrites = null;
+		}
+		if (this.defaultHotMessageProfileExecutor != null) {
+			this.defaultHotMessageProfileExecutor.shutdown();
+			this.defaultHotMessageProfileExecutor = null;
+		}
+		writeHotMessageProfile();
+		this.hotMessageProfile = null;
+	}
+
+	private void warmUp(HotMessageProfile profile) {
+		List<HotMessageProfile.HotMessage> messages;
+		try {
+			messages = profile.read();
+		} catch (IOException ex) {
+			if (logger.isWarnEnabled()) {
+				logger.warn("Could not read hot message profile [" + profile.getFile() + "]", ex);
+			}
+			return;
+		}
+		for (HotMessageProfile.HotMessage message : messages) {
+			try {
+				warmUpMessage(message.getCode(), message.getLocale(), message.isFormatted());
+			} catch (RuntimeException ex) {
+				if (logger.isDebugEnabled()) {
+					logger.debug("Could not precompile message '" + message.getCode() + "' for locale '"
+							+ message.getLocale() + "'", ex);
+				}
+			}
+		}
+		if (logger.isDebugEnabled()) {
+			logger.debug("Precompiled " + messages.size() + " messages from hot message profile ["
+					+ profile.getFile() + "]");
+		}
+	}
+
+	/**
+	 * Precompile the message for the given code and Locale, as recorded in
+	 * the hot message profile.
+	 * <p>
+	 * The default implementation resolves messages formatted with arguments
+	 * through {@link #resolveCode}, so that caching subclasses compile and
+	 * keep the message's MessageFormat, and all others through
+	 * {@link #resolveCodeWithoutArguments}, which compiles nothing.
+	 * 
+	 * @param code
+	 *            the code of the message to precompile
+	 * @param locale
+	 *            the Locale to precompile the message for
+	 * @param formatted
+	 *            whether the message has been formatted with arguments
+	 * @see #warmUp()
+	 */
+	protected void warmUpMessage(String code, Locale locale, boolean formatted) {
+		if (formatted) {
+			resolveCode(code, locale);
+			resolveTemplate(code, locale);
+		} else {
+			resolveCodeWithoutArguments(code, locale);
+		}
+	}
+
+	/**
+	 * Write the hot message profile to its file right away, e.g. on shutdown,
+	 * if recording and anything has been recorded since the last write.
+	 * 
+	 * @see #setHotMessageProfile
+	 */
+	public void writeHotMessageProfile() {
+		HotMessageProfile profile = this.hotMessageProfile;
+		if (profile != null) {
+			try {
+				profile.write();
+			} catch (IOException ex) {
+				if (logger.isWarnEnabled()) {
+					logger.warn("Could not write hot message profile [" + profile.getFile() + "]", ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Record a lookup of the given code in the given Locale in the hot message
+	 * profile, if recording and sampled, under the Locale that the lookup maps
+	 * to, so that arbitrary requested Locales do not flood the profile.
+	 * 
+	 * @param formatted
+	 *            whether the message gets formatted with arguments, i.e.
+	 *            through its MessageFormat
+	 */
+	void recordHotMessage(String code, Locale locale, boolean formatted) {
+		HotMessageProfile profile = this.hotMessageProfile;
+		if (profile != null) {
+			int sampleRate = this.hotMessageSampleRate;
+			if (sampleRate <= 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0) {
+				profile.record(code, canonicalizeLocale(locale), formatted);
+			}
+		}
+	}
+
+	/**
+	 * Return the {@link MessageKey} handle for the given message code, issuing
+	 * a new one with the next free slot index if none exists yet.
+	 * <p>
+	 * Keys are meant to be obtained once for constant codes and kept around,
+	 * e.g. in static or instance fields; repeated calls for the same code
+	 * return the same key.
+	 * 
+	 * @param code
+	 *            the message code, such as 'calculator.noRateSet'
+	 * @return the key for the given code
+	 * @see #getMessage(MessageKey, Object[], Locale)
+	 */
+	public MessageKey key(String code) {
+		Validate.notNull(code, "Code must not be null");
+		MessageKey key = this.messageKeys.get(code);
+		if (key == null) {
+			key = this.messageKeys.computeIfAbsent(code,
+					c -> new MessageKey(c, this.messageKeyCount.getAndIncrement(), this));
+		}
+		return key;
+	}
+
+	/**
+	 * Return the number of {@link MessageKey MessageKeys} issued so far, i.e.
+	 * the exclusive upper bound of their slot indices.
+	 */
+	protected int getMessageKeyCount() {
+		return this.messageKeyCount.get();
+	}
+
+	/**
+	 * Variant of {@link #getMessage(String, Object[], String, Locale)} for a
+	 * {@link MessageKey}.
+	 * 
+	 * @see #key(String)
+	 */
+	public final String getMessage(MessageKey key, Object[] args, String defaultMessage, Locale locale) {
+		String msg = getMessageInternal(key, args, locale);
+		if (msg != null) {
+			return msg;
+		}
+		if (defaultMessage == null) {
+			String fallback = getDefaultMessage(key.getCode());
+			if (fallback != null) {
+				return fallback;
+			}
+		}
+		return renderDefaultMessage(defaultMessage, args, locale);
+	}
+
+	/**
+	 * Variant of {@link #getMessage(String, Object[], Locale)} for a
+	 * {@link MessageKey}.
+	 * 
+	 * @see #key(String)
+	 */
+	public final String getMessage(MessageKey key, Object[] args, Locale locale) throws NoSuchMessageException {
+		String msg = findMessage(key, args, locale);
+		if (msg != null) {
+			return msg;
+		}
+		throw createNoSuchMessageException(key.getCode(), locale);
+	}
+
+	/**
+	 * Variant of {@link #findMessage(String, Object[], Locale)} for a
+	 * {@link MessageKey}.
+	 * 
+	 * @see #key(String)
+	 */
+	public final String findMessage(MessageKey key, Object[] args, Locale locale) {
+		String msg = getMessageInternal(key, args, locale);
+		if (msg != null) {
+			return msg;
+		}
+		return getDefaultMessage(key.getCode());
+	}
+
 	@Override
 	public final String getMessage(String code, Object[] args, String defaultMessage, Locale locale) {
 		String msg = getMessageInternal(code, args, locale);
@@ -167,12 +614,30 @@ public abstract class AbstractMessageSource extends MessageSourceSupport impleme
 		if (fallback != null) {
 			return fallback;
 		}
-		throw new NoSuchMessageException(code, locale);
+		throw createNoSuchMessageException(code, locale);
 	}
 
 	@Override
 	public final String getMessage(MessageSourceResolvable resolvable, Locale locale) throws NoSuchMessageException {
+		String msg = findMessage(resolvable, locale);
+		if (msg != null) {
+			return msg;
+		}
+		String[] codes = resolvable.getCodes();
+		throw createNoSuchMessageException(!ArrayUtils.isEmpty(codes) ? codes[codes.length - 1] : null, locale);
+	}
+
+	@Override
+	public final String findMessage(String code, Object[] args, Locale locale) {
+		String msg = getMessageInternal(code, args, locale);
+		if (msg != null) {
+			return msg;
+		}
+		return getDefaultMessage(code);
+	}
 
+	@Override
+	public final String findMessage(MessageSourceResolvable resolvable, Locale locale) {
 		String[] codes = resolvable.getCodes();
 		if (codes == null) {
 			codes = new String[0];
@@ -188,12 +653,70 @@ public abstract class AbstractMessageSource extends MessageSourceSupport impleme
 			return renderDefaultMessage(defaultMessage, resolvable.getArguments(), locale);
 		}
 		if (codes.length > 0) {
-			String fallback = getDefaultMessage(codes[0]);
-			if (fallback != null) {
-				return fallback;
-			}
+			return getDefaultMessage(codes[0]);
 		}
-		throw new NoSuchMessageException(codes.length > 0 ? codes[codes.length - 1] : null, locale);
+		return null;
+	}
+
+	/**
+	 * Try to resolve the message with the given unboxed arguments. Treat as an
+	 * error if the message can't be found.
+	 * <p>
+	 * Messages consisting of plain "{n}" and
+	 * "{n,number[,integer|percent|currency]}" placeholders are formatted
+	 * without MessageFormat, through number formats cached per Locale, and
+	 * without boxing the arguments. A {@link MessageArguments} instance may be
+	 * reused for subsequent calls through {@link MessageArguments#clear()},
+	 * e.g. one per thread, so that such lookups allocate nothing but the
+	 * resulting String. All other messages, as well as messages not found in
+	 * this MessageSource itself, are resolved through
+	 * {@link #getMessage(String, Object[], Locale)} with boxed arguments. A
+	 * {@code null} or empty MessageArguments instance resolves the message
+	 * exactly like {@code getMessage(code, null, locale)}.
+	 * <p>
+	 * Not named {@code getMessage}, as that would make the common
+	 * {@code getMessage(code, null, locale)} call ambiguous.
+	 * 
+	 * @param code
+	 *            the code to lookup up, such as 'calculator.noRateSet'
+	 * @param args
+	 *            the arguments to fill in for params within the message, or
+	 *            {@code null} if none
+	 * @param locale
+	 *            the Locale in which to do the lookup
+	 * @return the resolved message
+	 * @throws NoSuchMessageException
+	 *             if the message wasn't found
+	 */
+	public final String getUnboxedMessage(String code, MessageArguments args, Locale locale)
+			throws NoSuchMessageException {
+		String msg = getMessageInternal(code, args, locale);
+		if (msg != null) {
+			return msg;
+		}
+		String fallback = getDefaultMessage(code);
+		if (fallback != null) {
+			return fallback;
+		}
+		throw createNoSuchMessageException(code, locale);
+	}
+
+	/**
+	 * Create the exception to throw for a message that could not be resolved.
+	 * <p>
+	 * The default implementation creates a {@link NoSuchMessageException}
+	 * with or without a stack trace, according to the "stacklessExceptions"
+	 * flag.
+	 * 
+	 * @param code
+	 *            the code that could not be resolved
+	 * @param locale
+	 *            the Locale used for the lookup
+	 * @return the exception to throw
+	 * @see #setStacklessExceptions
+	 */
+	protected NoSuchMessageException createNoSuchMessageException(String code, Locale locale) {
+		return new NoSuchMessageException(code, locale, !isStacklessExceptions());
 	}
 
 	/**
@@ -221,6 +744,7 @@ public abstract class AbstractMessageSource extends MessageSourceSupport impleme
 		if (locale == null) {
 			locale = Locale.getDefault();
 		}
+		recordHotMessage(code, locale, isAlwaysUseMessageFormat() || !ArrayUtils.isEmpty(args));
 		Object[] argsToUse = args;
 
 		if (!isAlwaysUseMessageFormat() && ArrayUtils.isEmpty(args)) {
@@ -235,19 +759,133 @@ public abstract class AbstractMessageSource extends MessageSourceSupport impleme
 		}
 
 		else {
+			FormattedMessageCache cache = this.formattedMessageCache;
+			long cacheGeneration = (cache != null ? cache.getGeneration() : 0);
+
 			// Resolve arguments eagerly, for the case where the message
 			// is defined in a parent MessageSource but resolvable arguments
 			// are defined in the child MessageSource.
 			argsToUse = resolveArguments(args, locale);
 
+			// Resolve the code even for cached messages, as subclasses check
+			// for changed messages there and clear the cache if so.
 			MessageFormat messageFormat = resolveCode(code, locale);
 			if (messageFormat != null) {
+				FormattedMessageCache.Key cacheKey = null;
+				if (cache != null && args != null) {
+					cacheKey = FormattedMessageCache.createKey(code, canonicalizeLocale(locale), args);
+					if (cacheKey != null) {
+						String cached = cache.get(cacheKey, getLookupTime());
+						if (cached != null) {
+							return cached;
+						}
+					}
+				}
+				String message;
 				synchronized (messageFormat) {
-					return messageFormat.format(argsToUse);
+					message = messageFormat.format(argsToUse);
+				}
+				if (cacheKey != null) {
+					cache.put(cacheKey, message, cacheGeneration, getLookupTime());
 				}
+				return message;
 			}
 		}
 
+		return getCommonOrParentMessage(code, argsToUse, locale);
+	}
+
+	/**
+	 * Resolve the given code and unboxed arguments as message in the given
+	 * Locale, returning {@code null} if not found.
+	 * <p>
+	 * Formats the arguments through the {@link MessageTemplate} provided by
+	 * {@link #resolveTemplate} if any, else through
+	 * {@link #getMessageInternal(String, Object[], Locale)} with boxed
+	 * arguments. Without arguments, the message is resolved through the
+	 * latter as well, so that it is returned as is unless "alwaysUseMessageFormat"
+	 * is set.
+	 */
+	String getMessageInternal(String code, MessageArguments args, Locale locale) {
+		if (code == null) {
+			return null;
+		}
+		if (args == null || args.size() == 0) {
+			return getMessageInternal(code, (Object[]) null, locale);
+		}
+		if (locale == null) {
+			locale = Locale.getDefault();
+		}
+		MessageTemplate template = resolveTemplate(code, locale);
+		if (template != null) {
+			recordHotMessage(code, locale, true);
+			return template.format(args);
+		}
+		return getMessageInternal(code, args.toArray(), locale);
+	}
+
+	/**
+	 * Resolve the given message code into a {@link MessageTemplate} for
+	 * formatting unboxed arguments, if this MessageSource defines the code and
+	 * its message can be compiled into a template.
+	 * <p>
+	 * The default implementation returns {@code null}, leading to formatting
+	 * through MessageFormat.
+	 * 
+	 * @param code
+	 *            the code of the message to resolve
+	 * @param locale
+	 *            the Locale to resolve the code for
+	 * @return the template for the message, or {@code null} if not found or
+	 *         not applicable
+	 */
+	MessageTemplate resolveTemplate(String code, Locale locale) {
+		return null;
+	}
+
+	/**
+	 * Resolve the given {@link MessageKey} and arguments as message in the
+	 * given Locale, returning {@code null} if not found.
+	 * <p>
+	 * The default implementation simply resolves the key's code through
+	 * {@link #getMessageInternal(String, Object[], Locale)}. Subclasses may
+	 * override this to resolve keys issued by themselves through their slot
+	 * index.
+	 * 
+	 * @param key
+	 *            the key to look up
+	 * @param args
+	 *            array of arguments that will be filled in for params within
+	 *            the message
+	 * @param locale
+	 *            the Locale in which to do the lookup
+	 * @return the resolved message, or {@code null} if not found
+	 * @see MessageKey#getSlot()
+	 */
+	protected String getMessageInternal(MessageKey key, Object[] args, Locale locale) {
+		if (key == null) {
+			return null;
+		}
+		return getMessageInternal(key.getCode(), args, locale);
+	}
+
+	/**
+	 * Resolve the given code from the locale-independent common messages or,
+	 * failing that, from the parent MessageSource. Invoked once this
+	 * MessageSource's own messages did not contain the code.
+	 * 
+	 * @param code
+	 *            the code to lookup up, such as 'calculator.noRateSet'
+	 * @param args
+	 *            array of already resolved arguments that will be filled in
+	 *            for params within the message
+	 * @param locale
+	 *            the Locale in which to do the lookup
+	 * @return the resolved message, or {@code null} if not found
+	 * @see #setCommonMessages
+	 * @see #getMessageFromParent
+	 */
+	protected String getCommonOrParentMessage(String code, Object[] args, Locale locale) {
 		// Check locale-independent common messages for the given message code.
 		Properties commonMessages = getCommonMessages();
 		if (commonMessages != null) {
@@ -258,7 +896,7 @@ public abstract class AbstractMessageSource extends MessageSourceSupport impleme
 		}
 
 		// Not found -> check parent, if any.
-		return getMessageFromParent(code, argsToUse, locale);
+		return getMessageFromParent(code, args, locale);
 	}
 
 	/**
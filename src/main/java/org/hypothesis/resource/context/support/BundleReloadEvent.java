@@ -0,0 +1,101 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hypothesis.resource.context.support;
+
+import java.util.EventObject;
+import java.util.Set;
+
+/**
+ * Event published by a {@link ReloadableResourceBundleMessageSource} when a
+ * previously loaded or checked bundle file has been reloaded with different
+ * messages, naming the message codes that were added, changed or removed.
+ *
+ * @see BundleReloadListener
+ * @see ReloadableResourceBundleMessageSource#addReloadListener
+ */
+public class BundleReloadEvent extends EventObject {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String filename;
+
+	private final Set<String> addedCodes;
+
+	private final Set<String> changedCodes;
+
+	private final Set<String> removedCodes;
+
+	/**
+	 * Create a new BundleReloadEvent.
+	 * 
+	 * @param source
+	 *            the message source that reloaded the bundle file
+	 * @param filename
+	 *            the bundle filename (basename + Locale)
+	 * @param addedCodes
+	 *            the codes of messages not defined before
+	 * @param changedCodes
+	 *            the codes of messages with a different text now
+	 * @param removedCodes
+	 *            the codes of messages no longer defined
+	 */
+	public BundleReloadEvent(Object source, String filename, Set<String> addedCodes, Set<String> changedCodes,
+			Set<String> removedCodes) {
+		super(source);
+		this.filename = filename;
+		this.addedCodes = addedCodes;
+		this.changedCodes = changedCodes;
+		this.removedCodes = removedCodes;
+	}
+
+	/**
+	 * Return the reloaded bundle filename (basename + Locale), e.g.
+	 * "WEB-INF/messages_de".
+	 */
+	public String getFilename() {
+		return this.filename;
+	}
+
+	/**
+	 * Return the codes of messages that the bundle file did not define
+	 * before.
+	 */
+	public Set<String> getAddedCodes() {
+		return this.addedCodes;
+	}
+
+	/**
+	 * Return the codes of messages whose text has changed.
+	 */
+	public Set<String> getChangedCodes() {
+		return this.changedCodes;
+	}
+
+	/**
+	 * Return the codes of messages that the bundle file no longer defines.
+	 */
+	public Set<String> getRemovedCodes() {
+		return this.removedCodes;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + " [" + this.filename + "]: added=" + this.addedCodes + ", changed="
+				+ this.changedCodes + ", removed=" + this.removedCodes;
+	}
+
+}
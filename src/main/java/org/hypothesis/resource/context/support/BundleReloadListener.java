@@ -0,0 +1,46 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hypothesis.resource.context.support;
+
+import java.util.EventListener;
+
+/**
+ * Callback interface for components that derive state from the messages of
+ * a {@link ReloadableResourceBundleMessageSource}, e.g. rendered fragments
+ * or exported message catalogs, to invalidate just the messages that changed
+ * on a reload.
+ *
+ * <p>
+ * Listeners are invoked synchronously by the thread that reloaded the
+ * bundle file, after the reloaded messages have become visible to lookups.
+ * They should return quickly.
+ *
+ * @see ReloadableResourceBundleMessageSource#addReloadListener
+ */
+@FunctionalInterface
+public interface BundleReloadListener extends EventListener {
+
+	/**
+	 * Handle the reload of a bundle file.
+	 * 
+	 * @param event
+	 *            the event naming the reloaded bundle file and the changed
+	 *            message codes
+	 */
+	void bundleReloaded(BundleReloadEvent event);
+
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hypothesis.resource.context.support;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded cache of fully formatted messages per message code, Locale and
+ * argument values, used by {@link AbstractMessageSource} to avoid repeated
+ * MessageFormat runs for recurring argument combinations.
+ *
+ * <p>
+ * Only argument values of immutable, well-known types are eligible: Strings,
+ * boxed primitives, BigIntegers, BigDecimals, enums and {@code null}. Once
+ * the maximum size is exceeded, the least recently used quarter of the
+ * entries gets evicted, recency being measured in stored messages. Results
+ * computed concurrently with a {@link #clear()} are not kept, so that no
+ * stale message survives an invalidation. The estimated
+ * weight of the cached messages is kept up to date as entries come and go.
+ */
+final class FormattedMessageCache {
+
+	private final int maxSize;
+
+	private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<>();
+
+	private final AtomicLong generation = new AtomicLong();
+
+	/** Number of messages stored so far, as clock for the size limit */
+	private final AtomicLong useClock = new AtomicLong();
+
+	private final ReentrantLock evictionLock = new ReentrantLock();
+
+	private final LongAdder weight = new LongAdder();
+
+	private final LongAdder hitCount = new LongAdder();
+
+	private final LongAdder missCount = new LongAdder();
+
+	private final LongAdder evictionCount = new LongAdder();
+
+	FormattedMessageCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Create a cache key for the given message code, Locale and arguments.
+	 *
+	 * @return the key, or {@code null} if any of the arguments is not of an
+	 *         immutable, well-known type
+	 */
+	static Key createKey(String code, Locale locale, Object[] args) {
+		for (Object arg : args) {
+			if (!isCacheable(arg)) {
+				return null;
+			}
+		}
+		return new Key(code, locale, args.clone());
+	}
+
+	private static boolean isCacheable(Object arg) {
+		return arg == null || arg instanceof String || arg instanceof Integer || arg instanceof Long
+				|| arg instanceof Boolean || arg instanceof Character || arg instanceof Double || arg instanceof Float
+				|| arg instanceof Short || arg instanceof Byte || arg instanceof BigInteger
+				|| arg instanceof BigDecimal || arg instanceof Enum;
+	}
+
+	/**
+	 * Return the current generation of this cache, to be passed to
+	 * {@link #put} for a result computed afterwards.
+	 */
+	long getGeneration() {
+		return this.generation.get();
+	}
+
+	/**
+	 * Return the cached message for the given key, if any, marking it as
+	 * accessed at the given time.
+	 */
+	String get(Key key, long now) {
+		Entry entry = this.entries.get(key);
+		if (entry == null) {
+			this.missCount.increment();
+			return null;
+		}
+		this.hitCount.increment();
+		if (entry.lastAccess != now) {
+			entry.lastAccess = now;
+		}
+		long use = this.useClock.get();
+		if (entry.lastUse != use) {
+			entry.lastUse = use;
+		}
+		return entry.message;
+	}
+
+	/**
+	 * Store the given formatted message, accessed at the given time, unless
+	 * the cache has been cleared since the given generation.
+	 */
+	void put(Key key, String message, long generation, long now) {
+		if (this.generation.get() != generation) {
+			return;
+		}
+		Entry entry = new Entry(message, MemoryWeigher.ENTRY + key.weigh() + MemoryWeigher.weigh(message), now,
+				this.useClock.incrementAndGet());
+		Entry previous = this.entries.put(key, entry);
+		this.weight.add(previous != null ? entry.weight - previous.weight : entry.weight);
+		if (this.generation.get() != generation) {
+			// Cleared in the meantime, possibly before the entry got stored.
+			remove(key, entry);
+			return;
+		}
+		if (this.entries.size() > this.maxSize) {
+			evict();
+		}
+	}
+
+	/**
+	 * Evict the least recently used entries down to three quarters of the
+	 * maximum size. Skipped while another thread is evicting.
+	 */
+	private void evict() {
+		if (!this.evictionLock.tryLock()) {
+			return;
+		}
+		try {
+			int toEvict = this.entries.size() - this.maxSize + this.maxSize / 4;
+			if (toEvict <= 0) {
+				return;
+			}
+			List<Map.Entry<Key, Entry>> lru = new ArrayList<>(this.entries.entrySet());
+			lru.sort(Comparator.comparingLong(entry -> entry.getValue().lastUse));
+			for (int i = 0; i < lru.size() && toEvict > 0; i++) {
+				if (remove(lru.get(i).getKey(), lru.get(i).getValue()) > 0) {
+					this.evictionCount.increment();
+					toEvict--;
+				}
+			}
+		} finally {
+			this.evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Remove the entry for the given key, if it still holds the given entry
+	 * or, with {@code null}, any entry.
+	 * 
+	 * @return the weight of the removed entry, or 0 if none
+	 */
+	private long remove(Key key, Entry entry) {
+		Entry removed = this.entries.get(key);
+		if (removed == null || (entry != null && removed != entry) || !this.entries.remove(key, removed)) {
+			return 0;
+		}
+		this.weight.add(-removed.weight);
+		return removed.weight;
+	}
+
+	void clear() {
+		this.generation.incrementAndGet();
+		for (Key key : this.entries.keySet()) {
+			remove(key, null);
+		}
+	}
+
+	/**
+	 * Remove the messages cached for the given Locales, e.g. when evicting
+	 * the bundles they were formatted from.
+	 */
+	void removeLocales(Set<Locale> locales) {
+		for (Map.Entry<Key, Entry> entry : this.entries.entrySet()) {
+			if (locales.contains(entry.getKey().locale)) {
+				remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Return the estimated heap weight of the cached messages, in bytes.
+	 */
+	long weigh() {
+		return this.weight.sum();
+	}
+
+	/**
+	 * Add a candidate for each cached message to the given list, for
+	 * evicting them one by one to get back within a memory budget.
+	 */
+	void addEvictionCandidates(List<MemoryWeigher.Candidate> candidates) {
+		for (Map.Entry<Key, Entry> entry : this.entries.entrySet()) {
+			Key key = entry.getKey();
+			Entry cached = entry.getValue();
+			candidates.add(new MemoryWeigher.Candidate(cached.lastAccess, cached.weight, () -> {
+				long freed = remove(key, cached);
+				if (freed > 0) {
+					this.evictionCount.increment();
+				}
+				return freed;
+			}));
+		}
+	}
+
+	long getHitCount() {
+		return this.hitCount.sum();
+	}
+
+	long getMissCount() {
+		return this.missCount.sum();
+	}
+
+	long getEvictionCount() {
+		return this.evictionCount.sum();
+	}
+
+	/**
+	 * Cached formatted message with its weight, the time of its last access
+	 * and the number of messages stored up to then.
+	 */
+	private static final class Entry {
+
+		private final String message;
+
+		private final long weight;
+
+		private volatile long lastAccess;
+
+		private volatile long lastUse;
+
+		Entry(String message, long weight, long lastAccess, long lastUse) {
+			this.message = message;
+			this.weight = weight;
+			this.lastAccess = lastAccess;
+			this.lastUse = lastUse;
+		}
+	}
+
+	/**
+	 * Key of a formatted message, with a precomputed hash code.
+	 */
+	static final class Key {
+
+		private final String code;
+
+		private final Locale locale;
+
+		private final Object[] args;
+
+		private final int hash;
+
+		Key(String code, Locale locale, Object[] args) {
+			this.code = code;
+			this.locale = locale;
+			this.args = args;
+			this.hash = (code.hashCode() * 31 + locale.hashCode()) * 31 + Arrays.hashCode(args);
+		}
+
+		long weigh() {
+			// Key and argument array; code and Locale are shared with callers.
+			long weight = 3 * MemoryWeigher.OBJECT + 4L * this.args.length;
+			for (Object arg : this.args) {
+				weight += MemoryWeigher.weigh(arg);
+			}
+			return weight;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (this == other) {
+				return true;
+			}
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key otherKey = (Key) other;
+			return this.hash == otherKey.hash && this.code.equals(otherKey.code)
+					&& this.locale.equals(otherKey.locale) && Arrays.equals(this.args, otherKey.args);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+	}
+
+}
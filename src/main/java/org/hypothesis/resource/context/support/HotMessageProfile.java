@@ -0,0 +1,274 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hypothesis.resource.context.support;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Frequency sample of the (code, Locale) pairs looked up by a message
+ * source, persisted in a local file so that the next run can precompile
+ * exactly the messages that are actually used.
+ *
+ * <p>
+ * Up to twice the maximum size of pairs are counted; once that many are
+ * tracked, all counts get halved and pairs counted only once are dropped to
+ * make room for new ones. The file holds the most frequent pairs up to the
+ * maximum size, including those of previous runs read through
+ * {@link #read()}, which start out with half their previous count. It holds
+ * one pair per line: the Locale's language tag, the code and the count,
+ * separated by tabs, followed by another tab and "{@value #FORMATTED}" if the
+ * message has been formatted with arguments. Codes containing tabs or line
+ * breaks are not recorded.
+ *
+ * @see AbstractMessageSource#setHotMessageProfile
+ */
+final class HotMessageProfile {
+
+	/** Marker of the pairs whose message has been formatted with arguments */
+	static final String FORMATTED = "formatted";
+
+	private final File file;
+
+	private final int maxSize;
+
+	/** Recorded pairs as "languageTag\tcode", with their counts */
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+	private final ReentrantLock decayLock = new ReentrantLock();
+
+	private volatile boolean modified;
+
+	HotMessageProfile(File file, int maxSize) {
+		this.file = file;
+		this.maxSize = maxSize;
+	}
+
+	File getFile() {
+		return this.file;
+	}
+
+	/**
+	 * Record a lookup of the given code in the given Locale.
+	 * 
+	 * @param formatted
+	 *            whether the message gets formatted with arguments
+	 */
+	void record(String code, Locale locale, boolean formatted) {
+		if (isRecordable(code)) {
+			record(locale.toLanguageTag() + '\t' + code, 1, formatted);
+		}
+	}
+
+	private void record(String key, long count, boolean formatted) {
+		Entry entry = this.entries.get(key);
+		if (entry == null) {
+			if (this.entries.size() >= 2 * this.maxSize && !decay()) {
+				return;
+			}
+			entry = new Entry();
+			Entry existing = this.entries.putIfAbsent(key, entry);
+			if (existing != null) {
+				entry = existing;
+			}
+		}
+		entry.count.addAndGet(count);
+		if (formatted && !entry.formatted) {
+			entry.formatted = true;
+		}
+		this.modified = true;
+	}
+
+	/**
+	 * Halve all counts, dropping the pairs that reach zero.
+	 * 
+	 * @return whether there is room for new pairs now
+	 */
+	private boolean decay() {
+		if (this.decayLock.tryLock()) {
+			try {
+				if (this.entries.size() >= 2 * this.maxSize) {
+					for (Map.Entry<String, Entry> entry : this.entries.entrySet()) {
+						if (entry.getValue().count.updateAndGet(count -> count / 2) == 0) {
+							this.entries.remove(entry.getKey(), entry.getValue());
+						}
+					}
+				}
+			} finally {
+				this.decayLock.unlock();
+			}
+		}
+		return this.entries.size() < 2 * this.maxSize;
+	}
+
+	private static boolean isRecordable(String code) {
+		for (int i = 0; i < code.length(); i++) {
+			char ch = code.charAt(i);
+			if (ch == '\t' || ch == '\n' || ch == '\r') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Write the most frequent pairs to the file, if any have been recorded
+	 * since the last write. The file gets replaced atomically where
+	 * supported, so that a crash never leaves a truncated profile behind.
+	 * 
+	 * @throws IOException
+	 *             if the file could not be written
+	 */
+	void write() throws IOException {
+		if (!this.modified) {
+			return;
+		}
+		this.modified = false;
+		List<Map.Entry<String, Long>> counts = new ArrayList<>(this.entries.size());
+		Set<String> formattedKeys = new HashSet<>();
+		for (Map.Entry<String, Entry> entry : this.entries.entrySet()) {
+			counts.add(new SimpleImmutableEntry<>(entry.getKey(), entry.getValue().count.get()));
+			if (entry.getValue().formatted) {
+				formattedKeys.add(entry.getKey());
+			}
+		}
+		counts.sort(Map.Entry.<String, Long> comparingByValue().reversed());
+		Path target = this.file.toPath().toAbsolutePath();
+		Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+		try {
+			try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+				for (Map.Entry<String, Long> entry : counts.subList(0, Math.min(counts.size(), this.maxSize))) {
+					writer.write(entry.getKey() + '\t' + entry.getValue());
+					if (formattedKeys.contains(entry.getKey())) {
+						writer.write('\t' + FORMATTED);
+					}
+					writer.newLine();
+				}
+			}
+			try {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException ex) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException ex) {
+			// Try again on the next write.
+			this.modified = true;
+			throw ex;
+		}
+	}
+
+	/**
+	 * Read the pairs recorded in the file by a previous run, and count them
+	 * in this profile with half their previous count, so that they are kept
+	 * unless displaced by more frequent ones.
+	 * 
+	 * @return the recorded messages, or an empty list if there is no file yet
+	 * @throws IOException
+	 *             if the file could not be read
+	 */
+	List<HotMessage> read() throws IOException {
+		List<HotMessage> messages = new ArrayList<>();
+		if (!this.file.isFile()) {
+			return messages;
+		}
+		try (BufferedReader reader = Files.newBufferedReader(this.file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length >= 2 && !fields[0].isEmpty()) {
+					long count = 1;
+					if (fields.length >= 3) {
+						try {
+							count = Math.max(Long.parseLong(fields[2]) / 2, 1);
+						} catch (NumberFormatException ex) {
+							// Not counted
+						}
+					}
+					boolean formatted = FORMATTED.equals(fields[fields.length - 1]);
+					messages.add(new HotMessage(fields[1], Locale.forLanguageTag(fields[0]), formatted));
+					record(fields[0] + '\t' + fields[1], count, formatted);
+				}
+			}
+		}
+		return messages;
+	}
+
+	/**
+	 * Count of a recorded pair, and whether formatted with arguments.
+	 */
+	private static final class Entry {
+
+		private final AtomicLong count = new AtomicLong();
+
+		private volatile boolean formatted;
+	}
+
+	/**
+	 * A (code, Locale) pair recorded in the profile.
+	 */
+	static final class HotMessage {
+
+		private final String code;
+
+		private final Locale locale;
+
+		private final boolean formatted;
+
+		HotMessage(String code, Locale locale, boolean formatted) {
+			this.code = code;
+			this.locale = locale;
+			this.formatted = formatted;
+		}
+
+		String getCode() {
+			return this.code;
+		}
+
+		Locale getLocale() {
+			return this.locale;
+		}
+
+		/**
+		 * Return whether the message has been formatted with arguments.
+		 */
+		boolean isFormatted() {
+			return this.formatted;
+		}
+	}
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hypothesis.resource.context.support;
+
+import java.text.ChoiceFormat;
+import java.text.FieldPosition;
+import java.text.Format;
+import java.text.MessageFormat;
+import java.text.ParsePosition;
+import java.util.Locale;
+
+import org.hypothesis.resource.util.HtmlUtils;
+
+/**
+ * Format that HTML-escapes the output of another format, used as subformat of
+ * MessageFormats whose static pattern text has been escaped upfront.
+ *
+ * @see #createMessageFormat
+ */
+@SuppressWarnings("serial")
+final class HtmlEscapingFormat extends Format {
+
+	private final Format delegate;
+
+	private HtmlEscapingFormat(Format delegate) {
+		this.delegate = delegate;
+	}
+
+	/**
+	 * Create a MessageFormat producing HTML-escaped output for the given
+	 * message: the literal parts of the message are escaped once here, while
+	 * the formatted arguments get escaped on every call.
+	 *
+	 * @param msg
+	 *            the message to create a MessageFormat for
+	 * @param messageFormat
+	 *            a MessageFormat freshly created for the message, providing
+	 *            the subformats to be wrapped; not to be used elsewhere
+	 * @param locale
+	 *            the Locale to create a MessageFormat for
+	 * @return the MessageFormat, or {@code null} if the message contains
+	 *         "choice", "plural" or "select" arguments, whose output
+	 *         MessageFormat may process as nested pattern, so that it can
+	 *         only be escaped as a whole after formatting
+	 */
+	static MessageFormat createMessageFormat(String msg, MessageFormat messageFormat, Locale locale) {
+		Format[] formats = messageFormat.getFormats();
+		for (Format format : formats) {
+			if (format instanceof ChoiceFormat) {
+				return null;
+			}
+		}
+		StringBuilder escapedPattern = new StringBuilder(msg.length() + 16);
+		StringBuilder escapedText = new StringBuilder();
+		int argument = 0;
+		for (MessagePattern.Part part : MessagePattern.parse(msg).getParts()) {
+			if (part.isArgument()) {
+				escapedPattern.append('{').append(part.getArgumentIndex()).append('}');
+				Format format = formats[argument];
+				formats[argument++] = new HtmlEscapingFormat(
+						format != null ? format : SharedFormats.getDefaultFormat(locale));
+			} else {
+				escapedText.setLength(0);
+				HtmlUtils.htmlEscape(part.getText(), escapedText);
+				escapedPattern.append(MessagePattern.quote(escapedText.toString()));
+			}
+		}
+		MessageFormat result = new MessageFormat(escapedPattern.toString(), locale);
+		result.setFormats(formats);
+		return result;
+	}
+
+	@Override
+	public StringBuffer format(Object obj, StringBuffer toAppendTo, FieldPosition pos) {
+		String text = this.delegate.format(obj, new StringBuffer(), pos).toString();
+		return toAppendTo.append(HtmlUtils.htmlEscape(text));
+	}
+
+	@Override
+	public Object parseObject(String source, ParsePosition pos) {
+		throw new UnsupportedOperationException("Parsing of HTML-escaped messages is not supported");
+	}
+
+}
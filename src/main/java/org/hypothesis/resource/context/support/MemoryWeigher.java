@@ -0,0 +1,163 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hypothesis.resource.context.support;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.LongSupplier;
+
+/**
+ * Rough estimates of the heap retained by cached message source state, for
+ * keeping it within a memory budget.
+ *
+ * <p>
+ * Assumes a 64-bit JVM with compressed references and two bytes per String
+ * character, so that estimates rather err on the high side. Shared instances,
+ * e.g. Strings referenced from several caches, are counted once per cache.
+ */
+final class MemoryWeigher {
+
+	/** Estimated weight of a hash map entry, including its table slot */
+	static final long ENTRY = 48;
+
+	/** Estimated weight of an empty String with its character array */
+	static final long STRING = 40;
+
+	/** Estimated weight of a small object, e.g. a boxed primitive */
+	static final long OBJECT = 16;
+
+	/** Estimated weight of a compiled message, beyond its pattern */
+	static final long COMPILED_MESSAGE = 256;
+
+	/** Estimated weight of a compiled message cached per Locale */
+	static final long COMPILED_ENTRY = ENTRY + COMPILED_MESSAGE;
+
+	private MemoryWeigher() {
+	}
+
+	static long weigh(String value) {
+		return value != null ? STRING + 2L * value.length() : 0;
+	}
+
+	static long weigh(Object value) {
+		if (value instanceof String) {
+			return weigh((String) value);
+		}
+		return value != null ? OBJECT : 0;
+	}
+
+	/**
+	 * Weigh the entries of the given Properties, not counting its defaults.
+	 */
+	static long weigh(Properties properties) {
+		if (properties == null) {
+			return 0;
+		}
+		long weight = ENTRY;
+		for (Map.Entry<Object, Object> entry : properties.entrySet()) {
+			weight += ENTRY + weigh(entry.getKey()) + weigh(entry.getValue());
+		}
+		return weight;
+	}
+
+	/**
+	 * Weigh the cache entry of a message code, not counting the code itself,
+	 * which is shared with the properties.
+	 */
+	static long weighCode() {
+		return ENTRY + ENTRY;
+	}
+
+	/**
+	 * Weigh the compiled messages of a message code, per Locale, including
+	 * the cache entry of the code.
+	 */
+	static long weighCompiled(Map<?, ?> compiled) {
+		return weighCode() + compiled.size() * COMPILED_ENTRY;
+	}
+
+	/**
+	 * Weigh the encoded messages of a message code, per Charset, including
+	 * the cache entry of the code.
+	 */
+	static long weighEncoded(Map<?, byte[]> encoded) {
+		long weight = weighCode();
+		for (byte[] encodedMessage : encoded.values()) {
+			weight += ENTRY + OBJECT + encodedMessage.length;
+		}
+		return weight;
+	}
+
+	/**
+	 * Cached entry that can be evicted on its own to get back within a memory
+	 * budget.
+	 */
+	static final class Candidate {
+
+		/**
+		 * Least recently accessed first; heaviest first among entries last
+		 * accessed at the same time.
+		 */
+		static final Comparator<Candidate> EVICTION_ORDER = Comparator.comparingLong(
+				(Candidate candidate) -> candidate.lastAccess).thenComparing(
+						Comparator.comparingLong((Candidate candidate) -> candidate.weight).reversed());
+
+		private final long lastAccess;
+
+		private final long weight;
+
+		private final LongSupplier eviction;
+
+		/**
+		 * @param lastAccess
+		 *            the time of the last access to the entry, as coarse as
+		 *            the eviction checks
+		 * @param weight
+		 *            the estimated weight of the entry
+		 * @param eviction
+		 *            the eviction of the entry, returning the weight freed
+		 */
+		Candidate(long lastAccess, long weight, LongSupplier eviction) {
+			this.lastAccess = lastAccess;
+			this.weight = weight;
+			this.eviction = eviction;
+		}
+
+		/**
+		 * Sum up the estimated weights of the given entries.
+		 */
+		static long weigh(Collection<Candidate> candidates) {
+			long weight = 0;
+			for (Candidate candidate : candidates) {
+				weight += candidate.weight;
+			}
+			return weight;
+		}
+
+		/**
+		 * Evict the entry, unless evicted or replaced in the meantime.
+		 * 
+		 * @return the estimated weight freed
+		 */
+		long evict() {
+			return this.eviction.getAsLong();
+		}
+	}
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hypothesis.resource.context.support;
+
+/**
+ * Unboxed message arguments, holding up to three {@code long},
+ * {@code double} or {@link CharSequence} values without an {@code Object[]}
+ * allocation, for
+ * {@link AbstractMessageSource#getUnboxedMessage}.
+ * <p>
+ * Instances are mutable and not thread-safe; they may be reused for
+ * subsequent lookups by the same thread after {@link #clear()}.
+ */
+public final class MessageArguments {
+
+	/** Maximum number of arguments */
+	static final int MAX_SIZE = 3;
+
+	static final byte LONG = 0;
+
+	static final byte DOUBLE = 1;
+
+	static final byte TEXT = 2;
+
+	private int size;
+
+	private byte type0;
+
+	private byte type1;
+
+	private byte type2;
+
+	/** Long values, or raw bits of double values */
+	private long value0;
+
+	private long value1;
+
+	private long value2;
+
+	private CharSequence text0;
+
+	private CharSequence text1;
+
+	private CharSequence text2;
+
+	/**
+	 * Add a {@code long} argument.
+	 * 
+	 * @return this instance, for chaining
+	 * @throws IllegalStateException
+	 *             if there are three arguments already
+	 */
+	public MessageArguments add(long value) {
+		return add(LONG, value, null);
+	}
+
+	/**
+	 * Add a {@code double} argument.
+	 * 
+	 * @return this instance, for chaining
+	 * @throws IllegalStateException
+	 *             if there are three arguments already
+	 */
+	public MessageArguments add(double value) {
+		return add(DOUBLE, Double.doubleToRawLongBits(value), null);
+	}
+
+	/**
+	 * Add a {@link CharSequence} argument, e.g. a String.
+	 * 
+	 * @return this instance, for chaining
+	 * @throws IllegalStateException
+	 *             if there are three arguments already
+	 */
+	public MessageArguments add(CharSequence value) {
+		return add(TEXT, 0, value);
+	}
+
+	private MessageArguments add(byte type, long value, CharSequence text) {
+		switch (this.size) {
+		case 0:
+			this.type0 = type;
+			this.value0 = value;
+			this.text0 = text;
+			break;
+		case 1:
+			this.type1 = type;
+			this.value1 = value;
+			this.text1 = text;
+			break;
+		case 2:
+			this.type2 = type;
+			this.value2 = value;
+			this.text2 = text;
+			break;
+		default:
+			throw new IllegalStateException("No more than " + MAX_SIZE + " arguments supported");
+		}
+		this.size++;
+		return this;
+	}
+
+	/**
+	 * Remove all arguments, for reusing this instance.
+	 * 
+	 * @return this instance, for chaining
+	 */
+	public MessageArguments clear() {
+		this.size = 0;
+		this.text0 = null;
+		this.text1 = null;
+		this.text2 = null;
+		return this;
+	}
+
+	/**
+	 * Return the number of arguments added.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Return the type of the argument at the given index: {@link #LONG},
+	 * {@link #DOUBLE} or {@link #TEXT}.
+	 */
+	byte getType(int index) {
+		return index == 0 ? this.type0 : (index == 1 ? this.type1 : this.type2);
+	}
+
+	long getLong(int index) {
+		return index == 0 ? this.value0 : (index == 1 ? this.value1 : this.value2);
+	}
+
+	double getDouble(int index) {
+		return Double.longBitsToDouble(getLong(index));
+	}
+
+	CharSequence getText(int index) {
+		return index == 0 ? this.text0 : (index == 1 ? this.text1 : this.text2);
+	}
+
+	/**
+	 * Return the arguments as boxed array, for formatting through a plain
+	 * MessageFormat.
+	 */
+	Object[] toArray() {
+		Object[] result = new Object[this.size];
+		for (int i = 0; i < this.size; i++) {
+			switch (getType(i)) {
+			case LONG:
+				result[i] = getLong(i);
+				break;
+			case DOUBLE:
+				result[i] = getDouble(i);
+				break;
+			default:
+				result[i] = getText(i);
+				break;
+			}
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hypothesis.resource.context.support;
+
+/**
+ * Handle for a constant message code, obtained once through
+ * {@link AbstractMessageSource#key(String)} and then passed to the
+ * {@code getMessage(MessageKey, ...)} variants instead of the code String.
+ *
+ * <p>
+ * Each key carries a slot index that is unique within the issuing message
+ * source, allowing implementations to keep per-locale tables of resolved
+ * messages that are accessed by array index rather than by hashing the code.
+ * Keys issued by one message source may be passed to another one; they will
+ * simply be resolved through their code in that case.
+ *
+ * @see AbstractMessageSource#key(String)
+ * @see AbstractMessageSource#getMessage(MessageKey, Object[], java.util.Locale)
+ */
+public final class MessageKey {
+
+	private final String code;
+
+	private final int slot;
+
+	private final AbstractMessageSource owner;
+
+	MessageKey(String code, int slot, AbstractMessageSource owner) {
+		this.code = code;
+		this.slot = slot;
+		this.owner = owner;
+	}
+
+	/**
+	 * Return the message code this key stands for.
+	 */
+	public String getCode() {
+		return this.code;
+	}
+
+	/**
+	 * Return the slot index of this key within the issuing message source.
+	 */
+	public int getSlot() {
+		return this.slot;
+	}
+
+	/**
+	 * Return whether this key has been issued by the given message source,
+	 * i.e. whether its slot index is meaningful there.
+	 */
+	boolean isIssuedBy(AbstractMessageSource messageSource) {
+		return this.owner == messageSource;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (this == other) {
+			return true;
+		}
+		if (!(other instanceof MessageKey)) {
+			return false;
+		}
+		MessageKey otherKey = (MessageKey) other;
+		return this.owner == otherKey.owner && this.code.equals(otherKey.code);
+	}
+
+	@Override
+	public int hashCode() {
+		return this.code.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "MessageKey '" + this.code + "' [" + this.slot + "]";
+	}
+
+}
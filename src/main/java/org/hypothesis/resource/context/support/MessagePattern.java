@@ -0,0 +1,264 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hypothesis.resource.context.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Parsed form of a {@link java.text.MessageFormat} pattern: a sequence of
+ * literal text parts, already unquoted, and argument parts with their raw
+ * format type and style.
+ *
+ * <p>
+ * Follows the parsing rules of {@code MessageFormat.applyPattern}, but does
+ * not interpret format types and styles, so that the message source can
+ * compile patterns in its own way.
+ */
+final class MessagePattern {
+
+	private final List<Part> parts;
+
+	private final boolean hasArguments;
+
+	private MessagePattern(List<Part> parts) {
+		this.parts = Collections.unmodifiableList(parts);
+		boolean hasArguments = false;
+		for (Part part : parts) {
+			hasArguments |= part.isArgument();
+		}
+		this.hasArguments = hasArguments;
+	}
+
+	/**
+	 * Parse the given MessageFormat pattern.
+	 *
+	 * @param pattern
+	 *            the pattern to parse
+	 * @return the parsed pattern
+	 * @throws IllegalArgumentException
+	 *             if the pattern is invalid, e.g. has unmatched braces or a
+	 *             non-numeric argument index
+	 */
+	static MessagePattern parse(String pattern) {
+		List<Part> parts = new ArrayList<>();
+		StringBuilder literal = new StringBuilder();
+		StringBuilder[] segments = null;
+		int segment = 0;
+		int braceDepth = 0;
+		boolean inQuote = false;
+
+		for (int i = 0; i < pattern.length(); i++) {
+			char ch = pattern.charAt(i);
+			if (segments == null) {
+				if (ch == '\'') {
+					if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '\'') {
+						literal.append(ch);
+						i++;
+					} else {
+						inQuote = !inQuote;
+					}
+				} else if (ch == '{' && !inQuote) {
+					if (literal.length() > 0) {
+						parts.add(new Part(literal.toString()));
+						literal.setLength(0);
+					}
+					segments = new StringBuilder[] { new StringBuilder(), new StringBuilder(), new StringBuilder() };
+					segment = 0;
+				} else {
+					literal.append(ch);
+				}
+			} else if (inQuote) {
+				segments[segment].append(ch);
+				if (ch == '\'') {
+					inQuote = false;
+				}
+			} else {
+				switch (ch) {
+				case ',':
+					if (segment < 2) {
+						segment++;
+					} else {
+						segments[segment].append(ch);
+					}
+					break;
+				case '{':
+					braceDepth++;
+					segments[segment].append(ch);
+					break;
+				case '}':
+					if (braceDepth == 0) {
+						parts.add(createArgument(segments));
+						segments = null;
+					} else {
+						braceDepth--;
+						segments[segment].append(ch);
+					}
+					break;
+				case ' ':
+					// Skip leading spaces of the format type, as MessageFormat does.
+					if (segment != 1 || segments[1].length() > 0) {
+						segments[segment].append(ch);
+					}
+					break;
+				case '\'':
+					inQuote = true;
+					segments[segment].append(ch);
+					break;
+				default:
+					segments[segment].append(ch);
+					break;
+				}
+			}
+		}
+		if (segments != null) {
+			throw new IllegalArgumentException("Unmatched braces in the pattern.");
+		}
+		if (literal.length() > 0) {
+			parts.add(new Part(literal.toString()));
+		}
+		return new MessagePattern(parts);
+	}
+
+	private static Part createArgument(StringBuilder[] segments) {
+		int index;
+		try {
+			index = Integer.parseInt(segments[0].toString());
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("can't parse argument number: " + segments[0]);
+		}
+		if (index < 0) {
+			throw new IllegalArgumentException("negative argument number: " + index);
+		}
+		return new Part(index, segments[1].toString().trim().toLowerCase(Locale.ROOT), segments[2].toString());
+	}
+
+	/**
+	 * Quote the given literal text for use within a MessageFormat pattern.
+	 */
+	static String quote(String text) {
+		StringBuilder sb = new StringBuilder(text.length() + 8);
+		for (int i = 0; i < text.length(); i++) {
+			char ch = text.charAt(i);
+			if (ch == '\'') {
+				sb.append("''");
+			} else if (ch == '{' || ch == '}') {
+				sb.append('\'').append(ch).append('\'');
+			} else {
+				sb.append(ch);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Return the literal and argument parts of the pattern, in order.
+	 */
+	List<Part> getParts() {
+		return this.parts;
+	}
+
+	/**
+	 * Return whether the pattern contains any argument placeholders.
+	 */
+	boolean hasArguments() {
+		return this.hasArguments;
+	}
+
+	/**
+	 * A literal text or argument part of a pattern.
+	 */
+	static final class Part {
+
+		private final String text;
+
+		private final int argumentIndex;
+
+		private final String type;
+
+		private final String style;
+
+		Part(String text) {
+			this.text = text;
+			this.argumentIndex = -1;
+			this.type = null;
+			this.style = null;
+		}
+
+		Part(int argumentIndex, String type, String style) {
+			this.text = null;
+			this.argumentIndex = argumentIndex;
+			this.type = type;
+			this.style = style;
+		}
+
+		boolean isArgument() {
+			return this.argumentIndex >= 0;
+		}
+
+		/**
+		 * Return the unquoted text of a literal part.
+		 */
+		String getText() {
+			return this.text;
+		}
+
+		int getArgumentIndex() {
+			return this.argumentIndex;
+		}
+
+		/**
+		 * Return the format type of an argument part, trimmed and in lower
+		 * case: e.g. "" for "{0}" or "number" for "{0,number}".
+		 */
+		String getType() {
+			return this.type;
+		}
+
+		/**
+		 * Return the raw format style of an argument part, e.g. "" for
+		 * "{0,number}" or "#.##" for "{0,number,#.##}".
+		 */
+		String getStyle() {
+			return this.style;
+		}
+
+		/**
+		 * Return the format style of an argument part as keyword, i.e.
+		 * trimmed and in lower case.
+		 */
+		String getStyleKeyword() {
+			return this.style.trim().toLowerCase(Locale.ROOT);
+		}
+
+		/**
+		 * Render this part back into MessageFormat pattern syntax.
+		 */
+		String toPattern() {
+			if (!isArgument()) {
+				return quote(this.text);
+			}
+			if (this.type.isEmpty() && this.style.isEmpty()) {
+				return "{" + this.argumentIndex + "}";
+			}
+			return "{" + this.argumentIndex + "," + this.type + (this.style.isEmpty() ? "" : "," + this.style) + "}";
+		}
+	}
+
+}
@@ -18,6 +18,7 @@ package org.hypothesis.resource.context.support;
 
 import java.text.MessageFormat;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
@@ -48,12 +49,20 @@ public abstract class MessageSourceSupport {
 
 	private boolean alwaysUseMessageFormat = false;
 
+	private boolean shareSubformats = false;
+
 	/**
 	 * Cache to hold already generated MessageFormats per message. Used for
 	 * passed-in default messages. MessageFormats for resolved codes are cached
 	 * on a specific basis in subclasses.
 	 */
-	private final Map<String, Map<Locale, MessageFormat>> messageFormatsPerMessage = new HashMap<>();
+	private final Map<String, DefaultMessageFormats> messageFormatsPerMessage = new HashMap<>();
+
+	/** Estimated weight of the cached MessageFormats for default messages */
+	private long defaultMessageFormatsWeight;
+
+	/** Coarse time of the current lookups, for the recency of cached entries */
+	private volatile long lookupTime;
 
 	/**
 	 * Set whether to always apply the MessageFormat rules, parsing even
@@ -84,6 +93,36 @@ public abstract class MessageSourceSupport {
 		return this.alwaysUseMessageFormat;
 	}
 
+	/**
+	 * Set whether MessageFormats created by this message source should share
+	 * their number, date, time and choice subformats, as well as the default
+	 * formats for placeholders without format type, per Locale and style.
+	 * <p>
+	 * Default is "false": Every MessageFormat builds its own subformat
+	 * instances, as {@code new MessageFormat(pattern, locale)} does. Set this
+	 * to "true" to compile messages against a shared pool of thread-safe
+	 * subformats instead, which saves both construction time and retained
+	 * heap with large numbers of messages containing "{0,number}" or
+	 * "{1,date}" style placeholders. Concurrent lookups spread over a few
+	 * locked copies of each shared subformat while formatting. Formatting
+	 * results are the same either way; only the subformats exposed through
+	 * {@link MessageFormat#getFormats()} differ. This applies to the formats
+	 * of "plural" and "select" arguments as well.
+	 * 
+	 * @see #createMessageFormat
+	 */
+	public void setShareSubformats(boolean shareSubformats) {
+		this.shareSubformats = shareSubformats;
+	}
+
+	/**
+	 * Return whether MessageFormats created by this message source share
+	 * their subformats.
+	 */
+	protected boolean isShareSubformats() {
+		return this.shareSubformats;
+	}
+
 	/**
 	 * Render the given default message String. The default message is passed in
 	 * as specified by the caller and can be rendered into a fully formatted
@@ -125,18 +164,22 @@ public abstract class MessageSourceSupport {
 		if (msg == null || (!this.alwaysUseMessageFormat && ArrayUtils.isEmpty(args))) {
 			return msg;
 		}
+		Locale localeToUse = (locale != null ? canonicalizeLocale(locale) : null);
 		MessageFormat messageFormat = null;
 		synchronized (this.messageFormatsPerMessage) {
-			Map<Locale, MessageFormat> messageFormatsPerLocale = this.messageFormatsPerMessage.get(msg);
+			DefaultMessageFormats messageFormatsPerLocale = this.messageFormatsPerMessage.get(msg);
 			if (messageFormatsPerLocale != null) {
-				messageFormat = messageFormatsPerLocale.get(locale);
+				messageFormat = messageFormatsPerLocale.formats.get(localeToUse);
 			} else {
-				messageFormatsPerLocale = new HashMap<>();
+				messageFormatsPerLocale = new DefaultMessageFormats();
 				this.messageFormatsPerMessage.put(msg, messageFormatsPerLocale);
+				messageFormatsPerLocale.weight = MemoryWeigher.ENTRY + MemoryWeigher.weigh(msg);
+				this.defaultMessageFormatsWeight += messageFormatsPerLocale.weight;
 			}
+			messageFormatsPerLocale.lastAccess = this.lookupTime;
 			if (messageFormat == null) {
 				try {
-					messageFormat = createMessageFormat(msg, locale);
+					messageFormat = createMessageFormat(msg, localeToUse);
 				} catch (IllegalArgumentException ex) {
 					// invalid message format - probably not intended for
 					// formatting,
@@ -148,7 +191,9 @@ public abstract class MessageSourceSupport {
 					// silently proceed with raw message if format not enforced
 					messageFormat = INVALID_MESSAGE_FORMAT;
 				}
-				messageFormatsPerLocale.put(locale, messageFormat);
+				messageFormatsPerLocale.formats.put(localeToUse, messageFormat);
+				messageFormatsPerLocale.weight += MemoryWeigher.ENTRY + MemoryWeigher.COMPILED_MESSAGE;
+				this.defaultMessageFormatsWeight += MemoryWeigher.ENTRY + MemoryWeigher.COMPILED_MESSAGE;
 			}
 		}
 		if (messageFormat == INVALID_MESSAGE_FORMAT) {
@@ -159,16 +204,94 @@ public abstract class MessageSourceSupport {
 		}
 	}
 
+	/**
+	 * Map the given requested Locale to the Locale to resolve, format and
+	 * cache messages for, so that requested Locales mapping to the same
+	 * Locale share cached state.
+	 * <p>
+	 * The default implementation returns the given Locale as-is.
+	 * 
+	 * @param locale
+	 *            the requested Locale
+	 * @return the Locale to use for lookups and formatting
+	 */
+	protected Locale canonicalizeLocale(Locale locale) {
+		return locale;
+	}
+
+	/**
+	 * Return the estimated heap weight of the MessageFormats cached for
+	 * passed-in default messages, in bytes.
+	 * 
+	 * @see #formatMessage
+	 */
+	protected long getDefaultMessageFormatsWeight() {
+		synchronized (this.messageFormatsPerMessage) {
+			return this.defaultMessageFormatsWeight;
+		}
+	}
+
+	/**
+	 * Add a candidate for the MessageFormats cached for each passed-in default
+	 * message to the given list, for evicting them one by one to get back
+	 * within a memory budget.
+	 */
+	void addDefaultMessageFormatEvictionCandidates(List<MemoryWeigher.Candidate> candidates) {
+		synchronized (this.messageFormatsPerMessage) {
+			for (Map.Entry<String, DefaultMessageFormats> entry : this.messageFormatsPerMessage.entrySet()) {
+				String msg = entry.getKey();
+				DefaultMessageFormats formats = entry.getValue();
+				candidates.add(new MemoryWeigher.Candidate(formats.lastAccess, formats.weight, () -> {
+					synchronized (this.messageFormatsPerMessage) {
+						if (!this.messageFormatsPerMessage.remove(msg, formats)) {
+							return 0;
+						}
+						this.defaultMessageFormatsWeight -= formats.weight;
+						return formats.weight;
+					}
+				}));
+			}
+		}
+	}
+
+	/**
+	 * Return the coarse time of the current lookups that cached entries get
+	 * marked as accessed at, or 0 if not tracked.
+	 * 
+	 * @see #setLookupTime
+	 */
+	long getLookupTime() {
+		return this.lookupTime;
+	}
+
+	/**
+	 * Advance the coarse time of the current lookups, e.g. along with
+	 * periodic eviction checks that need the recency of cached entries.
+	 */
+	void setLookupTime(long lookupTime) {
+		this.lookupTime = lookupTime;
+	}
+
 	/**
 	 * Create a MessageFormat for the given message and Locale.
+	 * <p>
+	 * Besides the standard MessageFormat syntax, messages may contain
+	 * ICU-style "plural" and "select" arguments, e.g.
+	 * "{0,plural,=0{no files} one{# file} other{# files}}" or
+	 * "{1,select,female{her} male{his} other{their}}", with plural categories
+	 * following the CLDR rules for the given Locale.
 	 * 
 	 * @param msg
 	 *            the message to create a MessageFormat for
 	 * @param locale
 	 *            the Locale to create a MessageFormat for
 	 * @return the MessageFormat instance
+	 * @see #setShareSubformats
 	 */
 	protected MessageFormat createMessageFormat(String msg, Locale locale) {
+		if (msg != null && (this.shareSubformats || SharedFormats.containsSelection(msg))) {
+			return SharedFormats.createMessageFormat(msg, locale, this.shareSubformats);
+		}
 		return new MessageFormat(msg != null ? msg : "", locale);
 	}
 
@@ -189,4 +312,17 @@ public abstract class MessageSourceSupport {
 		return args;
 	}
 
+	/**
+	 * MessageFormats cached for a passed-in default message per Locale, with
+	 * their weight and the time of their last access.
+	 */
+	private static final class DefaultMessageFormats {
+
+		private final Map<Locale, MessageFormat> formats = new HashMap<>();
+
+		private long weight;
+
+		private long lastAccess;
+	}
+
 }
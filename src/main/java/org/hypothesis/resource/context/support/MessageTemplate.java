@@ -0,0 +1,153 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hypothesis.resource.context.support;
+
+import java.text.NumberFormat;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Message pattern compiled for formatting {@link MessageArguments} without
+ * boxing them, as an alternative to {@link java.text.MessageFormat} for
+ * patterns consisting of plain "{n}" and "{n,number[,integer|percent|currency]}"
+ * placeholders only.
+ *
+ * <p>
+ * Follows {@code MessageFormat} semantics for these placeholders: numbers are
+ * formatted through the locale's standard {@link NumberFormat} variants,
+ * shared through {@link SharedFormats} rather than created per call, and
+ * placeholders without a corresponding argument are rendered as-is.
+ */
+final class MessageTemplate {
+
+	/** Marker for patterns that cannot be compiled into a template */
+	static final MessageTemplate UNSUPPORTED = new MessageTemplate(new String[0], new int[0],
+			new SharedFormats.StripedFormat[0], new boolean[0]);
+
+	private static final Set<String> STANDARD_NUMBER_STYLES = new HashSet<>(
+			Arrays.asList("", "integer", "percent", "currency"));
+
+	/** Literal text preceding each argument, plus the trailing text */
+	private final String[] literals;
+
+	private final int[] argumentIndices;
+
+	/** Shared number format per argument */
+	private final SharedFormats.StripedFormat[] numberFormats;
+
+	/** Whether each argument has the "number" format type */
+	private final boolean[] numberTypes;
+
+	private MessageTemplate(String[] literals, int[] argumentIndices, SharedFormats.StripedFormat[] numberFormats,
+			boolean[] numberTypes) {
+		this.literals = literals;
+		this.argumentIndices = argumentIndices;
+		this.numberFormats = numberFormats;
+		this.numberTypes = numberTypes;
+	}
+
+	/**
+	 * Compile the given MessageFormat pattern into a template.
+	 *
+	 * @param msg
+	 *            the message pattern
+	 * @param locale
+	 *            the Locale to format numbers for
+	 * @return the compiled template, or {@link #UNSUPPORTED} if the pattern is
+	 *         invalid or uses other format types
+	 */
+	static MessageTemplate compile(String msg, Locale locale) {
+		MessagePattern pattern;
+		try {
+			pattern = MessagePattern.parse(msg);
+		} catch (IllegalArgumentException ex) {
+			return UNSUPPORTED;
+		}
+		List<MessagePattern.Part> parts = pattern.getParts();
+		int argumentCount = 0;
+		for (MessagePattern.Part part : parts) {
+			if (part.isArgument()) {
+				argumentCount++;
+			}
+		}
+		String[] literals = new String[argumentCount + 1];
+		int[] argumentIndices = new int[argumentCount];
+		SharedFormats.StripedFormat[] numberFormats = new SharedFormats.StripedFormat[argumentCount];
+		boolean[] numberTypes = new boolean[argumentCount];
+		StringBuilder literal = new StringBuilder();
+		int argument = 0;
+		for (MessagePattern.Part part : parts) {
+			if (!part.isArgument()) {
+				literal.append(part.getText());
+				continue;
+			}
+			if (!part.getType().isEmpty()) {
+				if (!"number".equals(part.getType()) || !STANDARD_NUMBER_STYLES.contains(part.getStyleKeyword())) {
+					return UNSUPPORTED;
+				}
+				numberTypes[argument] = true;
+			}
+			numberFormats[argument] = SharedFormats.getNumberFormat(locale, part.getStyle());
+			literals[argument] = literal.toString();
+			literal.setLength(0);
+			argumentIndices[argument] = part.getArgumentIndex();
+			argument++;
+		}
+		literals[argumentCount] = literal.toString();
+		return new MessageTemplate(literals, argumentIndices, numberFormats, numberTypes);
+	}
+
+	/**
+	 * Format the given arguments into this template.
+	 *
+	 * @param args
+	 *            the arguments to fill in
+	 * @return the formatted message
+	 * @throws IllegalArgumentException
+	 *             if a text argument is given for a number placeholder
+	 */
+	String format(MessageArguments args) {
+		StringBuilder sb = new StringBuilder(64);
+		for (int i = 0; i < this.argumentIndices.length; i++) {
+			sb.append(this.literals[i]);
+			int index = this.argumentIndices[i];
+			if (index >= args.size()) {
+				sb.append('{').append(index).append('}');
+				continue;
+			}
+			byte type = args.getType(index);
+			if (type == MessageArguments.TEXT) {
+				CharSequence text = args.getText(index);
+				if (text != null && this.numberTypes[i]) {
+					throw new IllegalArgumentException("Cannot format given Object as a Number");
+				}
+				sb.append(text);
+				continue;
+			}
+			if (type == MessageArguments.LONG) {
+				sb.append(this.numberFormats[i].format(args.getLong(index)));
+			} else {
+				sb.append(this.numberFormats[i].format(args.getDouble(index)));
+			}
+		}
+		sb.append(this.literals[this.argumentIndices.length]);
+		return sb.toString();
+	}
+
+}
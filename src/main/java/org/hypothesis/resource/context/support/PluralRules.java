@@ -0,0 +1,186 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hypothesis.resource.context.support;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongToIntFunction;
+
+/**
+ * Plural category rules of a language, following the CLDR plural rules for
+ * cardinal numbers, precomputed into lookup tables.
+ *
+ * <p>
+ * For the supported languages, the category of an integer depends on its
+ * exact value below 100 and only on its last two digits from 100 on, so each
+ * rule is evaluated once per table entry when the rules are built and
+ * {@link #select(long)} is a table lookup. Non-integer numbers fall into a
+ * fixed category per language, or into "one" below 2 for languages such as
+ * French. The categories of visible fraction digits (e.g. "1.0" as opposed
+ * to "1") are not distinguished, as arguments are selected by value.
+ *
+ * <p>
+ * Languages without known rules only use the "other" category, as in the
+ * CLDR root locale.
+ */
+final class PluralRules {
+
+	static final int ZERO = 0;
+
+	static final int ONE = 1;
+
+	static final int TWO = 2;
+
+	static final int FEW = 3;
+
+	static final int MANY = 4;
+
+	static final int OTHER = 5;
+
+	private static final List<String> KEYWORDS = Arrays.asList("zero", "one", "two", "few", "many", "other");
+
+	private static final PluralRules ROOT = new PluralRules(n -> OTHER, OTHER, false, false);
+
+	private static final Map<String, PluralRules> rulesPerLanguage = new HashMap<>();
+
+	static {
+		PluralRules one = new PluralRules(n -> n == 1 ? ONE : OTHER, OTHER, false, false);
+		PluralRules oneWithMillions = new PluralRules(n -> n == 1 ? ONE : OTHER, OTHER, false, true);
+		PluralRules zeroOrOne = new PluralRules(n -> n <= 1 ? ONE : OTHER, OTHER, true, true);
+		PluralRules czech = new PluralRules(n -> n == 1 ? ONE : n >= 2 && n <= 4 ? FEW : OTHER, MANY, false, false);
+		PluralRules polish = new PluralRules(n -> n == 1 ? ONE
+				: n % 10 >= 2 && n % 10 <= 4 && (n % 100 < 12 || n % 100 > 14) ? FEW : MANY, OTHER, false, false);
+		PluralRules russian = new PluralRules(n -> n % 10 == 1 && n % 100 != 11 ? ONE
+				: n % 10 >= 2 && n % 10 <= 4 && (n % 100 < 12 || n % 100 > 14) ? FEW : MANY, OTHER, false, false);
+		PluralRules croatian = new PluralRules(n -> n % 10 == 1 && n % 100 != 11 ? ONE
+				: n % 10 >= 2 && n % 10 <= 4 && (n % 100 < 12 || n % 100 > 14) ? FEW : OTHER, OTHER, false, false);
+		PluralRules slovenian = new PluralRules(n -> n % 100 == 1 ? ONE
+				: n % 100 == 2 ? TWO : n % 100 == 3 || n % 100 == 4 ? FEW : OTHER, FEW, false, false);
+		PluralRules romanian = new PluralRules(n -> n == 1 ? ONE
+				: n == 0 || (n % 100 >= 1 && n % 100 <= 19) ? FEW : OTHER, FEW, false, false);
+		PluralRules lithuanian = new PluralRules(n -> n % 100 >= 11 && n % 100 <= 19 ? OTHER
+				: n % 10 == 1 ? ONE : n % 10 >= 2 ? FEW : OTHER, MANY, false, false);
+		PluralRules latvian = new PluralRules(n -> n % 10 == 0 || (n % 100 >= 11 && n % 100 <= 19) ? ZERO
+				: n % 10 == 1 ? ONE : OTHER, OTHER, false, false);
+
+		register(one, "en", "de", "nl", "sv", "da", "nb", "no", "nn", "fi", "et", "el", "hu", "tr", "bg", "eu",
+				"gl", "af", "sq", "az", "ka", "kk", "sw", "is");
+		register(oneWithMillions, "it", "es", "ca");
+		register(zeroOrOne, "fr", "pt");
+		register(czech, "cs", "sk");
+		register(polish, "pl");
+		register(russian, "ru", "uk", "be");
+		register(croatian, "hr", "sr", "bs");
+		register(slovenian, "sl");
+		register(romanian, "ro", "mo");
+		register(lithuanian, "lt");
+		register(latvian, "lv");
+	}
+
+	private static void register(PluralRules rules, String... languages) {
+		for (String language : languages) {
+			rulesPerLanguage.put(language, rules);
+		}
+	}
+
+	/**
+	 * Return the plural rules for the language of the given Locale.
+	 */
+	static PluralRules forLocale(Locale locale) {
+		PluralRules rules = (locale != null ? rulesPerLanguage.get(locale.getLanguage()) : null);
+		return (rules != null ? rules : ROOT);
+	}
+
+	/**
+	 * Return the category constant for the given keyword, e.g. {@link #ONE}
+	 * for "one", or -1 if it is not a plural category keyword.
+	 */
+	static int category(String keyword) {
+		return KEYWORDS.indexOf(keyword);
+	}
+
+	/** Category per integer below 100 */
+	private final byte[] smallNumbers = new byte[100];
+
+	/** Category per last two digits of integers from 100 on */
+	private final byte[] largeNumbers = new byte[100];
+
+	private final int fractionCategory;
+
+	private final boolean oneBelowTwo;
+
+	private final boolean manyMillions;
+
+	/**
+	 * Create plural rules from the given integer rule, evaluated for
+	 * 0..199 only.
+	 *
+	 * @param integerRule
+	 *            the category of each non-negative integer
+	 * @param fractionCategory
+	 *            the category of non-integer numbers
+	 * @param oneBelowTwo
+	 *            whether non-integer numbers below 2 are in category "one"
+	 * @param manyMillions
+	 *            whether non-zero multiples of a million are in category
+	 *            "many"
+	 */
+	private PluralRules(LongToIntFunction integerRule, int fractionCategory, boolean oneBelowTwo,
+			boolean manyMillions) {
+		for (int i = 0; i < 100; i++) {
+			this.smallNumbers[i] = (byte) integerRule.applyAsInt(i);
+			this.largeNumbers[i] = (byte) integerRule.applyAsInt(100 + i);
+		}
+		this.fractionCategory = fractionCategory;
+		this.oneBelowTwo = oneBelowTwo;
+		this.manyMillions = manyMillions;
+	}
+
+	/**
+	 * Return the plural category of the given integer.
+	 */
+	int select(long number) {
+		// Long.MIN_VALUE has no positive counterpart, but only its last
+		// digits matter.
+		long n = (number >= 0 ? number : number != Long.MIN_VALUE ? -number : -(number % 1000000));
+		if (n < 100) {
+			return this.smallNumbers[(int) n];
+		}
+		if (this.manyMillions && n % 1000000 == 0) {
+			return MANY;
+		}
+		return this.largeNumbers[(int) (n % 100)];
+	}
+
+	/**
+	 * Return the plural category of the given number.
+	 */
+	int select(double number) {
+		double n = Math.abs(number);
+		if (n == Math.rint(n) && n < Long.MAX_VALUE) {
+			return select((long) n);
+		}
+		if (this.oneBelowTwo && n < 2) {
+			return ONE;
+		}
+		return this.fractionCategory;
+	}
+
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hypothesis.resource.context.support;
+
+import java.text.MessageFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.Validate;
+import org.hypothesis.resource.context.MessageSource;
+
+/**
+ * MessageSource that routes each message code to one of several child
+ * MessageSources by code prefix, e.g. all codes starting with "billing." to
+ * the billing module's MessageSource, with a default MessageSource for all
+ * other codes.
+ *
+ * <p>
+ * Prefixes are kept in a character trie, so that the longest matching prefix
+ * is found in a single pass over the code, independent of the number of
+ * child sources. Codes that the chosen child source cannot resolve are looked
+ * up in the default MessageSource next, then in the common messages and the
+ * parent of this MessageSource, if any.
+ *
+ * <p>
+ * Child sources are meant to be configured once, before the MessageSource
+ * is used.
+ *
+ * @see #addMessageSource
+ * @see #setDefaultMessageSource
+ */
+public class PrefixRoutingMessageSource extends AbstractMessageSource {
+
+	private final PrefixNode root = new PrefixNode();
+
+	private MessageSource defaultMessageSource;
+
+	/**
+	 * Set the child MessageSources per code prefix, replacing any sources
+	 * registered before.
+	 * 
+	 * @param messageSources
+	 *            the MessageSources keyed by the code prefix they serve
+	 * @see #addMessageSource
+	 */
+	public void setMessageSources(Map<String, ? extends MessageSource> messageSources) {
+		this.root.clear();
+		for (Map.Entry<String, ? extends MessageSource> entry : messageSources.entrySet()) {
+			addMessageSource(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Register a child MessageSource for all codes starting with the given
+	 * prefix. Where several prefixes match a code, the longest one wins.
+	 * 
+	 * @param prefix
+	 *            the code prefix, such as "billing."
+	 * @param messageSource
+	 *            the MessageSource to resolve the codes with
+	 */
+	public void addMessageSource(String prefix, MessageSource messageSource) {
+		Validate.notNull(prefix, "Prefix must not be null");
+		Validate.notNull(messageSource, "MessageSource must not be null");
+		PrefixNode node = this.root;
+		for (int i = 0; i < prefix.length(); i++) {
+			node = node.getOrCreateChild(prefix.charAt(i));
+		}
+		node.messageSource = messageSource;
+	}
+
+	/**
+	 * Set the MessageSource to resolve codes that do not match any prefix, or
+	 * that the MessageSource for their prefix cannot resolve.
+	 */
+	public void setDefaultMessageSource(MessageSource defaultMessageSource) {
+		this.defaultMessageSource = defaultMessageSource;
+	}
+
+	/**
+	 * Return the MessageSource to resolve codes that do not match any prefix.
+	 */
+	public MessageSource getDefaultMessageSource() {
+		return this.defaultMessageSource;
+	}
+
+	/**
+	 * Return the child MessageSource registered for the longest prefix of the
+	 * given code.
+	 * 
+	 * @param code
+	 *            the message code
+	 * @return the MessageSource, or {@code null} if no prefix matches
+	 */
+	protected MessageSource getMessageSource(String code) {
+		PrefixNode node = this.root;
+		MessageSource result = node.messageSource;
+		for (int i = 0; i < code.length(); i++) {
+			node = node.getChild(code.charAt(i));
+			if (node == null) {
+				break;
+			}
+			if (node.messageSource != null) {
+				result = node.messageSource;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Resolves the code through the child MessageSource for its prefix, then
+	 * through the default MessageSource, and finally through the common
+	 * messages and the parent MessageSource.
+	 */
+	@Override
+	protected String getMessageInternal(String code, Object[] args, Locale locale) {
+		if (code == null) {
+			return null;
+		}
+		if (locale == null) {
+			locale = Locale.getDefault();
+		}
+		Object[] argsToUse = args;
+		if (isAlwaysUseMessageFormat() || !ArrayUtils.isEmpty(args)) {
+			// Resolve arguments eagerly, as the codes of resolvable arguments
+			// may belong to other child MessageSources than the message.
+			argsToUse = resolveArguments(args, locale);
+		}
+		MessageSource messageSource = getMessageSource(code);
+		if (messageSource != null) {
+			String message = getMessageFrom(messageSource, code, argsToUse, locale);
+			if (message != null) {
+				return message;
+			}
+		}
+		if (this.defaultMessageSource != null && this.defaultMessageSource != messageSource) {
+			String message = getMessageFrom(this.defaultMessageSource, code, argsToUse, locale);
+			if (message != null) {
+				return message;
+			}
+		}
+		return getCommonOrParentMessage(code, argsToUse, locale);
+	}
+
+	private String getMessageFrom(MessageSource messageSource, String code, Object[] args, Locale locale) {
+		if (messageSource instanceof AbstractMessageSource) {
+			// Call internal method to avoid getting the default code back
+			// in case of "useCodeAsDefaultMessage" being activated.
+			return ((AbstractMessageSource) messageSource).getMessageInternal(code, args, locale);
+		}
+		return messageSource.getMessage(code, args, null, locale);
+	}
+
+	/**
+	 * Not used, as codes are resolved through the child MessageSources.
+	 * Always returns {@code null}.
+	 */
+	@Override
+	protected MessageFormat resolveCode(String code, Locale locale) {
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getName() + ": defaultMessageSource=[" + this.defaultMessageSource + "]";
+	}
+
+	/**
+	 * Node of the prefix trie, holding the MessageSource registered for the
+	 * prefix that leads to it, if any.
+	 */
+	private static final class PrefixNode {
+
+		private Map<Character, PrefixNode> children;
+
+		private MessageSource messageSource;
+
+		PrefixNode getChild(char ch) {
+			return this.children != null ? this.children.get(ch) : null;
+		}
+
+		PrefixNode getOrCreateChild(char ch) {
+			if (this.children == null) {
+				this.children = new HashMap<>(4);
+			}
+			PrefixNode child = this.children.get(ch);
+			if (child == null) {
+				child = new PrefixNode();
+				this.children.put(ch, child);
+			}
+			return child;
+		}
+
+		void clear() {
+			this.children = null;
+			this.messageSource = null;
+		}
+	}
+
+}
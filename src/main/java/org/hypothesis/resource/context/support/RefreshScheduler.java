@@ -0,0 +1,179 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hypothesis.resource.context.support;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coordinates the refresh checks of bundle files: spreads their expiry
+ * through a random jitter, runs them on an optional Executor with at most
+ * one pending refresh per file, and caps the number of refreshes running
+ * concurrently per resource protocol, e.g. "http" or "file".
+ *
+ * <p>
+ * Meant to be configured before use.
+ *
+ * @see ReloadableResourceBundleMessageSource#setRefreshExecutor
+ * @see ReloadableResourceBundleMessageSource#setMaxConcurrentRefreshes
+ * @see ReloadableResourceBundleMessageSource#setRefreshJitterSeconds
+ */
+final class RefreshScheduler {
+
+	private volatile Executor executor;
+
+	private volatile int maxConcurrentRefreshes = -1;
+
+	private volatile long jitterMillis = 0;
+
+	/** Permits for concurrent refreshes per protocol */
+	private final ConcurrentMap<String, Semaphore> permits = new ConcurrentHashMap<>();
+
+	/** Filenames with a refresh submitted to the executor but not yet run */
+	private final Set<String> pendingRefreshes = ConcurrentHashMap.newKeySet();
+
+	private final LongAdder coalescedRefreshes = new LongAdder();
+
+	void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	Executor getExecutor() {
+		return this.executor;
+	}
+
+	void setMaxConcurrentRefreshes(int maxConcurrentRefreshes) {
+		this.maxConcurrentRefreshes = maxConcurrentRefreshes;
+		this.permits.clear();
+	}
+
+	void setJitterMillis(long jitterMillis) {
+		this.jitterMillis = jitterMillis;
+	}
+
+	/**
+	 * Return a random delay to add to the expiry of a freshly loaded bundle
+	 * file, so that files loaded at the same time do not expire at once.
+	 */
+	long nextJitter() {
+		long jitterMillis = this.jitterMillis;
+		return jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0;
+	}
+
+	/**
+	 * Return whether refreshes of populated bundle files are to be run in
+	 * the background.
+	 */
+	boolean isAsynchronous() {
+		return this.executor != null;
+	}
+
+	/**
+	 * Submit the given refresh of the given file to the executor, unless a
+	 * refresh of the same file is already pending.
+	 * 
+	 * @return whether the refresh has been submitted
+	 */
+	boolean submit(String filename, Runnable refresh) {
+		if (!this.pendingRefreshes.add(filename)) {
+			this.coalescedRefreshes.increment();
+			return false;
+		}
+		try {
+			this.executor.execute(() -> {
+				try {
+					refresh.run();
+				} finally {
+					this.pendingRefreshes.remove(filename);
+				}
+			});
+			return true;
+		} catch (RuntimeException ex) {
+			this.pendingRefreshes.remove(filename);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Acquire a permit to refresh the given file.
+	 * 
+	 * @param block
+	 *            whether to wait for a permit if the protocol's cap is
+	 *            reached
+	 * @return whether a permit has been acquired, to be handed back through
+	 *         {@link #release}
+	 */
+	boolean acquire(String filename, boolean block) {
+		Semaphore semaphore = getSemaphore(filename);
+		if (semaphore == null) {
+			return true;
+		}
+		if (block) {
+			semaphore.acquireUninterruptibly();
+			return true;
+		}
+		return semaphore.tryAcquire();
+	}
+
+	void release(String filename) {
+		Semaphore semaphore = getSemaphore(filename);
+		if (semaphore != null) {
+			semaphore.release();
+		}
+	}
+
+	/**
+	 * Return the number of refreshes that were not run because a refresh of
+	 * the same file was already pending.
+	 */
+	long getCoalescedRefreshCount() {
+		return this.coalescedRefreshes.sum();
+	}
+
+	private Semaphore getSemaphore(String filename) {
+		int maxConcurrentRefreshes = this.maxConcurrentRefreshes;
+		if (maxConcurrentRefreshes <= 0) {
+			return null;
+		}
+		String protocol = getProtocol(filename);
+		Semaphore semaphore = this.permits.get(protocol);
+		if (semaphore == null) {
+			semaphore = new Semaphore(maxConcurrentRefreshes);
+			Semaphore existing = this.permits.putIfAbsent(protocol, semaphore);
+			if (existing != null) {
+				semaphore = existing;
+			}
+		}
+		return semaphore;
+	}
+
+	/**
+	 * Return the protocol of the given bundle filename, e.g. "classpath" for
+	 * "classpath:messages", or "" for a path without protocol.
+	 */
+	static String getProtocol(String filename) {
+		int colon = filename.indexOf(':');
+		// A single letter is rather a Windows drive letter.
+		return colon > 1 ? filename.substring(0, colon) : "";
+	}
+
+}
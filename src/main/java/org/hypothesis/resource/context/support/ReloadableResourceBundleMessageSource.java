@@ -16,27 +16,67 @@
 
 package org.hypothesis.resource.context.support;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.MessageFormat;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 
+import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.Validate;
+import org.hypothesis.resource.context.AbstractResource;
+import org.hypothesis.resource.context.NoSuchMessageException;
 import org.hypothesis.resource.context.ResourceLoaderAware;
 import org.hypothesis.resource.core.io.DefaultResourceLoader;
 import org.hypothesis.resource.core.io.Resource;
 import org.hypothesis.resource.core.io.ResourceLoader;
 import org.hypothesis.resource.util.DefaultPropertiesPersister;
+import org.hypothesis.resource.util.HtmlUtils;
 import org.hypothesis.resource.util.PropertiesPersister;
 
 /**
@@ -113,6 +153,23 @@ public class ReloadableResourceBundleMessageSource extends AbstractMessageSource
 
 	private static final String XML_SUFFIX = ".xml";
 
+	private static final String PATCH_SUFFIX = ".patch";
+
+	/**
+	 * Cache entry for messages that cannot be formatted with pre-escaped
+	 * literal text
+	 */
+	private static final MessageFormat UNESCAPABLE_MESSAGE_FORMAT = new MessageFormat("");
+
+	/** Key for refreshes of the bundle snapshot as a whole */
+	private static final String ALL_FILES = "*";
+
+	/** Maximum number of requested Locales to remember the supported Locale for */
+	private static final int MAX_CANONICAL_LOCALES = 1024;
+
+	/** Minimum interval between checks for Locales to evict */
+	private static final long LOCALE_EVICTION_CHECK_MILLIS = 1000;
+
 	private String[] basenames = new String[0];
 
 	private String defaultEncoding;
@@ -121,23 +178,142 @@ public class ReloadableResourceBundleMessageSource extends AbstractMessageSource
 
 	private boolean fallbackToSystemLocale = true;
 
+	private Set<Locale> supportedLocales;
+
 	private long cacheMillis = -1;
 
 	private boolean concurrentRefresh = true;
 
+	private boolean routingIndex = true;
+
+	private boolean patchFiles = false;
+
+	private int patchCompactionThreshold = 256;
+
+	private boolean atomicRefresh = false;
+
+	private String versionMarker;
+
+	private long coldStartWaitMillis = -1;
+
+	private volatile ExecutorService backgroundExecutor;
+
+	/** Whether destroyed, no longer creating a backgroundExecutor */
+	private boolean backgroundDestroyed;
+
+	private long localeIdleMillis = -1;
+
+	private boolean evictLocalesOnMemoryPressure = false;
+
+	private long memoryBudget = -1;
+
+	private StringInterner stringInterner;
+
+	private final RefreshScheduler refreshScheduler = new RefreshScheduler();
+
 	private PropertiesPersister propertiesPersister = new DefaultPropertiesPersister();
 
 	private ResourceLoader resourceLoader = new DefaultResourceLoader();
 
+	/** Supported Locale per requested Locale, if supported Locales are set */
+	private final ConcurrentMap<Locale, Locale> canonicalLocales = new ConcurrentHashMap<>();
+
 	/** Cache to hold filename lists per Locale */
 	private final ConcurrentMap<String, Map<Locale, List<String>>> cachedFilenames = new ConcurrentHashMap<>();
 
+	/** Estimated weight of the cached filename lists, kept up to date */
+	private final LongAdder cachedFilenamesWeight = new LongAdder();
+
 	/** Cache to hold already loaded properties per filename */
 	private final ConcurrentMap<String, PropertiesHolder> cachedProperties = new ConcurrentHashMap<>();
 
 	/** Cache to hold merged loaded properties per locale */
 	private final ConcurrentMap<Locale, PropertiesHolder> cachedMergedProperties = new ConcurrentHashMap<>();
 
+	/** Cache to hold messages resolved through MessageKeys, per locale */
+	private final ConcurrentMap<Locale, MessageKeyTable> cachedKeyTables = new ConcurrentHashMap<>();
+
+	/** Cache to hold the bundle filename defining each message code, per locale */
+	private final ConcurrentMap<Locale, RoutingIndex> cachedRoutingIndexes = new ConcurrentHashMap<>();
+
+	/** Number of lookups that waited for a load by another thread */
+	private final LongAdder collapsedLoads = new LongAdder();
+
+	/** Merged properties being built, per Locale */
+	private final SingleFlight<Locale, PropertiesHolder> mergedPropertiesLoads = new SingleFlight<>(
+			this.collapsedLoads);
+
+	/** Routing indexes being built, per Locale */
+	private final SingleFlight<Locale, RoutingIndex> routingIndexLoads = new SingleFlight<>(this.collapsedLoads);
+
+	/** Incremented whenever routing indexes get invalidated */
+	private final AtomicLong routingGeneration = new AtomicLong();
+
+	/** Filename lists being calculated, per basename and Locale */
+	private final SingleFlight<Map.Entry<String, Locale>, List<String>> filenamesLoads = new SingleFlight<>(
+			this.collapsedLoads);
+
+	/** Loads of the bundle files of a Locale, per Locale accessed */
+	private final ConcurrentMap<Locale, CompletableFuture<Void>> localeLoads = new ConcurrentHashMap<>();
+
+	/** Access tracking per Locale looked up, if evicting Locales */
+	private final ConcurrentMap<Locale, LocaleSlice> localeSlices = new ConcurrentHashMap<>();
+
+	/** Canaries of Locales cleared by the garbage collector */
+	private final ReferenceQueue<Object> clearedLocaleCanaries = new ReferenceQueue<>();
+
+	/** Locales evicted and not looked up since, for counting reloads */
+	private final Set<Locale> evictedLocales = ConcurrentHashMap.newKeySet();
+
+	/** Whether a check for Locales and entries to evict is pending or running */
+	private final AtomicBoolean localeEvictionScheduled = new AtomicBoolean();
+
+	private volatile long nextLocaleEvictionCheck;
+
+	/**
+	 * Estimated memory usage to exceed before trimming again after a trim
+	 * that could not get back within the memory budget, or 0
+	 */
+	private long memoryBudgetRetrimWeight;
+
+	private final LongAdder evictedLocaleCount = new LongAdder();
+
+	private final LongAdder reloadedLocaleCount = new LongAdder();
+
+	private final LongAdder memoryBudgetTrimCount = new LongAdder();
+
+	/** Generation of the loaded bundles, incremented on every reload */
+	private final AtomicLong bundleGeneration = new AtomicLong();
+
+	/** Snapshot of all loaded bundle files, when refreshing them atomically */
+	private volatile BundleSnapshot bundleSnapshot = new BundleSnapshot(Collections.emptyMap(),
+			Collections.emptyMap(), System.currentTimeMillis());
+
+	/** Lock for building and publishing bundle snapshots */
+	private final ReentrantLock snapshotLock = new ReentrantLock();
+
+	/** Whether a bundle file changed since the last snapshot was published */
+	private boolean snapshotChanged;
+
+	/** Bundle files changed since the last snapshot was published */
+	private final Set<String> snapshotChangedFilenames = new HashSet<>();
+
+	/** Reload events to publish along with the next bundle snapshot */
+	private final List<BundleReloadEvent> pendingReloadEvents = new ArrayList<>();
+
+	private final List<BundleReloadListener> reloadListeners = new CopyOnWriteArrayList<>();
+
+	/** Monitor for checking the version marker */
+	private final Object versionMarkerMonitor = new Object();
+
+	/** Last seen version of the version marker, guarded by its monitor */
+	private String markerVersion;
+
+	private volatile long markerCheckTimestamp = -1;
+
+	/** Time at which the version marker was last seen changed */
+	private volatile long markerChangeTimestamp = 0;
+
 	/**
 	 * Set a single basename, following the basic ResourceBundle convention of
 	 * not specifying file extension or language codes, but in contrast to
@@ -242,6 +418,26 @@ public class ReloadableResourceBundleMessageSource extends AbstractMessageSource
 		this.fallbackToSystemLocale = fallbackToSystemLocale;
 	}
 
+	/**
+	 * Set the Locales that bundle files are provided for. Lookups for any
+	 * other Locale get mapped to the nearest supported Locale - dropping
+	 * script and extensions, then the variant, then the country - or else to
+	 * {@link Locale#ROOT}, i.e. to the default files, before any per-Locale
+	 * caching takes place.
+	 * <p>
+	 * Default is none: Every requested Locale gets cached on its own, so that
+	 * per-Locale caches grow with the number of distinct Locales requested,
+	 * e.g. when derived from "Accept-Language" headers. With supported Locales
+	 * set, these caches are bounded by the supported Locales. Note that
+	 * messages then get formatted for the supported Locale as well.
+	 * 
+	 * @see #canonicalizeLocale
+	 */
+	public void setSupportedLocales(Locale... supportedLocales) {
+		this.supportedLocales = (supportedLocales != null ? new HashSet<>(Arrays.asList(supportedLocales)) : null);
+		this.canonicalLocales.clear();
+	}
+
 	/**
 	 * Set the number of seconds to cache loaded properties files.
 	 * <ul>
@@ -277,6 +473,341 @@ public class ReloadableResourceBundleMessageSource extends AbstractMessageSource
 		this.concurrentRefresh = concurrentRefresh;
 	}
 
+	/**
+	 * Specify whether to refresh all bundle files together and publish them
+	 * atomically, rather than refreshing each bundle file on its own.
+	 * <p>
+	 * Default is "false". Switch this flag to "true" to hold all loaded bundle
+	 * files, and the merged properties when caching forever, in an immutable
+	 * snapshot: Once "cacheSeconds" have passed, a new snapshot gets built -
+	 * on the "refreshExecutor" if set, else by one of the accessing threads -
+	 * and published with a single swap, while {@link #clearCache()} builds a
+	 * freshly loaded snapshot rather than emptying the cache. Lookups never
+	 * wait for a refresh, never see some bundle files reloaded but others not
+	 * yet, and never trigger loads of bundle files already in the snapshot.
+	 * Only bundle files not accessed before get loaded on access, and added to
+	 * the current snapshot. The "concurrentRefresh" and "refreshJitterSeconds"
+	 * settings do not apply in this mode.
+	 * 
+	 * @see #setCacheSeconds
+	 * @see #setRefreshExecutor
+	 */
+	public void setAtomicRefresh(boolean atomicRefresh) {
+		this.atomicRefresh = atomicRefresh;
+	}
+
+	/**
+	 * Set the location of a version marker resource to trigger refreshes of
+	 * bundle files with, when refreshing bundle files with a non-negative
+	 * "cacheSeconds" value: e.g. "WEB-INF/messages.version".
+	 * <p>
+	 * Default is none: The last-modified timestamp of every bundle file gets
+	 * checked once its "cacheSeconds" have passed. With a version marker, only
+	 * the marker gets checked, at most once per "cacheSeconds" - through its
+	 * last-modified timestamp or, if not in the file system, its content -
+	 * and bundle files are re-validated only after it has changed. Deploy the
+	 * changed bundle files first, then touch or rewrite the marker. The
+	 * {@code clearCacheFor...} methods still read bundle files right away.
+	 * 
+	 * @see #setCacheSeconds
+	 * @see #clearCacheForBasename
+	 */
+	public void setVersionMarker(String versionMarker) {
+		this.versionMarker = versionMarker;
+	}
+
+	/**
+	 * Set the maximum number of milliseconds that a lookup waits for the
+	 * bundle files of a Locale not accessed before to be loaded.
+	 * <p>
+	 * Default is -1: A lookup for a new Locale loads the bundle files of that
+	 * Locale itself. With a non-negative value, the bundle files of a new
+	 * Locale get loaded in the background - on the "refreshExecutor" if set,
+	 * else on a daemon thread of this MessageSource, shut down by
+	 * {@link #destroy()} - and lookups still
+	 * waiting after the given time are answered from those bundle files in
+	 * the Locale's chain that have been loaded already, e.g. the default file
+	 * of each basename. Lookups of codes not defined there keep waiting for
+	 * the Locale to be loaded.
+	 * 
+	 * @see #setRefreshExecutor
+	 * @see #calculateAllFilenames
+	 */
+	public void setColdStartWaitMillis(long coldStartWaitMillis) {
+		this.coldStartWaitMillis = coldStartWaitMillis;
+	}
+
+	/**
+	 * Set the number of seconds after which the cached state of a Locale that
+	 * has not been looked up since gets evicted: its filename lists, merged
+	 * properties and indexes, the bundle files specific to it that no other
+	 * cached Locale uses, and the messages compiled for it. The Locale gets
+	 * reloaded transparently on its next lookup.
+	 * <p>
+	 * Default is -1: Locales never get evicted. Idle Locales are looked for
+	 * at most once per second, triggered by lookups but in the background,
+	 * as with {@link #setColdStartWaitMillis "coldStartWaitMillis"}.
+	 * 
+	 * @see #setEvictLocalesOnMemoryPressure
+	 * @see #getEvictedLocaleCount
+	 */
+	public void setLocaleIdleSeconds(int localeIdleSeconds) {
+		this.localeIdleMillis = (localeIdleSeconds >= 0 ? localeIdleSeconds * 1000L : -1);
+	}
+
+	/**
+	 * Specify whether to evict the cached state of the least recently used
+	 * Locales when memory runs low, just like idle Locales. Relies on the
+	 * garbage collector clearing a soft reference per Locale, which it does
+	 * for the references accessed least recently first.
+	 * <p>
+	 * Default is "false".
+	 * 
+	 * @see #setLocaleIdleSeconds
+	 * @see #getEvictedLocaleCount
+	 */
+	public void setEvictLocalesOnMemoryPressure(boolean evictLocalesOnMemoryPressure) {
+		this.evictLocalesOnMemoryPressure = evictLocalesOnMemoryPressure;
+	}
+
+	/**
+	 * Return the number of times the cached state of a Locale got evicted,
+	 * because of idleness or memory pressure.
+	 * 
+	 * @see #setLocaleIdleSeconds
+	 * @see #setEvictLocalesOnMemoryPressure
+	 */
+	public long getEvictedLocaleCount() {
+		return this.evictedLocaleCount.sum();
+	}
+
+	/**
+	 * Return the number of times an evicted Locale got looked up again and
+	 * therefore reloaded.
+	 * 
+	 * @see #getEvictedLocaleCount
+	 */
+	public long getReloadedLocaleCount() {
+		return this.reloadedLocaleCount.sum();
+	}
+
+	/**
+	 * Set the number of bytes that the cached state of this message source
+	 * should take at most, as estimated by {@link #getEstimatedMemoryUsage()}.
+	 * <p>
+	 * Default is -1: no budget. With a budget, the estimated usage is checked
+	 * at most once per second, triggered by lookups but in the background,
+	 * as with {@link #setLocaleIdleSeconds "localeIdleSeconds"}. When over
+	 * budget, cached entries that get rebuilt on demand are evicted one by
+	 * one until down to 90% of the budget: formatted messages, the compiled,
+	 * encoded and escaped messages of a code, the MessageFormats of a
+	 * passed-in default message, and the key tables and routing indexes of a
+	 * Locale. The least recently used entries go first, the heaviest first
+	 * among entries used at the same time, with recency tracked per second.
+	 * If evicting entries cannot suffice, the cached state of the least
+	 * recently used Locales gets evicted first, as with "localeIdleSeconds",
+	 * one Locale at a time and always keeping the most recently used Locale.
+	 * If even that cannot suffice, the entries are kept and trimming waits
+	 * until the usage has grown by another tenth of the budget.
+	 * 
+	 * @see #getMemoryBudgetTrimCount
+	 */
+	public void setMemoryBudgetBytes(long memoryBudgetBytes) {
+		this.memoryBudget = memoryBudgetBytes;
+	}
+
+	/**
+	 * Return the estimated number of bytes taken by the cached state of this
+	 * message source: filename lists, loaded and merged properties, indexes,
+	 * compiled MessageFormats and formatted messages.
+	 * <p>
+	 * The estimate is rough and rather errs on the high side; it is meant
+	 * for sizing the heap and for enforcing the memory budget, not as an
+	 * exact measure. Each cache keeps its weight up to date as entries come
+	 * and go, so computing the estimate just sums up the weights per cache
+	 * and per bundle file.
+	 * 
+	 * @see #setMemoryBudgetBytes
+	 */
+	public long getEstimatedMemoryUsage() {
+		long weight = getFormattedMessageCacheWeight() + getDefaultMessageFormatsWeight()
+				+ this.cachedFilenamesWeight.sum();
+		for (PropertiesHolder propHolder : getCachedHolders()) {
+			weight += propHolder.getWeight();
+		}
+		for (MessageKeyTable keyTable : this.cachedKeyTables.values()) {
+			weight += MemoryWeigher.ENTRY + keyTable.getWeight();
+		}
+		for (RoutingIndex routingIndex : this.cachedRoutingIndexes.values()) {
+			weight += MemoryWeigher.ENTRY + routingIndex.getWeight();
+		}
+		return weight;
+	}
+
+	/**
+	 * Return the number of times the cached state got trimmed because the
+	 * estimated memory usage exceeded the memory budget.
+	 * 
+	 * @see #setMemoryBudgetBytes
+	 */
+	public long getMemoryBudgetTrimCount() {
+		return this.memoryBudgetTrimCount.sum();
+	}
+
+	/**
+	 * Specify whether to deduplicate the message codes and messages of the
+	 * loaded bundle files, so that equal Strings across all bundle files and
+	 * Locales - e.g. brand names or untranslated messages - share one
+	 * instance, as do the merged properties built from them.
+	 * <p>
+	 * Default is "false". Deduplication takes place when loading a bundle or
+	 * patch file, through a table of weakly referenced Strings private to
+	 * this message source.
+	 * 
+	 * @see #getDeduplicatedBytes
+	 */
+	public void setDeduplicateStrings(boolean deduplicateStrings) {
+		this.stringInterner = (deduplicateStrings ? new StringInterner() : null);
+	}
+
+	/**
+	 * Return the estimated number of bytes saved by deduplicating the Strings
+	 * of the loaded bundle files, in total.
+	 * 
+	 * @see #setDeduplicateStrings
+	 */
+	public long getDeduplicatedBytes() {
+		StringInterner interner = this.stringInterner;
+		return interner != null ? interner.getSavedBytes() : 0;
+	}
+
+	/**
+	 * Set the Executor to run refresh checks of already loaded bundle files
+	 * with, when refreshing bundle files with a positive "cacheSeconds" value
+	 * and "concurrentRefresh" enabled.
+	 * <p>
+	 * Default is none: The thread accessing a stale bundle file performs the
+	 * refresh check itself, while other threads keep using the existing
+	 * properties. With an Executor, all threads keep using the existing
+	 * properties and the refresh check gets submitted to the Executor, with
+	 * at most one pending check per bundle file; further requests for the
+	 * same file are coalesced into it.
+	 * 
+	 * @see #setConcurrentRefresh
+	 * @see #getCoalescedRefreshCount
+	 */
+	public void setRefreshExecutor(Executor refreshExecutor) {
+		this.refreshScheduler.setExecutor(refreshExecutor);
+	}
+
+	/**
+	 * Set the maximum number of refresh checks of bundle files that may run
+	 * concurrently per resource protocol, e.g. for all "http:" or all
+	 * "file:" locations.
+	 * <p>
+	 * Default is no limit. When the limit is reached, stale bundle files
+	 * are served as they are until their next access, if "concurrentRefresh"
+	 * is enabled, while loads of bundle files not cached yet wait for their
+	 * turn. To be configured before use.
+	 */
+	public void setMaxConcurrentRefreshes(int maxConcurrentRefreshes) {
+		this.refreshScheduler.setMaxConcurrentRefreshes(maxConcurrentRefreshes);
+	}
+
+	/**
+	 * Set the maximum number of seconds to randomly extend the "cacheSeconds"
+	 * period of each loaded bundle file by, so that files loaded at the same
+	 * time do not all go stale at the same time.
+	 * <p>
+	 * Default is 0: All files expire exactly "cacheSeconds" after their last
+	 * refresh check.
+	 * 
+	 * @see #setCacheSeconds
+	 */
+	public void setRefreshJitterSeconds(int refreshJitterSeconds) {
+		this.refreshScheduler.setJitterMillis(refreshJitterSeconds * 1000L);
+	}
+
+	/**
+	 * Return the number of lookups that waited for another thread to build
+	 * the merged properties or the filename list of a Locale, rather than
+	 * building them again.
+	 * 
+	 * @see #getMergedProperties
+	 * @see #calculateAllFilenames
+	 */
+	public long getCollapsedLoadCount() {
+		return this.collapsedLoads.sum();
+	}
+
+	/**
+	 * Return the number of refresh checks that were coalesced into a pending
+	 * check of the same bundle file.
+	 * 
+	 * @see #setRefreshExecutor
+	 */
+	public long getCoalescedRefreshCount() {
+		return this.refreshScheduler.getCoalescedRefreshCount();
+	}
+
+	/**
+	 * Specify whether to route message lookups through a per-locale index of
+	 * message codes to the bundle file defining them, when refreshing bundle
+	 * files with a positive "cacheSeconds" value.
+	 * <p>
+	 * Default is "true": The index is built from all bundle files of a Locale
+	 * on first lookup, once for concurrent lookups, and rebuilt whenever one
+	 * of those files gets reloaded or the refresh interval has passed. Lookups go straight to the one file that
+	 * defines the code instead of probing all basenames in order, and unknown
+	 * codes are detected without touching any file. Switch this flag to
+	 * "false" to save the memory taken by the index, e.g. with a single small
+	 * basename.
+	 * 
+	 * @see #setCacheSeconds
+	 * @see #setBasenames
+	 */
+	public void setRoutingIndex(boolean routingIndex) {
+		this.routingIndex = routingIndex;
+	}
+
+	/**
+	 * Specify whether to apply patch files on top of the bundle files, when
+	 * refreshing bundle files with a non-negative "cacheSeconds" value.
+	 * <p>
+	 * A patch file sits next to its bundle file, named after it with a
+	 * ".patch" suffix: e.g. "WEB-INF/messages_de.patch.properties" for
+	 * "WEB-INF/messages_de.properties". Its entries override the entries of
+	 * the bundle file; removing an entry from the patch file restores the
+	 * value of the bundle file. When only the patch file has changed on a
+	 * refresh check, just the patch file is parsed and laid over the already
+	 * loaded bundle, and compiled messages are kept for all codes whose
+	 * message did not change - so small, frequent edits do not require
+	 * reparsing large bundle files.
+	 * <p>
+	 * Default is "false". Patch files are ignored when caching forever.
+	 * 
+	 * @see #setPatchCompactionThreshold
+	 * @see #setCacheSeconds
+	 */
+	public void setPatchFiles(boolean patchFiles) {
+		this.patchFiles = patchFiles;
+	}
+
+	/**
+	 * Set the number of patch file entries from which on the patch gets
+	 * compacted into a copy of the bundle's properties, rather than being
+	 * laid over them.
+	 * <p>
+	 * Default is 256. An overlay costs a second lookup for codes not in the
+	 * patch, while compaction costs a copy of all properties on every patch
+	 * change.
+	 * 
+	 * @see #setPatchFiles
+	 */
+	public void setPatchCompactionThreshold(int patchCompactionThreshold) {
+		this.patchCompactionThreshold = patchCompactionThreshold;
+	}
+
 	/**
 	 * Set the PropertiesPersister to use for parsing properties files.
 	 * <p>
@@ -311,23 +842,9 @@ public class ReloadableResourceBundleMessageSource extends AbstractMessageSource
 	 */
 	@Override
 	protected String resolveCodeWithoutArguments(String code, Locale locale) {
-		if (this.cacheMillis < 0) {
-			PropertiesHolder propHolder = getMergedProperties(locale);
-			String result = propHolder.getProperty(code);
-			if (result != null) {
-				return result;
-			}
-		} else {
-			for (String basename : this.basenames) {
-				List<String> filenames = calculateAllFilenames(basename, locale);
-				for (String filename : filenames) {
-					PropertiesHolder propHolder = getProperties(filename);
-					String result = propHolder.getProperty(code);
-					if (result != null) {
-						return result;
-					}
-				}
-			}
+		PropertiesHolder propHolder = findPropertiesHolder(code, canonicalizeLocale(locale));
+		if (propHolder != null) {
+			return propHolder.getProperty(code);
 		}
 		return null;
 	}
@@ -338,427 +855,2542 @@ public class ReloadableResourceBundleMessageSource extends AbstractMessageSource
 	 */
 	@Override
 	protected MessageFormat resolveCode(String code, Locale locale) {
-		if (this.cacheMillis < 0) {
-			PropertiesHolder propHolder = getMergedProperties(locale);
-			MessageFormat result = propHolder.getMessageFormat(code, locale);
-			if (result != null) {
-				return result;
-			}
-		} else {
-			for (String basename : this.basenames) {
-				List<String> filenames = calculateAllFilenames(basename, locale);
-				for (String filename : filenames) {
-					PropertiesHolder propHolder = getProperties(filename);
-					MessageFormat result = propHolder.getMessageFormat(code, locale);
-					if (result != null) {
-						return result;
-					}
-				}
-			}
+		locale = canonicalizeLocale(locale);
+		PropertiesHolder propHolder = findPropertiesHolder(code, locale);
+		if (propHolder != null) {
+			return propHolder.getMessageFormat(code, locale);
 		}
 		return null;
 	}
 
 	/**
-	 * Get a PropertiesHolder that contains the actually visible properties for
-	 * a Locale, after merging all specified resource bundles. Either fetches
-	 * the holder from the cache or freshly loads it.
-	 * <p>
-	 * Only used when caching resource bundle contents forever, i.e. with
-	 * cacheSeconds < 0. Therefore, merged properties are always cached forever.
+	 * Resolves the given message code as key in the retrieved bundle files,
+	 * using a cached MessageTemplate instance per message code.
 	 */
-	protected PropertiesHolder getMergedProperties(Locale locale) {
-		PropertiesHolder mergedHolder = this.cachedMergedProperties.get(locale);
-		if (mergedHolder != null) {
-			return mergedHolder;
-		}
-		Properties mergedProps = newProperties();
-		mergedHolder = new PropertiesHolder(mergedProps, -1);
-		for (int i = this.basenames.length - 1; i >= 0; i--) {
-			List<String> filenames = calculateAllFilenames(this.basenames[i], locale);
-			for (int j = filenames.size() - 1; j >= 0; j--) {
-				String filename = filenames.get(j);
-				PropertiesHolder propHolder = getProperties(filename);
-				if (propHolder.getProperties() != null) {
-					mergedProps.putAll(propHolder.getProperties());
-				}
-			}
-		}
-		PropertiesHolder existing = this.cachedMergedProperties.putIfAbsent(locale, mergedHolder);
-		if (existing != null) {
-			mergedHolder = existing;
+	@Override
+	MessageTemplate resolveTemplate(String code, Locale locale) {
+		locale = canonicalizeLocale(locale);
+		PropertiesHolder propHolder = findPropertiesHolder(code, locale);
+		if (propHolder != null) {
+			return propHolder.getMessageTemplate(code, locale);
 		}
-		return mergedHolder;
+		return null;
 	}
 
 	/**
-	 * Calculate all filenames for the given bundle basename and Locale. Will
-	 * calculate filenames for the given Locale, the system Locale (if
-	 * applicable), and the default file.
+	 * Resolve the given message without arguments as bytes pre-encoded in the
+	 * given charset.
+	 * <p>
+	 * Messages found in this MessageSource's bundle files are encoded once and
+	 * cached along with the loaded properties, so repeated calls do not
+	 * perform any encoding work. Messages resolved otherwise, e.g. through the
+	 * parent MessageSource, are encoded on every call.
 	 * 
-	 * @param basename
-	 *            the basename of the bundle
+	 * @param code
+	 *            the code to lookup up, such as 'calculator.noRateSet'
 	 * @param locale
-	 *            the locale
-	 * @return the List of filenames to check
-	 * @see #setFallbackToSystemLocale
-	 * @see #calculateFilenamesForLocale
+	 *            the Locale in which to do the lookup
+	 * @param charset
+	 *            the charset to encode the message with
+	 * @return a read-only buffer holding the encoded message
+	 * @throws NoSuchMessageException
+	 *             if the message wasn't found
+	 * @see #writeMessage(String, Object[], Locale, Charset, OutputStream)
 	 */
-	protected List<String> calculateAllFilenames(String basename, Locale locale) {
-		Map<Locale, List<String>> localeMap = this.cachedFilenames.get(basename);
-		if (localeMap != null) {
-			List<String> filenames = localeMap.get(locale);
-			if (filenames != null) {
-				return filenames;
-			}
-		}
-		List<String> filenames = new ArrayList<>(7);
-		filenames.addAll(calculateFilenamesForLocale(basename, locale));
-		if (this.fallbackToSystemLocale && !locale.equals(Locale.getDefault())) {
-			List<String> fallbackFilenames = calculateFilenamesForLocale(basename, Locale.getDefault());
-			for (String fallbackFilename : fallbackFilenames) {
-				if (!filenames.contains(fallbackFilename)) {
-					// Entry for fallback locale that isn't already in filenames
-					// list.
-					filenames.add(fallbackFilename);
+	public ByteBuffer getEncodedMessage(String code, Locale locale, Charset charset) throws NoSuchMessageException {
+		return ByteBuffer.wrap(getEncodedMessageBytes(code, null, locale, charset)).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Resolve the given message and write it, encoded in the given charset, to
+	 * the given OutputStream.
+	 * <p>
+	 * Messages without arguments are written from their cached encoded form,
+	 * as with {@link #getEncodedMessage}.
+	 * 
+	 * @param code
+	 *            the code to lookup up, such as 'calculator.noRateSet'
+	 * @param args
+	 *            array of arguments that will be filled in for params within
+	 *            the message, or {@code null} if none
+	 * @param locale
+	 *            the Locale in which to do the lookup
+	 * @param charset
+	 *            the charset to encode the message with
+	 * @param out
+	 *            the OutputStream to write to
+	 * @throws NoSuchMessageException
+	 *             if the message wasn't found
+	 * @throws IOException
+	 *             in case of I/O errors
+	 */
+	public void writeMessage(String code, Object[] args, Locale locale, Charset charset, OutputStream out)
+			throws NoSuchMessageException, IOException {
+		out.write(getEncodedMessageBytes(code, args, locale, charset));
+	}
+
+	/**
+	 * Resolve the given message and put it, encoded in the given charset, into
+	 * the given ByteBuffer.
+	 * <p>
+	 * Messages without arguments are written from their cached encoded form,
+	 * as with {@link #getEncodedMessage}.
+	 * 
+	 * @param code
+	 *            the code to lookup up, such as 'calculator.noRateSet'
+	 * @param args
+	 *            array of arguments that will be filled in for params within
+	 *            the message, or {@code null} if none
+	 * @param locale
+	 *            the Locale in which to do the lookup
+	 * @param charset
+	 *            the charset to encode the message with
+	 * @param target
+	 *            the buffer to put the encoded message into
+	 * @throws NoSuchMessageException
+	 *             if the message wasn't found
+	 * @throws java.nio.BufferOverflowException
+	 *             if the encoded message does not fit into the remaining
+	 *             space of the buffer
+	 */
+	public void writeMessage(String code, Object[] args, Locale locale, Charset charset, ByteBuffer target)
+			throws NoSuchMessageException {
+		target.put(getEncodedMessageBytes(code, args, locale, charset));
+	}
+
+	/**
+	 * Resolve the given message as bytes encoded in the given charset, taking
+	 * the cached encoded form for messages without arguments that are defined
+	 * in this MessageSource's bundle files. The returned array must not be
+	 * modified.
+	 */
+	private byte[] getEncodedMessageBytes(String code, Object[] args, Locale locale, Charset charset) {
+		Validate.notNull(charset, "Charset must not be null");
+		if (code != null && !isAlwaysUseMessageFormat() && ArrayUtils.isEmpty(args)) {
+			PropertiesHolder propHolder = findPropertiesHolder(code,
+					canonicalizeLocale(locale != null ? locale : Locale.getDefault()));
+			if (propHolder != null) {
+				return propHolder.getEncodedProperty(code, charset);
+			}
+		}
+		return getMessage(code, args, locale).getBytes(charset);
+	}
+
+	/**
+	 * Resolve the given message, HTML-escaped for embedding into HTML element
+	 * content or quoted attribute values.
+	 * <p>
+	 * Messages without arguments that are found in this MessageSource's bundle
+	 * files are escaped once and cached along with the loaded properties.
+	 * Messages with arguments are formatted through a MessageFormat whose
+	 * literal text has been escaped upfront, so that only the formatted
+	 * argument values are escaped per call. Messages containing "choice",
+	 * "plural" or "select" arguments, as well as messages resolved otherwise,
+	 * e.g. through the parent MessageSource, are formatted first and then
+	 * escaped as a whole.
+	 * 
+	 * @param code
+	 *            the code to lookup up, such as 'calculator.noRateSet'
+	 * @param args
+	 *            array of arguments that will be filled in for params within
+	 *            the message, or {@code null} if none
+	 * @param locale
+	 *            the Locale in which to do the lookup
+	 * @return the resolved and HTML-escaped message
+	 * @throws NoSuchMessageException
+	 *             if the message wasn't found
+	 * @see org.hypothesis.resource.util.HtmlUtils#htmlEscape(String)
+	 */
+	public String getHtmlEscapedMessage(String code, Object[] args, Locale locale) throws NoSuchMessageException {
+		if (code != null) {
+			Locale localeToUse = canonicalizeLocale(locale != null ? locale : Locale.getDefault());
+			PropertiesHolder propHolder = findPropertiesHolder(code, localeToUse);
+			if (propHolder != null) {
+				if (!isAlwaysUseMessageFormat() && ArrayUtils.isEmpty(args)) {
+					return propHolder.getHtmlEscapedProperty(code);
+				}
+				MessageFormat messageFormat = propHolder.getHtmlEscapedMessageFormat(code, localeToUse);
+				if (messageFormat != null) {
+					Object[] argsToUse = resolveArguments(args, localeToUse);
+					synchronized (messageFormat) {
+						return messageFormat.format(argsToUse);
+					}
 				}
 			}
 		}
-		filenames.add(basename);
-		if (localeMap == null) {
-			localeMap = new ConcurrentHashMap<>();
-			Map<Locale, List<String>> existing = this.cachedFilenames.putIfAbsent(basename, localeMap);
-			if (existing != null) {
-				localeMap = existing;
+		return HtmlUtils.htmlEscape(getMessage(code, args, locale));
+	}
+
+	/**
+	 * Resolves keys issued by this MessageSource through a per-locale table
+	 * indexed by the key's slot, falling back to code-based resolution for
+	 * foreign keys. The tables are discarded whenever a bundle gets reloaded
+	 * and, when refreshing, after "cacheSeconds" have passed.
+	 */
+	@Override
+	protected String getMessageInternal(MessageKey key, Object[] args, Locale locale) {
+		if (key == null || !key.isIssuedBy(this) || this.cacheMillis == 0) {
+			return super.getMessageInternal(key, args, locale);
+		}
+		if (locale == null) {
+			locale = Locale.getDefault();
+		}
+		recordHotMessage(key.getCode(), locale, isAlwaysUseMessageFormat() || !ArrayUtils.isEmpty(args));
+		locale = canonicalizeLocale(locale);
+		KeyedMessage message = getKeyedMessage(key, locale);
+		Object[] argsToUse = args;
+
+		if (!isAlwaysUseMessageFormat() && ArrayUtils.isEmpty(args)) {
+			if (message != null) {
+				return message.getMessage();
 			}
 		}
-		localeMap.put(locale, filenames);
-		return filenames;
+
+		else {
+			argsToUse = resolveArguments(args, locale);
+			if (message != null) {
+				MessageFormat messageFormat = message.getMessageFormat(locale);
+				synchronized (messageFormat) {
+					return messageFormat.format(argsToUse);
+				}
+			}
+		}
+
+		return getCommonOrParentMessage(key.getCode(), argsToUse, locale);
 	}
 
 	/**
-	 * Calculate the filenames for the given bundle basename and Locale,
-	 * appending language code, country code, and variant code. E.g.: basename
-	 * "messages", Locale "de_AT_oo" -> "messages_de_AT_OO", "messages_de_AT",
-	 * "messages_de".
-	 * <p>
-	 * Follows the rules defined by {@link java.util.Locale#toString()}.
+	 * Get the message for the given key from the table of the given Locale,
+	 * resolving it from the bundle files on first access.
 	 * 
-	 * @param basename
-	 *            the basename of the bundle
-	 * @param locale
-	 *            the locale
-	 * @return the List of filenames to check
+	 * @return the resolved message, or {@code null} if the key is not defined
+	 *         in any of the bundle files
 	 */
-	protected List<String> calculateFilenamesForLocale(String basename, Locale locale) {
-		List<String> result = new ArrayList<>(3);
-		String language = locale.getLanguage();
-		String country = locale.getCountry();
-		String variant = locale.getVariant();
-		StringBuilder temp = new StringBuilder(basename);
+	private KeyedMessage getKeyedMessage(MessageKey key, Locale locale) {
+		touchLocale(locale);
+		MessageKeyTable table = this.cachedKeyTables.get(locale);
+		if (table == null || !table.isValid(this.bundleGeneration.get())) {
+			long expiry = this.cacheMillis < 0 ? Long.MAX_VALUE : System.currentTimeMillis() + this.cacheMillis;
+			table = new MessageKeyTable(this.bundleGeneration.get(), expiry, getMessageKeyCount());
+			this.cachedKeyTables.put(locale, table);
+		}
+		Object entry = table.get(key.getSlot());
+		if (entry == null) {
+			PropertiesHolder propHolder = findPropertiesHolder(key.getCode(), locale);
+			entry = propHolder != null ? new KeyedMessage(propHolder, key.getCode()) : KeyedMessage.NOT_FOUND;
+			MessageKeyTable updated = table.set(key.getSlot(), entry);
+			if (updated != table) {
+				this.cachedKeyTables.replace(locale, table, updated);
+			}
+		}
+		return entry != KeyedMessage.NOT_FOUND ? (KeyedMessage) entry : null;
+	}
 
-		temp.append('_');
-		if (language.length() > 0) {
-			temp.append(language);
-			result.add(0, temp.toString());
+	/**
+	 * Returns the nearest of the supported Locales, if set, and the given
+	 * Locale as-is otherwise. Can be overridden to map Locales differently,
+	 * e.g. "zh_HK" to "zh_TW".
+	 * 
+	 * @see #setSupportedLocales
+	 */
+	@Override
+	protected Locale canonicalizeLocale(Locale locale) {
+		Set<Locale> supportedLocales = this.supportedLocales;
+		if (supportedLocales == null || supportedLocales.contains(locale)) {
+			return locale;
+		}
+		Locale canonicalLocale = this.canonicalLocales.get(locale);
+		if (canonicalLocale == null) {
+			canonicalLocale = Locale.ROOT;
+			String language = locale.getLanguage();
+			String country = locale.getCountry();
+			Locale[] candidates = { new Locale(language, country, locale.getVariant()), new Locale(language, country),
+					new Locale(language) };
+			for (Locale candidate : candidates) {
+				if (supportedLocales.contains(candidate)) {
+					canonicalLocale = candidate;
+					break;
+				}
+			}
+			// Bounded, as the requested Locales are not.
+			if (this.canonicalLocales.size() < MAX_CANONICAL_LOCALES) {
+				this.canonicalLocales.put(locale, canonicalLocale);
+			}
 		}
+		return canonicalLocale;
+	}
 
-		temp.append('_');
-		if (country.length() > 0) {
-			temp.append(country);
-			result.add(0, temp.toString());
+	/**
+	 * Find the PropertiesHolder that provides the given message code for the
+	 * given Locale: the merged holder when caching forever, else the holder
+	 * of the first bundle file defining the code, in order of basenames and
+	 * from the most specific to the default file for each basename.
+	 * 
+	 * @return the holder, or {@code null} if no bundle file defines the code
+	 * @see #setRoutingIndex
+	 */
+	private PropertiesHolder findPropertiesHolder(String code, Locale locale) {
+		touchLocale(locale);
+		if (this.coldStartWaitMillis >= 0 && !awaitLocale(locale, this.coldStartWaitMillis)) {
+			// Still loading -> answer from the bundle files loaded already.
+			PropertiesHolder propHolder = findLoadedPropertiesHolder(code, locale);
+			if (propHolder != null) {
+				return propHolder;
+			}
+			awaitLocale(locale, Long.MAX_VALUE);
+		}
+		// Resolve against one snapshot, if any, throughout the lookup.
+		BundleSnapshot snapshot = this.atomicRefresh ? this.bundleSnapshot : null;
+		if (this.cacheMillis < 0) {
+			PropertiesHolder propHolder = getMergedProperties(locale);
+			if (propHolder.getProperty(code) != null) {
+				return propHolder;
+			}
+		} else {
+			if (this.routingIndex && this.cacheMillis > 0) {
+				String filename = getRoutingIndex(locale).getFilename(code);
+				if (filename == null) {
+					return null;
+				}
+				PropertiesHolder propHolder = getProperties(snapshot, filename);
+				if (propHolder.getProperty(code) != null) {
+					return propHolder;
+				}
+				// The file has just been reloaded without the code -> probe
+				// all files, with the index getting rebuilt on next lookup.
+			}
+			for (String basename : this.basenames) {
+				List<String> filenames = calculateAllFilenames(basename, locale);
+				for (String filename : filenames) {
+					PropertiesHolder propHolder = getProperties(snapshot, filename);
+					if (propHolder.getProperty(code) != null) {
+						return propHolder;
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Record a lookup for the given Locale, if evicting Locales, and check for
+	 * Locales and entries to evict in the background if due.
+	 */
+	private void touchLocale(Locale locale) {
+		if (this.localeIdleMillis < 0 && !this.evictLocalesOnMemoryPressure && this.memoryBudget < 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		LocaleSlice slice = this.localeSlices.get(locale);
+		if (slice != null) {
+			slice.touch(now);
+		} else {
+			slice = new LocaleSlice(locale, now,
+					this.evictLocalesOnMemoryPressure ? this.clearedLocaleCanaries : null);
+			if (this.localeSlices.putIfAbsent(locale, slice) == null && this.evictedLocales.remove(locale)) {
+				this.reloadedLocaleCount.increment();
+			}
+		}
+		if (now >= this.nextLocaleEvictionCheck && this.localeEvictionScheduled.compareAndSet(false, true)) {
+			this.nextLocaleEvictionCheck = now + LOCALE_EVICTION_CHECK_MILLIS;
+			if (this.memoryBudget >= 0) {
+				setLookupTime(now);
+			}
+			Runnable check = () -> {
+				try {
+					evictLocales(System.currentTimeMillis());
+					enforceMemoryBudget();
+				} finally {
+					this.localeEvictionScheduled.set(false);
+				}
+			};
+			try {
+				getBackgroundExecutor().execute(check);
+			} catch (RejectedExecutionException ex) {
+				// Destroyed: keep the cached state bounded all the same.
+				check.run();
+			}
+		}
+	}
+
+	/**
+	 * Evict the cached state of all Locales that are idle or whose canary has
+	 * been cleared by the garbage collector.
+	 */
+	private void evictLocales(long now) {
+		Set<Locale> locales = new HashSet<>();
+		Reference<?> canary;
+		while ((canary = this.clearedLocaleCanaries.poll()) != null) {
+			LocaleSlice slice = ((LocaleCanary) canary).slice;
+			if (this.localeSlices.remove(slice.locale, slice)) {
+				locales.add(slice.locale);
+			}
+		}
+		if (this.localeIdleMillis >= 0) {
+			for (LocaleSlice slice : this.localeSlices.values()) {
+				if (slice.lastAccess <= now - this.localeIdleMillis && this.localeSlices.remove(slice.locale, slice)) {
+					locales.add(slice.locale);
+				}
+			}
+		}
+		if (!locales.isEmpty()) {
+			evictLocales(locales);
+		}
+	}
+
+	/**
+	 * Evict the cached state of the given Locales, whose slices have already
+	 * been removed.
+	 */
+	private void evictLocales(Set<Locale> locales) {
+		if (logger.isDebugEnabled()) {
+			logger.debug("Evicting cached resource bundles for locales " + locales);
+		}
+		Set<String> filenames = new HashSet<>();
+		for (Locale locale : locales) {
+			for (Map<Locale, List<String>> localeMap : this.cachedFilenames.values()) {
+				List<String> localeFilenames = localeMap.remove(locale);
+				if (localeFilenames != null) {
+					this.cachedFilenamesWeight.add(-weighFilenames(localeFilenames));
+				}
+			}
+			this.cachedMergedProperties.remove(locale);
+			this.cachedKeyTables.remove(locale);
+			this.cachedRoutingIndexes.remove(locale);
+			this.localeLoads.remove(locale);
+			for (String basename : this.basenames) {
+				filenames.addAll(calculateFilenamesForLocale(basename, locale));
+			}
+		}
+		// Keep the bundle files in the chain of any Locale still cached.
+		for (Locale locale : this.localeSlices.keySet()) {
+			for (String basename : this.basenames) {
+				filenames.removeAll(calculateAllFilenames(basename, locale));
+			}
+		}
+		this.cachedProperties.keySet().removeAll(filenames);
+		Collection<PropertiesHolder> holders = this.cachedProperties.values();
+		if (this.atomicRefresh) {
+			this.snapshotLock.lock();
+			try {
+				publishSnapshot(this.bundleSnapshot.without(filenames, locales));
+				holders = this.bundleSnapshot.getHolders().values();
+			} finally {
+				this.snapshotLock.unlock();
+			}
+		}
+		for (PropertiesHolder propHolder : holders) {
+			propHolder.evictLocales(locales);
+		}
+		// Their files may change until loaded again, which is no reload then.
+		removeFormattedMessages(locales);
+		for (Locale locale : locales) {
+			if (this.evictedLocales.size() < MAX_CANONICAL_LOCALES) {
+				this.evictedLocales.add(locale);
+			}
+		}
+		this.evictedLocaleCount.add(locales.size());
+	}
+
+	/**
+	 * Trim the cached state down to 90% of the memory budget if its estimated
+	 * memory usage exceeds the budget: individual entries that get rebuilt on
+	 * demand, least recently used first, after the least recently used
+	 * Locales if the entries cannot suffice on their own.
+	 * 
+	 * @see #setMemoryBudgetBytes
+	 */
+	private void enforceMemoryBudget() {
+		long budget = this.memoryBudget;
+		if (budget < 0) {
+			return;
+		}
+		long weight = getEstimatedMemoryUsage();
+		if (weight <= budget) {
+			this.memoryBudgetRetrimWeight = 0;
+			return;
+		}
+		if (weight < this.memoryBudgetRetrimWeight) {
+			return;
+		}
+		this.memoryBudgetTrimCount.increment();
+		if (logger.isDebugEnabled()) {
+			logger.debug("Estimated memory usage of " + weight + " bytes exceeds budget of " + budget
+					+ " bytes - trimming cached messages");
+		}
+		long target = budget - budget / 10;
+		List<MemoryWeigher.Candidate> candidates = getEvictionCandidates();
+		long evictable = MemoryWeigher.Candidate.weigh(candidates);
+		if (weight - evictable > target) {
+			// Evicting entries cannot suffice: evict Locales as far as needed.
+			List<LocaleSlice> slices = new ArrayList<>(this.localeSlices.values());
+			slices.sort(Comparator.comparingLong(slice -> slice.lastAccess));
+			for (int i = 0; i < slices.size() - 1 && weight - evictable > target; i++) {
+				LocaleSlice slice = slices.get(i);
+				if (this.localeSlices.remove(slice.locale, slice)) {
+					evictLocales(Collections.singleton(slice.locale));
+					weight = getEstimatedMemoryUsage();
+					candidates = getEvictionCandidates();
+					evictable = MemoryWeigher.Candidate.weigh(candidates);
+				}
+			}
+		}
+		if (weight - evictable > target) {
+			this.memoryBudgetRetrimWeight = weight + budget / 10;
+			if (weight > budget && logger.isDebugEnabled()) {
+				logger.debug("Estimated memory usage of " + weight + " bytes still exceeds budget of " + budget
+						+ " bytes without the entries to evict - keeping them");
+			}
+			return;
+		}
+		this.memoryBudgetRetrimWeight = 0;
+		candidates.sort(MemoryWeigher.Candidate.EVICTION_ORDER);
+		for (int i = 0; i < candidates.size() && weight > target; i++) {
+			weight -= candidates.get(i).evict();
+		}
+	}
+
+	/**
+	 * Collect the cached entries that can be evicted on their own to get back
+	 * within the memory budget.
+	 */
+	private List<MemoryWeigher.Candidate> getEvictionCandidates() {
+		List<MemoryWeigher.Candidate> candidates = new ArrayList<>();
+		addFormattedMessageEvictionCandidates(candidates);
+		addDefaultMessageFormatEvictionCandidates(candidates);
+		for (PropertiesHolder propHolder : getCachedHolders()) {
+			propHolder.addEvictionCandidates(candidates);
+		}
+		for (Map.Entry<Locale, MessageKeyTable> entry : this.cachedKeyTables.entrySet()) {
+			Locale locale = entry.getKey();
+			MessageKeyTable keyTable = entry.getValue();
+			long keyTableWeight = MemoryWeigher.ENTRY + keyTable.getWeight();
+			candidates.add(new MemoryWeigher.Candidate(getLastAccess(locale), keyTableWeight,
+					() -> this.cachedKeyTables.remove(locale, keyTable) ? keyTableWeight : 0));
+		}
+		for (Map.Entry<Locale, RoutingIndex> entry : this.cachedRoutingIndexes.entrySet()) {
+			Locale locale = entry.getKey();
+			RoutingIndex routingIndex = entry.getValue();
+			long routingIndexWeight = MemoryWeigher.ENTRY + routingIndex.getWeight();
+			candidates.add(new MemoryWeigher.Candidate(getLastAccess(locale), routingIndexWeight,
+					() -> this.cachedRoutingIndexes.remove(locale, routingIndex) ? routingIndexWeight : 0));
+		}
+		return candidates;
+	}
+
+	/**
+	 * Return the time of the last lookup for the given Locale, as tracked for
+	 * evicting Locales, or 0 if not tracked.
+	 */
+	private long getLastAccess(Locale locale) {
+		LocaleSlice slice = this.localeSlices.get(locale);
+		return slice != null ? slice.lastAccess : 0;
+	}
+
+	/**
+	 * Return all distinct holders of loaded and merged properties currently
+	 * cached, including those of the bundle snapshot.
+	 */
+	private Collection<PropertiesHolder> getCachedHolders() {
+		Set<PropertiesHolder> holders = Collections.newSetFromMap(new IdentityHashMap<>());
+		holders.addAll(this.cachedProperties.values());
+		holders.addAll(this.cachedMergedProperties.values());
+		BundleSnapshot snapshot = this.bundleSnapshot;
+		holders.addAll(snapshot.getHolders().values());
+		holders.addAll(snapshot.getMergedHolders().values());
+		return holders;
+	}
+
+	/**
+	 * Wait for the bundle files of the given Locale to be loaded, starting
+	 * to load them in the background if not done before.
+	 * 
+	 * @param waitMillis
+	 *            the maximum number of milliseconds to wait
+	 * @return whether the bundle files are loaded or failed to load, in which
+	 *         case lookups are to load them themselves
+	 * @see #setColdStartWaitMillis
+	 */
+	private boolean awaitLocale(Locale locale, long waitMillis) {
+		CompletableFuture<Void> load = this.localeLoads.get(locale);
+		if (load == null) {
+			CompletableFuture<Void> newLoad = new CompletableFuture<>();
+			load = this.localeLoads.putIfAbsent(locale, newLoad);
+			if (load == null) {
+				load = newLoad;
+				try {
+					getBackgroundExecutor().execute(() -> {
+						try {
+							preloadLocale(locale);
+							newLoad.complete(null);
+						} catch (Throwable ex) {
+							newLoad.completeExceptionally(ex);
+						}
+					});
+				} catch (RuntimeException ex) {
+					newLoad.completeExceptionally(ex);
+				}
+			}
+		}
+		if (load.isDone()) {
+			return true;
+		}
+		try {
+			load.get(waitMillis, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (TimeoutException ex) {
+			return false;
+		} catch (ExecutionException ex) {
+			return true;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Load all bundle files of the given Locale, as a lookup would.
+	 */
+	private void preloadLocale(Locale locale) {
+		if (this.cacheMillis < 0) {
+			getMergedProperties(locale);
+		} else {
+			for (String basename : this.basenames) {
+				for (String filename : calculateAllFilenames(basename, locale)) {
+					getProperties(filename);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Find the PropertiesHolder that provides the given message code for the
+	 * given Locale among the bundle files loaded already, without loading
+	 * any.
+	 * 
+	 * @return the holder, or {@code null} if no loaded bundle file defines
+	 *         the code
+	 */
+	private PropertiesHolder findLoadedPropertiesHolder(String code, Locale locale) {
+		BundleSnapshot snapshot = this.bundleSnapshot;
+		for (String basename : this.basenames) {
+			for (String filename : calculateAllFilenames(basename, locale)) {
+				PropertiesHolder propHolder = (this.atomicRefresh ? snapshot.getProperties(filename)
+						: this.cachedProperties.get(filename));
+				if (propHolder != null && propHolder.getProperty(code) != null) {
+					return propHolder;
+				}
+			}
+		}
+		return null;
+	}
+
+	private Executor getBackgroundExecutor() {
+		Executor executor = this.refreshScheduler.getExecutor();
+		if (executor == null) {
+			executor = this.backgroundExecutor;
+			if (executor == null) {
+				synchronized (this.localeLoads) {
+					if (this.backgroundExecutor == null) {
+						if (this.backgroundDestroyed) {
+							throw new RejectedExecutionException("MessageSource has been destroyed");
+						}
+						this.backgroundExecutor = Executors.newSingleThreadExecutor(runnable -> {
+							Thread thread = new Thread(runnable, "bundle-background");
+							thread.setDaemon(true);
+							return thread;
+						});
+					}
+					executor = this.backgroundExecutor;
+				}
+			}
+		}
+		return executor;
+	}
+
+	/**
+	 * Shut down the daemon thread created for loading the bundle files of new
+	 * Locales and evicting cached state in the background, if any, in
+	 * addition to the behavior of the superclass. Lookups load the bundle
+	 * files and evict cached state themselves afterwards.
+	 * 
+	 * @see #setColdStartWaitMillis
+	 */
+	@Override
+	public synchronized void destroy() {
+		super.destroy();
+		synchronized (this.localeLoads) {
+			this.backgroundDestroyed = true;
+			if (this.backgroundExecutor != null) {
+				this.backgroundExecutor.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Get the routing index for the given Locale, building it from the bundle
+	 * files if not cached or no longer valid. Concurrent lookups wait for a
+	 * single build.
+	 */
+	private RoutingIndex getRoutingIndex(Locale locale) {
+		RoutingIndex index = this.cachedRoutingIndexes.get(locale);
+		if (index == null || !index.isValid()) {
+			index = this.routingIndexLoads.load(locale, () -> buildRoutingIndex(locale));
+		}
+		return index;
+	}
+
+	private RoutingIndex buildRoutingIndex(Locale locale) {
+		RoutingIndex index = this.cachedRoutingIndexes.get(locale);
+		if (index != null && index.isValid()) {
+			// Built by the load just finished.
+			return index;
+		}
+		long generation = this.routingGeneration.get();
+		long expiry = System.currentTimeMillis() + this.cacheMillis;
+		Map<String, String> filenamesPerCode = new HashMap<>();
+		Set<String> sources = new HashSet<>();
+		for (String basename : this.basenames) {
+			List<String> filenames = calculateAllFilenames(basename, locale);
+			for (String filename : filenames) {
+				sources.add(filename);
+				Properties props = getProperties(filename).getProperties();
+				if (props != null) {
+					for (String code : props.stringPropertyNames()) {
+						filenamesPerCode.putIfAbsent(code, filename);
+					}
+				}
+			}
+		}
+		index = new RoutingIndex(expiry, filenamesPerCode, sources);
+		this.cachedRoutingIndexes.put(locale, index);
+		if (this.routingGeneration.get() != generation) {
+			// A bundle file changed meanwhile, possibly one read above.
+			this.cachedRoutingIndexes.remove(locale, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Get a PropertiesHolder that contains the actually visible properties for
+	 * a Locale, after merging all specified resource bundles. Either fetches
+	 * the holder from the cache or freshly loads it.
+	 * <p>
+	 * Only used when caching resource bundle contents forever, i.e. with
+	 * cacheSeconds < 0. Therefore, merged properties are always cached forever.
+	 */
+	protected PropertiesHolder getMergedProperties(Locale locale) {
+		if (this.atomicRefresh) {
+			return getSnapshotMergedProperties(locale);
+		}
+		PropertiesHolder mergedHolder = this.cachedMergedProperties.get(locale);
+		if (mergedHolder != null) {
+			return mergedHolder;
+		}
+		// Build the merged properties of a Locale once, however many threads
+		// ask for them concurrently.
+		return this.mergedPropertiesLoads.load(locale, () -> {
+			PropertiesHolder loadedHolder = this.cachedMergedProperties.get(locale);
+			if (loadedHolder == null) {
+				loadedHolder = mergeProperties(locale, this::getProperties);
+				PropertiesHolder existing = this.cachedMergedProperties.putIfAbsent(locale, loadedHolder);
+				if (existing != null) {
+					loadedHolder = existing;
+				}
+			}
+			return loadedHolder;
+		});
+	}
+
+	/**
+	 * Get the merged properties for the given Locale from the current bundle
+	 * snapshot, adding them to the snapshot if not contained yet. While the
+	 * snapshot is being rebuilt, merges them without adding them instead of
+	 * waiting for the rebuild.
+	 */
+	private PropertiesHolder getSnapshotMergedProperties(Locale locale) {
+		BundleSnapshot snapshot = this.bundleSnapshot;
+		PropertiesHolder mergedHolder = snapshot.getMergedProperties(locale);
+		if (mergedHolder != null) {
+			return mergedHolder;
+		}
+		if (!this.snapshotLock.tryLock()) {
+			return mergeProperties(locale, filename -> getProperties(snapshot, filename));
+		}
+		try {
+			mergedHolder = this.bundleSnapshot.getMergedProperties(locale);
+			if (mergedHolder == null) {
+				mergedHolder = mergeProperties(locale, filename -> getProperties(this.bundleSnapshot, filename));
+				publishSnapshot(this.bundleSnapshot.withMergedProperties(locale, mergedHolder));
+			}
+			return mergedHolder;
+		} finally {
+			this.snapshotLock.unlock();
+		}
+	}
+
+	/**
+	 * Merge the properties of all bundle files for the given Locale, taking
+	 * the PropertiesHolder of each file from the given function.
+	 */
+	private PropertiesHolder mergeProperties(Locale locale, Function<String, PropertiesHolder> holders) {
+		Properties mergedProps = newProperties();
+		PropertiesHolder mergedHolder = new PropertiesHolder(mergedProps, -1);
+		for (int i = this.basenames.length - 1; i >= 0; i--) {
+			List<String> filenames = calculateAllFilenames(this.basenames[i], locale);
+			for (int j = filenames.size() - 1; j >= 0; j--) {
+				PropertiesHolder propHolder = holders.apply(filenames.get(j));
+				if (propHolder.getProperties() != null) {
+					propHolder.copyPropertiesTo(mergedProps);
+				}
+			}
+		}
+		return mergedHolder;
+	}
+
+	/**
+	 * Calculate all filenames for the given bundle basename and Locale. Will
+	 * calculate filenames for the given Locale, the system Locale (if
+	 * applicable), and the default file.
+	 * 
+	 * @param basename
+	 *            the basename of the bundle
+	 * @param locale
+	 *            the locale
+	 * @return the List of filenames to check
+	 * @see #setFallbackToSystemLocale
+	 * @see #calculateFilenamesForLocale
+	 */
+	protected List<String> calculateAllFilenames(String basename, Locale locale) {
+		Map<Locale, List<String>> localeMap = this.cachedFilenames.get(basename);
+		if (localeMap != null) {
+			List<String> filenames = localeMap.get(locale);
+			if (filenames != null) {
+				return filenames;
+			}
+		}
+		return this.filenamesLoads.load(new SimpleImmutableEntry<>(basename, locale),
+				() -> loadAllFilenames(basename, locale));
+	}
+
+	/**
+	 * Calculate and cache all filenames for the given bundle basename and
+	 * Locale, unless cached already.
+	 * 
+	 * @see #calculateAllFilenames
+	 */
+	private List<String> loadAllFilenames(String basename, Locale locale) {
+		Map<Locale, List<String>> localeMap = this.cachedFilenames.get(basename);
+		if (localeMap != null) {
+			List<String> filenames = localeMap.get(locale);
+			if (filenames != null) {
+				return filenames;
+			}
+		}
+		List<String> filenames = new ArrayList<>(7);
+		filenames.addAll(calculateFilenamesForLocale(basename, locale));
+		if (this.fallbackToSystemLocale && !locale.equals(Locale.getDefault())) {
+			List<String> fallbackFilenames = calculateFilenamesForLocale(basename, Locale.getDefault());
+			for (String fallbackFilename : fallbackFilenames) {
+				if (!filenames.contains(fallbackFilename)) {
+					// Entry for fallback locale that isn't already in filenames
+					// list.
+					filenames.add(fallbackFilename);
+				}
+			}
+		}
+		filenames.add(basename);
+		if (localeMap == null) {
+			localeMap = new ConcurrentHashMap<>();
+			Map<Locale, List<String>> existing = this.cachedFilenames.putIfAbsent(basename, localeMap);
+			if (existing != null) {
+				localeMap = existing;
+			}
+		}
+		List<String> previous = localeMap.put(locale, filenames);
+		this.cachedFilenamesWeight.add(weighFilenames(filenames) - (previous != null ? weighFilenames(previous) : 0));
+		return filenames;
+	}
+
+	private static long weighFilenames(List<String> filenames) {
+		long weight = MemoryWeigher.ENTRY;
+		for (String filename : filenames) {
+			weight += MemoryWeigher.OBJECT + MemoryWeigher.weigh(filename);
+		}
+		return weight;
+	}
+
+	/**
+	 * Calculate the filenames for the given bundle basename and Locale,
+	 * appending language code, country code, and variant code. E.g.: basename
+	 * "messages", Locale "de_AT_oo" -> "messages_de_AT_OO", "messages_de_AT",
+	 * "messages_de".
+	 * <p>
+	 * Follows the rules defined by {@link java.util.Locale#toString()}.
+	 * 
+	 * @param basename
+	 *            the basename of the bundle
+	 * @param locale
+	 *            the locale
+	 * @return the List of filenames to check
+	 */
+	protected List<String> calculateFilenamesForLocale(String basename, Locale locale) {
+		List<String> result = new ArrayList<>(3);
+		String language = locale.getLanguage();
+		String country = locale.getCountry();
+		String variant = locale.getVariant();
+		StringBuilder temp = new StringBuilder(basename);
+
+		temp.append('_');
+		if (language.length() > 0) {
+			temp.append(language);
+			result.add(0, temp.toString());
+		}
+
+		temp.append('_');
+		if (country.length() > 0) {
+			temp.append(country);
+			result.add(0, temp.toString());
+		}
+
+		if (variant.length() > 0 && (language.length() > 0 || country.length() > 0)) {
+			temp.append('_').append(variant);
+			result.add(0, temp.toString());
+		}
+
+		return result;
+	}
+
+	/**
+	 * Get a PropertiesHolder for the given filename, either from the cache or
+	 * freshly loaded.
+	 * 
+	 * @param filename
+	 *            the bundle filename (basename + Locale)
+	 * @return the current PropertiesHolder for the bundle
+	 */
+	protected PropertiesHolder getProperties(String filename) {
+		if (this.atomicRefresh) {
+			return getProperties(this.bundleSnapshot, filename);
+		}
+		PropertiesHolder propHolder = this.cachedProperties.get(filename);
+		long originalTimestamp = -2;
+
+		if (propHolder != null) {
+			originalTimestamp = propHolder.getRefreshTimestamp();
+			if (originalTimestamp == -1 || originalTimestamp > System.currentTimeMillis() - this.cacheMillis
+					- propHolder.getRefreshJitter()) {
+				// Up to date
+				return propHolder;
+			}
+		} else {
+			propHolder = new PropertiesHolder();
+			PropertiesHolder existingHolder = this.cachedProperties.putIfAbsent(filename, propHolder);
+			if (existingHolder != null) {
+				propHolder = existingHolder;
+			}
+		}
+
+		// At this point, we need to refresh...
+		if (this.concurrentRefresh && propHolder.getRefreshTimestamp() >= 0) {
+			// A populated but stale holder -> could keep using it.
+			if (this.refreshScheduler.isAsynchronous()) {
+				// Let the refresh happen in the background, at most once
+				// per file at a time.
+				PropertiesHolder staleHolder = propHolder;
+				long staleTimestamp = originalTimestamp;
+				this.refreshScheduler.submit(filename, () -> {
+					staleHolder.refreshLock.lock();
+					try {
+						refreshIfUnchanged(filename, staleHolder, staleTimestamp, true);
+					} finally {
+						staleHolder.refreshLock.unlock();
+					}
+				});
+				return propHolder;
+			}
+			if (!propHolder.refreshLock.tryLock()) {
+				// Getting refreshed by another thread already ->
+				// let's return the existing properties for the time being.
+				return propHolder;
+			}
+			try {
+				PropertiesHolder refreshedHolder = refreshIfUnchanged(filename, propHolder, originalTimestamp, false);
+				// Too many concurrent refreshes -> keep the existing
+				// properties until the next access.
+				return refreshedHolder != null ? refreshedHolder : propHolder;
+			} finally {
+				propHolder.refreshLock.unlock();
+			}
+		} else {
+			propHolder.refreshLock.lock();
+			try {
+				return refreshIfUnchanged(filename, propHolder, originalTimestamp, true);
+			} finally {
+				propHolder.refreshLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Get a PropertiesHolder for the given filename from the given bundle
+	 * snapshot, triggering a refresh of the snapshot if stale. A file not
+	 * contained in the snapshot yet gets loaded into the current snapshot.
+	 * 
+	 * @param snapshot
+	 *            the snapshot to resolve against, or {@code null} if not
+	 *            refreshing atomically
+	 * @see #setAtomicRefresh
+	 */
+	private PropertiesHolder getProperties(BundleSnapshot snapshot, String filename) {
+		if (snapshot == null) {
+			return getProperties(filename);
+		}
+		PropertiesHolder propHolder = snapshot.getProperties(filename);
+		if (propHolder == null) {
+			return addToSnapshot(filename);
+		}
+		if (isStale(snapshot)) {
+			if (this.refreshScheduler.isAsynchronous()) {
+				this.refreshScheduler.submit(ALL_FILES, () -> {
+					this.snapshotLock.lock();
+					try {
+						refreshSnapshot();
+					} finally {
+						this.snapshotLock.unlock();
+					}
+				});
+			} else if (this.snapshotLock.tryLock()) {
+				// Otherwise getting rebuilt by another thread already.
+				try {
+					refreshSnapshot();
+				} finally {
+					this.snapshotLock.unlock();
+				}
+			}
+		}
+		return propHolder;
+	}
+
+	private boolean isStale(BundleSnapshot snapshot) {
+		return this.cacheMillis >= 0 && snapshot.getRefreshTimestamp() <= System.currentTimeMillis() - this.cacheMillis;
+	}
+
+	/**
+	 * Load the given bundle file and publish it along with the files of the
+	 * current bundle snapshot, unless it got added in the meantime. While the
+	 * snapshot is being rebuilt, loads it without adding it instead of waiting
+	 * for the rebuild.
+	 */
+	private PropertiesHolder addToSnapshot(String filename) {
+		if (!this.snapshotLock.tryLock()) {
+			return refreshWithPermit(filename, null);
+		}
+		try {
+			BundleSnapshot snapshot = this.bundleSnapshot;
+			PropertiesHolder propHolder = snapshot.getProperties(filename);
+			if (propHolder == null) {
+				propHolder = refreshWithPermit(filename, null);
+				publishSnapshot(snapshot.withProperties(filename, propHolder));
+			}
+			return propHolder;
+		} finally {
+			this.snapshotLock.unlock();
+		}
+	}
+
+	/**
+	 * Rebuild the bundle snapshot with all of its files re-validated against
+	 * their last-modified timestamps, unless it has been rebuilt in the
+	 * meantime. To be called with the snapshot lock held.
+	 */
+	private void refreshSnapshot() {
+		if (isStale(this.bundleSnapshot)) {
+			rebuildSnapshot(filename -> false, true);
+		}
+	}
+
+	/**
+	 * Build and publish a new bundle snapshot from the files of the current
+	 * one. Lookups keep using the current snapshot in the meantime. To be
+	 * called with the snapshot lock held.
+	 * 
+	 * @param reloadFilter
+	 *            the filter for the files to read afresh
+	 * @param revalidate
+	 *            whether to re-validate all other files against their
+	 *            last-modified timestamps, rather than keeping them as-is
+	 */
+	private void rebuildSnapshot(Predicate<String> reloadFilter, boolean revalidate) {
+		BundleSnapshot snapshot = this.bundleSnapshot;
+		long refreshTimestamp = revalidate ? System.currentTimeMillis() : snapshot.getRefreshTimestamp();
+		Map<String, PropertiesHolder> holders = new HashMap<>();
+		Set<String> changedFilenames = new HashSet<>();
+		for (Map.Entry<String, PropertiesHolder> entry : snapshot.getHolders().entrySet()) {
+			String filename = entry.getKey();
+			PropertiesHolder propHolder = entry.getValue();
+			if (reloadFilter.test(filename)) {
+				propHolder.invalidateFileTimestamp();
+				propHolder = refreshWithPermit(filename, propHolder);
+			} else if (revalidate) {
+				propHolder = refreshWithPermit(filename, propHolder);
+			}
+			holders.put(filename, propHolder);
+			if (propHolder != entry.getValue()) {
+				changedFilenames.add(filename);
+			}
+		}
+		Map<Locale, PropertiesHolder> mergedHolders = snapshot.getMergedHolders();
+		if (!changedFilenames.isEmpty()) {
+			mergedHolders = new HashMap<>(mergedHolders);
+			for (Map.Entry<Locale, PropertiesHolder> entry : mergedHolders.entrySet()) {
+				if (mergesAnyOf(entry.getKey(), changedFilenames)) {
+					entry.setValue(mergeProperties(entry.getKey(),
+							filename -> holders.computeIfAbsent(filename, name -> refreshWithPermit(name, null))));
+				}
+			}
+		}
+		publishSnapshot(new BundleSnapshot(holders, mergedHolders, refreshTimestamp));
+	}
+
+	private PropertiesHolder refreshWithPermit(String filename, PropertiesHolder propHolder) {
+		this.refreshScheduler.acquire(filename, true);
+		try {
+			return refreshProperties(filename, propHolder);
+		} finally {
+			this.refreshScheduler.release(filename);
+		}
+	}
+
+	/**
+	 * Make the given bundle snapshot visible to lookups, invalidating all
+	 * derived state if any bundle file changed while building it, and then
+	 * notifying reload listeners. To be called with the snapshot lock held.
+	 */
+	private void publishSnapshot(BundleSnapshot snapshot) {
+		this.bundleSnapshot = snapshot;
+		if (this.snapshotChanged) {
+			this.snapshotChanged = false;
+			this.bundleGeneration.incrementAndGet();
+			clearFormattedMessageCache();
+			invalidateRoutingIndexes(this.snapshotChangedFilenames);
+			this.snapshotChangedFilenames.clear();
+		}
+		if (!this.pendingReloadEvents.isEmpty()) {
+			List<BundleReloadEvent> events = new ArrayList<>(this.pendingReloadEvents);
+			this.pendingReloadEvents.clear();
+			for (BundleReloadEvent event : events) {
+				publishReloadEvent(event);
+			}
+		}
+	}
+
+	/**
+	 * Refresh the given PropertiesHolder for the given bundle filename,
+	 * unless it has been refreshed since its given refresh timestamp already.
+	 * To be called with the holder's refresh lock held.
+	 * 
+	 * @param block
+	 *            whether to wait if the cap of concurrent refreshes is reached
+	 * @return the current PropertiesHolder for the bundle, or {@code null} if
+	 *         the refresh had to be skipped because of the cap
+	 * @see #setMaxConcurrentRefreshes
+	 */
+	private PropertiesHolder refreshIfUnchanged(String filename, PropertiesHolder propHolder, long originalTimestamp,
+			boolean block) {
+		PropertiesHolder existingHolder = this.cachedProperties.get(filename);
+		if (existingHolder != null && existingHolder.getRefreshTimestamp() > originalTimestamp) {
+			return existingHolder;
+		}
+		if (!this.refreshScheduler.acquire(filename, block)) {
+			return null;
+		}
+		try {
+			return refreshProperties(filename, propHolder);
+		} finally {
+			this.refreshScheduler.release(filename);
+		}
+	}
+
+	/**
+	 * Refresh the PropertiesHolder for the given bundle filename. The holder
+	 * can be {@code null} if not cached before, or a timed-out cache entry
+	 * (potentially getting re-validated against the current last-modified
+	 * timestamp).
+	 * 
+	 * @param filename
+	 *            the bundle filename (basename + Locale)
+	 * @param propHolder
+	 *            the current PropertiesHolder for the bundle
+	 */
+	protected PropertiesHolder refreshProperties(String filename, PropertiesHolder propHolder) {
+		PropertiesHolder previousHolder = propHolder;
+		long markerChangeTimestamp = getMarkerChangeTimestamp();
+		long refreshTimestamp = this.cacheMillis < 0 ? -1 : System.currentTimeMillis();
+		boolean previouslyLoaded = (propHolder != null && propHolder.getProperties() != null);
+
+		if (propHolder != null && propHolder.getRefreshTimestamp() > markerChangeTimestamp
+				&& !propHolder.isFileTimestampInvalidated()) {
+			// Version marker unchanged since the last refresh -> no need to
+			// check the file itself.
+			propHolder.setRefreshTimestamp(refreshTimestamp);
+			return propHolder;
+		}
+
+		Resource resource = this.resourceLoader.getResource(filename + PROPERTIES_SUFFIX);
+		if (!resource.exists()) {
+			resource = this.resourceLoader.getResource(filename + XML_SUFFIX);
+		}
+
+		if (resource.exists()) {
+			long fileTimestamp = -1;
+			if (this.cacheMillis >= 0) {
+				// Last-modified timestamp of file will just be read if caching
+				// with timeout.
+				try {
+					fileTimestamp = resource.lastModified();
+					if (propHolder != null && propHolder.getFileTimestamp() == fileTimestamp) {
+						if (logger.isDebugEnabled()) {
+							logger.debug("Re-caching properties for filename [" + filename
+									+ "] - file hasn't been modified");
+						}
+						return recacheProperties(filename, propHolder, refreshTimestamp);
+					}
+				} catch (IOException ex) {
+					// Probably a class path resource: cache it forever.
+					if (logger.isDebugEnabled()) {
+						logger.debug(
+								resource + " could not be resolved in the file system - assuming that it hasn't changed",
+								ex);
+					}
+					fileTimestamp = -1;
+				}
+			}
+			try {
+				if (this.cacheMillis >= 0) {
+					// Compare the content with the loaded one before parsing,
+					// as the file may just have been touched or redeployed.
+					byte[] content = readContent(resource);
+					byte[] contentDigest = digest(content);
+					if (previouslyLoaded && MessageDigest.isEqual(contentDigest, propHolder.getContentDigest())) {
+						if (logger.isDebugEnabled()) {
+							logger.debug("Re-caching properties for filename [" + filename
+									+ "] - file content hasn't changed");
+						}
+						propHolder.setFileTimestamp(fileTimestamp);
+						return recacheProperties(filename, propHolder, refreshTimestamp);
+					}
+					Properties props = deduplicate(loadProperties(new LoadedResource(resource, content), filename));
+					PropertiesHolder loadedHolder = refreshPatch(filename,
+							new PropertiesHolder(props, fileTimestamp, contentDigest));
+					if (previouslyLoaded) {
+						loadedHolder.copyCachedMessages(propHolder);
+					}
+					propHolder = loadedHolder;
+				} else {
+					Properties props = deduplicate(loadProperties(resource, filename));
+					propHolder = new PropertiesHolder(props, fileTimestamp);
+				}
+			} catch (IOException ex) {
+				if (logger.isWarnEnabled()) {
+					logger.warn("Could not parse properties file [" + resource.getFilename() + "]", ex);
+				}
+				// Empty holder representing "not valid".
+				propHolder = new PropertiesHolder();
+			}
+		}
+
+		else {
+			// Resource does not exist.
+			if (logger.isDebugEnabled()) {
+				logger.debug("No properties file found for [" + filename + "] - neither plain properties nor XML");
+			}
+			// Empty holder representing "not found".
+			propHolder = new PropertiesHolder();
+		}
+
+		propHolder.setRefreshTimestamp(refreshTimestamp);
+		if (!this.atomicRefresh) {
+			// Otherwise held by the bundle snapshot only.
+			this.cachedProperties.put(filename, propHolder);
+		}
+		if (previouslyLoaded || propHolder.getProperties() != null) {
+			// Not just another check of a missing file
+			if (previousHolder != null) {
+				// Not the first load either: derived state may be stale.
+				bundlesChanged(Collections.singleton(filename));
+			}
+			fireBundleReloaded(filename, previousHolder, propHolder);
+		}
+		return propHolder;
+	}
+
+	/**
+	 * Return the time at which the version marker has last been seen changed,
+	 * checking it again if "cacheSeconds" have passed since the last check.
+	 * 
+	 * @return the timestamp, or {@code Long.MAX_VALUE} if there is no marker
+	 *         to check, i.e. bundle files are to be checked themselves
+	 * @see #setVersionMarker
+	 */
+	private long getMarkerChangeTimestamp() {
+		if (this.versionMarker == null || this.cacheMillis < 0) {
+			return Long.MAX_VALUE;
+		}
+		long now = System.currentTimeMillis();
+		if (this.markerCheckTimestamp <= now - this.cacheMillis) {
+			synchronized (this.versionMarkerMonitor) {
+				if (this.markerCheckTimestamp <= now - this.cacheMillis) {
+					String version = readMarkerVersion();
+					if (this.markerCheckTimestamp != -1 && !Objects.equals(version, this.markerVersion)) {
+						if (logger.isDebugEnabled()) {
+							logger.debug("Version marker [" + this.versionMarker + "] has changed - re-validating"
+									+ " bundle files");
+						}
+						this.markerChangeTimestamp = now;
+					}
+					this.markerVersion = version;
+					this.markerCheckTimestamp = now;
+				}
+			}
+		}
+		return this.markerChangeTimestamp;
+	}
+
+	/**
+	 * Read the current version of the version marker: its last-modified
+	 * timestamp if in the file system, else a digest of its content.
+	 * 
+	 * @return the version, or {@code null} if the marker does not exist
+	 */
+	private String readMarkerVersion() {
+		Resource resource = this.resourceLoader.getResource(this.versionMarker);
+		if (!resource.exists()) {
+			return null;
+		}
+		try {
+			return Long.toString(resource.lastModified());
+		} catch (IOException ex) {
+			// Not in the file system: compare the content.
+		}
+		try {
+			return Base64.getEncoder().encodeToString(digest(readContent(resource)));
+		} catch (IOException ex) {
+			if (logger.isWarnEnabled()) {
+				logger.warn("Could not read version marker [" + this.versionMarker + "]", ex);
+			}
+			return this.markerVersion;
+		}
+	}
+
+	/**
+	 * Keep the given up-to-date PropertiesHolder for the given bundle
+	 * filename, applying its patch file if changed.
+	 */
+	private PropertiesHolder recacheProperties(String filename, PropertiesHolder propHolder, long refreshTimestamp) {
+		PropertiesHolder patchedHolder = refreshPatch(filename, propHolder);
+		patchedHolder.setRefreshTimestamp(refreshTimestamp);
+		if (patchedHolder != propHolder) {
+			if (!this.atomicRefresh) {
+				this.cachedProperties.put(filename, patchedHolder);
+			}
+			bundlesChanged(Collections.singleton(filename));
+			fireBundleReloaded(filename, propHolder, patchedHolder);
+		}
+		return patchedHolder;
+	}
+
+	/**
+	 * Notify the reload listeners of the differences between the given
+	 * previous and reloaded holder of the given bundle filename, unless the
+	 * file has not been checked before. Deferred until the bundle snapshot
+	 * gets published while building one.
+	 */
+	private void fireBundleReloaded(String filename, PropertiesHolder previousHolder, PropertiesHolder propHolder) {
+		if (this.reloadListeners.isEmpty() || previousHolder == null || previousHolder.getRefreshTimestamp() == -2) {
+			return;
+		}
+		Properties previousProps = previousHolder.getProperties();
+		Properties props = propHolder.getProperties();
+		Set<String> addedCodes = new HashSet<>();
+		Set<String> changedCodes = new HashSet<>();
+		Set<String> removedCodes = new HashSet<>();
+		if (props != null) {
+			for (String code : props.stringPropertyNames()) {
+				String previousMessage = (previousProps != null ? previousProps.getProperty(code) : null);
+				if (previousMessage == null) {
+					addedCodes.add(code);
+				} else if (!previousMessage.equals(props.getProperty(code))) {
+					changedCodes.add(code);
+				}
+			}
+		}
+		if (previousProps != null) {
+			for (String code : previousProps.stringPropertyNames()) {
+				if (props == null || props.getProperty(code) == null) {
+					removedCodes.add(code);
+				}
+			}
+		}
+		if (addedCodes.isEmpty() && changedCodes.isEmpty() && removedCodes.isEmpty()) {
+			return;
+		}
+		BundleReloadEvent event = new BundleReloadEvent(this, filename, Collections.unmodifiableSet(addedCodes),
+				Collections.unmodifiableSet(changedCodes), Collections.unmodifiableSet(removedCodes));
+		if (this.snapshotLock.isHeldByCurrentThread()) {
+			this.pendingReloadEvents.add(event);
+		} else {
+			publishReloadEvent(event);
+		}
+	}
+
+	private void publishReloadEvent(BundleReloadEvent event) {
+		for (BundleReloadListener listener : this.reloadListeners) {
+			try {
+				listener.bundleReloaded(event);
+			} catch (RuntimeException ex) {
+				if (logger.isWarnEnabled()) {
+					logger.warn("Reload listener failed for bundle file [" + event.getFilename() + "]", ex);
+				}
+			}
+		}
+	}
+
+	private static byte[] readContent(Resource resource) throws IOException {
+		try (InputStream is = resource.getInputStream()) {
+			ByteArrayOutputStream content = new ByteArrayOutputStream(4096);
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = is.read(buffer)) != -1) {
+				content.write(buffer, 0, read);
+			}
+			return content.toByteArray();
+		}
+	}
+
+	private static byte[] digest(byte[] content) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(content);
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("SHA-256 not supported", ex);
+		}
+	}
+
+	/**
+	 * Apply the patch file for the given bundle filename to the given holder,
+	 * if patch files are enabled and the patch file has changed since it was
+	 * last applied to the holder.
+	 * 
+	 * @param filename
+	 *            the bundle filename (basename + Locale)
+	 * @param propHolder
+	 *            the current PropertiesHolder for the bundle
+	 * @return a new PropertiesHolder with the current patch applied, or the
+	 *         given holder if unchanged
+	 * @see #setPatchFiles
+	 */
+	protected PropertiesHolder refreshPatch(String filename, PropertiesHolder propHolder) {
+		if (!this.patchFiles || this.cacheMillis < 0 || propHolder.getProperties() == null) {
+			return propHolder;
+		}
+		Resource resource = this.resourceLoader.getResource(filename + PATCH_SUFFIX + PROPERTIES_SUFFIX);
+		long patchTimestamp = -1;
+		if (resource.exists()) {
+			try {
+				patchTimestamp = resource.lastModified();
+			} catch (IOException ex) {
+				// Not in the file system: apply it once.
+				patchTimestamp = 0;
+			}
+		}
+		if (patchTimestamp == propHolder.getPatchTimestamp()) {
+			return propHolder;
+		}
+		Properties patch = null;
+		if (patchTimestamp != -1) {
+			try {
+				patch = deduplicate(loadProperties(resource, filename));
+			} catch (IOException ex) {
+				if (logger.isWarnEnabled()) {
+					logger.warn("Could not parse patch file [" + resource.getFilename() + "]", ex);
+				}
+				return propHolder;
+			}
+		}
+		if (logger.isDebugEnabled()) {
+			logger.debug("Applying " + (patch != null ? patch.size() : 0) + " patch entries to properties for filename ["
+					+ filename + "]");
+		}
+		return propHolder.withPatch(patch, patchTimestamp);
+	}
+
+	/**
+	 * Load the properties from the given resource.
+	 * 
+	 * @param resource
+	 *            the resource to load from
+	 * @param filename
+	 *            the original bundle filename (basename + Locale)
+	 * @return the populated Properties instance
+	 * @throws IOException
+	 *             if properties loading failed
+	 */
+	protected Properties loadProperties(Resource resource, String filename) throws IOException {
+		Properties props = newProperties();
+		try (InputStream is = resource.getInputStream()) {
+			if (resource.getFilename().endsWith(XML_SUFFIX)) {
+				if (logger.isDebugEnabled()) {
+					logger.debug("Loading properties [" + resource.getFilename() + "]");
+				}
+				this.propertiesPersister.loadFromXml(props, is);
+			} else {
+				String encoding = null;
+				if (this.fileEncodings != null) {
+					encoding = this.fileEncodings.getProperty(filename);
+				}
+				if (encoding == null) {
+					encoding = this.defaultEncoding;
+				}
+				if (encoding != null) {
+					if (logger.isDebugEnabled()) {
+						logger.debug(
+								"Loading properties [" + resource.getFilename() + "] with encoding '" + encoding + "'");
+					}
+					this.propertiesPersister.load(props, new InputStreamReader(is, encoding));
+				} else {
+					if (logger.isDebugEnabled()) {
+						logger.debug("Loading properties [" + resource.getFilename() + "]");
+					}
+					this.propertiesPersister.load(props, is);
+				}
+			}
+			return props;
+		}
+	}
+
+	/**
+	 * Replace the keys and values of the given loaded properties by shared
+	 * instances, if deduplicating Strings.
+	 * 
+	 * @see #setDeduplicateStrings
+	 */
+	private Properties deduplicate(Properties props) {
+		StringInterner interner = this.stringInterner;
+		if (interner == null) {
+			return props;
+		}
+		Map<Object, Object> entries = new HashMap<>(props);
+		props.clear();
+		for (Map.Entry<Object, Object> entry : entries.entrySet()) {
+			props.put(intern(interner, entry.getKey()), intern(interner, entry.getValue()));
+		}
+		return props;
+	}
+
+	private static Object intern(StringInterner interner, Object value) {
+		return (value instanceof String ? interner.intern((String) value) : value);
+	}
+
+	/**
+	 * Template method for creating a plain new {@link Properties} instance. The
+	 * default implementation simply calls {@link Properties#Properties()}.
+	 * <p>
+	 * Allows for returning a custom {@link Properties} extension in subclasses.
+	 * Overriding methods should just instantiate a custom {@link Properties}
+	 * subclass, with no further initialization or population to be performed at
+	 * that point.
+	 * 
+	 * @return a plain Properties instance
+	 * @since 4.2
+	 */
+	protected Properties newProperties() {
+		return new Properties();
+	}
+
+	/**
+	 * Clear the resource bundle cache. Subsequent resolve calls will lead to
+	 * reloading of the properties files.
+	 */
+	public void clearCache() {
+		if (this.atomicRefresh) {
+			logger.debug("Reloading entire resource bundle snapshot");
+			this.snapshotLock.lock();
+			try {
+				rebuildSnapshot(filename -> true, true);
+			} finally {
+				this.snapshotLock.unlock();
+			}
+			return;
+		}
+		logger.debug("Clearing entire resource bundle cache");
+		this.localeLoads.clear();
+		this.cachedProperties.clear();
+		this.cachedMergedProperties.clear();
+		this.cachedKeyTables.clear();
+		bundlesChanged(null);
+	}
+
+	/**
+	 * Reload the bundle files of the given basename in all Locales they have
+	 * been loaded for, keeping all other bundle files cached.
+	 * 
+	 * @param basename
+	 *            the basename of the bundle, as specified through
+	 *            {@link #setBasenames}
+	 * @see #addReloadListener
+	 */
+	public void clearCacheForBasename(String basename) {
+		Set<String> filenames = new HashSet<>();
+		Map<Locale, List<String>> localeMap = this.cachedFilenames.get(basename);
+		if (localeMap != null) {
+			for (List<String> localeFilenames : localeMap.values()) {
+				filenames.addAll(localeFilenames);
+			}
+		}
+		reloadFiles(filenames);
+	}
+
+	/**
+	 * Reload the bundle files specific to the given Locale, for all basenames,
+	 * keeping all other bundle files cached. E.g. Locale "de_AT" reloads
+	 * "messages_de_AT" and "messages_de", but not the default file "messages".
+	 * 
+	 * @param locale
+	 *            the Locale whose bundle files to reload
+	 * @see #calculateFilenamesForLocale
+	 * @see #addReloadListener
+	 */
+	public void clearCacheForLocale(Locale locale) {
+		Set<String> filenames = new HashSet<>();
+		for (String basename : this.basenames) {
+			filenames.addAll(calculateFilenamesForLocale(basename, locale));
+		}
+		reloadFiles(filenames);
+	}
+
+	/**
+	 * Reload the given bundle file, keeping all other bundle files cached.
+	 * 
+	 * @param filename
+	 *            the bundle filename (basename + Locale), e.g.
+	 *            "WEB-INF/messages_de"
+	 * @see #addReloadListener
+	 */
+	public void clearCacheForFilename(String filename) {
+		reloadFiles(Collections.singleton(filename));
+	}
+
+	/**
+	 * Read those of the given bundle files afresh that have been loaded
+	 * before, right away, so that lookups see their current content once this
+	 * method returns.
+	 */
+	private void reloadFiles(Set<String> filenames) {
+		if (logger.isDebugEnabled()) {
+			logger.debug("Reloading resource bundle files " + filenames);
+		}
+		if (this.atomicRefresh) {
+			this.snapshotLock.lock();
+			try {
+				rebuildSnapshot(filenames::contains, false);
+			} finally {
+				this.snapshotLock.unlock();
+			}
+			return;
+		}
+		Set<String> reloadedFilenames = new HashSet<>();
+		for (String filename : filenames) {
+			PropertiesHolder propHolder = this.cachedProperties.get(filename);
+			if (propHolder != null) {
+				propHolder.refreshLock.lock();
+				try {
+					propHolder.invalidateFileTimestamp();
+					refreshWithPermit(filename, propHolder);
+				} finally {
+					propHolder.refreshLock.unlock();
+				}
+				reloadedFilenames.add(filename);
+			}
+		}
+		if (!reloadedFilenames.isEmpty()) {
+			// Merged properties get rebuilt from the cached files.
+			this.cachedMergedProperties.keySet().removeIf(locale -> mergesAnyOf(locale, reloadedFilenames));
+			bundlesChanged(reloadedFilenames);
+		}
+	}
+
+	/**
+	 * Determine whether the merged properties for the given Locale include
+	 * any of the given bundle files.
+	 */
+	private boolean mergesAnyOf(Locale locale, Set<String> filenames) {
+		for (String basename : this.basenames) {
+			for (String filename : calculateAllFilenames(basename, locale)) {
+				if (filenames.contains(filename)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Add a listener to be notified whenever a bundle file that has been
+	 * loaded or checked before gets reloaded with different messages, e.g.
+	 * after a refresh check found it modified or through one of the
+	 * {@code clearCacheFor...} methods. Not notified when clearing the entire
+	 * cache with {@link #clearCache()}, unless refreshing atomically.
+	 * 
+	 * @param listener
+	 *            the listener to add
+	 * @see #removeReloadListener
+	 * @see #setAtomicRefresh
+	 */
+	public void addReloadListener(BundleReloadListener listener) {
+		Validate.notNull(listener, "BundleReloadListener must not be null");
+		this.reloadListeners.add(listener);
+	}
+
+	/**
+	 * Remove the given reload listener.
+	 * 
+	 * @param listener
+	 *            the listener to remove
+	 * @see #addReloadListener
+	 */
+	public void removeReloadListener(BundleReloadListener listener) {
+		this.reloadListeners.remove(listener);
+	}
+
+	/**
+	 * Invalidate all state derived from the loaded bundle files, such as
+	 * MessageKey tables, routing indexes and formatted messages. Invoked
+	 * whenever a bundle file gets reloaded and when clearing the cache, but
+	 * not when loaded for the first time, as nothing can be derived from it
+	 * yet.
+	 * While building a bundle snapshot, deferred until it gets published.
+	 * 
+	 * @param filenames
+	 *            the bundle files that changed, or {@code null} for all
+	 */
+	private void bundlesChanged(Set<String> filenames) {
+		if (this.snapshotLock.isHeldByCurrentThread()) {
+			this.snapshotChanged = true;
+			if (filenames != null) {
+				this.snapshotChangedFilenames.addAll(filenames);
+			} else {
+				this.snapshotChangedFilenames.add(null);
+			}
+			return;
+		}
+		this.bundleGeneration.incrementAndGet();
+		clearFormattedMessageCache();
+		invalidateRoutingIndexes(filenames);
+	}
+
+	/**
+	 * Drop the routing indexes built from any of the given bundle files, or
+	 * all if the given set is {@code null} or contains {@code null}, keeping
+	 * those of unaffected Locales. Indexes being built concurrently are not
+	 * cached.
+	 */
+	private void invalidateRoutingIndexes(Set<String> filenames) {
+		this.routingGeneration.incrementAndGet();
+		if (filenames == null || filenames.contains(null)) {
+			this.cachedRoutingIndexes.clear();
+			return;
+		}
+		this.cachedRoutingIndexes.values().removeIf(index -> index.isBuiltFromAnyOf(filenames));
+	}
+
+	/**
+	 * Clear the resource bundle caches of this MessageSource and all its
+	 * ancestors.
+	 * 
+	 * @see #clearCache
+	 */
+	public void clearCacheIncludingAncestors() {
+		clearCache();
+		if (getParentMessageSource() instanceof ReloadableResourceBundleMessageSource) {
+			((ReloadableResourceBundleMessageSource) getParentMessageSource()).clearCacheIncludingAncestors();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getName() + ": basenames=[" + Arrays.stream(basenames).collect(Collectors.joining(",")) + "]";
+	}
+
+	/**
+	 * PropertiesHolder for caching. Stores the last-modified timestamp of the
+	 * source file for efficient change detection, and the timestamp of the last
+	 * refresh attempt (updated every time the cache entry gets re-validated).
+	 */
+	protected class PropertiesHolder {
+
+		private final Properties properties;
+
+		private volatile long fileTimestamp;
+
+		/** Digest of the bundle file's content, if known */
+		private final byte[] contentDigest;
+
+		/** Properties of the bundle file alone, without patch */
+		private final Properties baseProperties;
+
+		/** Entries of the patch file applied, or {@code null} if none */
+		private final Properties patchProperties;
+
+		private final long patchTimestamp;
+
+		private volatile long refreshTimestamp = -2;
+
+		private final long refreshJitter = refreshScheduler.nextJitter();
+
+		private final ReentrantLock refreshLock = new ReentrantLock();
+
+		/** Estimated weight of the properties, computed on first request */
+		private volatile long propertiesWeight = -1;
+
+		/** Estimated weight of the cached messages, kept up to date */
+		private final LongAdder cachedMessagesWeight = new LongAdder();
+
+		/** Weight and last access of the cached messages per message code */
+		private final ConcurrentMap<String, MessageUsage> messageUsages = new ConcurrentHashMap<>();
+
+		/** Cache to hold already generated MessageFormats per message code */
+		private final ConcurrentMap<String, Map<Locale, MessageFormat>> cachedMessageFormats = new ConcurrentHashMap<>();
+
+		/** Cache to hold already compiled MessageTemplates per message code */
+		private final ConcurrentMap<String, Map<Locale, MessageTemplate>> cachedMessageTemplates = new ConcurrentHashMap<>();
+
+		/** Cache to hold already encoded messages per message code */
+		private final ConcurrentMap<String, Map<Charset, byte[]>> cachedEncodedMessages = new ConcurrentHashMap<>();
+
+		/** Cache to hold already HTML-escaped messages per message code */
+		private final ConcurrentMap<String, String> cachedHtmlEscapedMessages = new ConcurrentHashMap<>();
+
+		/** Cache to hold already generated HTML-escaping MessageFormats per message code */
+		private final ConcurrentMap<String, Map<Locale, MessageFormat>> cachedHtmlEscapedMessageFormats = new ConcurrentHashMap<>();
+
+		public PropertiesHolder() {
+			this(null, -1);
+		}
+
+		public PropertiesHolder(Properties properties, long fileTimestamp) {
+			this(properties, fileTimestamp, null);
+		}
+
+		private PropertiesHolder(Properties properties, long fileTimestamp, byte[] contentDigest) {
+			this(properties, fileTimestamp, contentDigest, properties, null, -1);
+		}
+
+		private PropertiesHolder(Properties properties, long fileTimestamp, byte[] contentDigest,
+				Properties baseProperties, Properties patchProperties, long patchTimestamp) {
+			this.properties = properties;
+			this.fileTimestamp = fileTimestamp;
+			this.contentDigest = contentDigest;
+			this.baseProperties = baseProperties;
+			this.patchProperties = patchProperties;
+			this.patchTimestamp = patchTimestamp;
+		}
+
+		public Properties getProperties() {
+			return this.properties;
+		}
+
+		public long getFileTimestamp() {
+			return this.fileTimestamp;
+		}
+
+		/**
+		 * Update the last-modified timestamp of a bundle file whose content
+		 * has been found unchanged.
+		 */
+		void setFileTimestamp(long fileTimestamp) {
+			this.fileTimestamp = fileTimestamp;
+		}
+
+		byte[] getContentDigest() {
+			return this.contentDigest;
+		}
+
+		public void setRefreshTimestamp(long refreshTimestamp) {
+			this.refreshTimestamp = refreshTimestamp;
+		}
+
+		public long getRefreshTimestamp() {
+			return this.refreshTimestamp;
+		}
+
+		/**
+		 * Forget the last-modified timestamp of the bundle file, so that the
+		 * next refresh reads the file even if its timestamp is unchanged.
+		 */
+		void invalidateFileTimestamp() {
+			this.fileTimestamp = -2;
+		}
+
+		boolean isFileTimestampInvalidated() {
+			return this.fileTimestamp == -2;
+		}
+
+		/**
+		 * Return the random number of milliseconds that this holder stays up
+		 * to date beyond the "cacheSeconds" period.
+		 */
+		public long getRefreshJitter() {
+			return this.refreshJitter;
+		}
+
+		public long getPatchTimestamp() {
+			return this.patchTimestamp;
+		}
+
+		/**
+		 * Create a holder for the properties of this holder's bundle file with
+		 * the given patch applied instead of the current one, taking over the
+		 * cached messages for all codes whose message stays the same.
+		 * 
+		 * @param patch
+		 *            the patch entries, or {@code null} if none
+		 * @param patchTimestamp
+		 *            the last-modified timestamp of the patch file, or -1 if
+		 *            none
+		 */
+		public PropertiesHolder withPatch(Properties patch, long patchTimestamp) {
+			Properties properties;
+			if (patch == null || patch.isEmpty()) {
+				properties = this.baseProperties;
+			} else if (patch.size() >= patchCompactionThreshold) {
+				properties = newProperties();
+				properties.putAll(this.baseProperties);
+				properties.putAll(patch);
+			} else {
+				properties = new Properties(this.baseProperties);
+				properties.putAll(patch);
+			}
+			PropertiesHolder patchedHolder = new PropertiesHolder(properties, this.fileTimestamp,
+					this.contentDigest, this.baseProperties, patch, patchTimestamp);
+			patchedHolder.copyCachedMessages(this);
+			return patchedHolder;
+		}
+
+		/**
+		 * Copy all entries of the properties into the given Properties,
+		 * including the entries of the bundle file that a patch overlays.
+		 */
+		void copyPropertiesTo(Properties target) {
+			if (this.baseProperties != null && this.baseProperties != this.properties) {
+				target.putAll(this.baseProperties);
+			}
+			target.putAll(this.properties);
+		}
+
+		/**
+		 * Return the estimated heap weight of the properties and the cached
+		 * messages of this holder, in bytes.
+		 */
+		long getWeight() {
+			long weight = this.propertiesWeight;
+			if (weight < 0) {
+				weight = MemoryWeigher.weigh(this.properties);
+				if (this.baseProperties != this.properties) {
+					weight += MemoryWeigher.weigh(this.baseProperties);
+				}
+				if (this.patchProperties != null) {
+					// The patch entries are shared with the patched properties.
+					weight += MemoryWeigher.ENTRY * (this.patchProperties.size() + 1);
+				}
+				this.propertiesWeight = weight;
+			}
+			return weight + this.cachedMessagesWeight.sum();
+		}
+
+		/**
+		 * Account for the given weight of messages cached for the given code.
+		 */
+		private void messageCached(String code, long weight) {
+			this.messageUsages.computeIfAbsent(code, key -> new MessageUsage(getLookupTime())).weight.add(weight);
+			this.cachedMessagesWeight.add(weight);
+		}
+
+		/**
+		 * Mark the cached messages of the given code as accessed, if keeping
+		 * within a memory budget.
+		 */
+		void touchMessage(String code) {
+			if (memoryBudget >= 0) {
+				MessageUsage usage = this.messageUsages.get(code);
+				if (usage != null) {
+					usage.touch(getLookupTime());
+				}
+			}
+		}
+
+		/**
+		 * Add a candidate for the cached messages of each code to the given
+		 * list, for evicting them code by code to get back within the memory
+		 * budget.
+		 */
+		void addEvictionCandidates(List<MemoryWeigher.Candidate> candidates) {
+			for (Map.Entry<String, MessageUsage> entry : this.messageUsages.entrySet()) {
+				String code = entry.getKey();
+				MessageUsage usage = entry.getValue();
+				candidates.add(new MemoryWeigher.Candidate(usage.lastAccess, usage.weight.sum(),
+						() -> evictMessage(code, usage)));
+			}
+		}
+
+		/**
+		 * Drop all cached messages of the given code, unless dropped in the
+		 * meantime. They get compiled again on demand.
+		 * 
+		 * @return the estimated weight freed
+		 */
+		private long evictMessage(String code, MessageUsage usage) {
+			if (!this.messageUsages.remove(code, usage)) {
+				return 0;
+			}
+			this.cachedMessageFormats.remove(code);
+			this.cachedMessageTemplates.remove(code);
+			this.cachedEncodedMessages.remove(code);
+			this.cachedHtmlEscapedMessages.remove(code);
+			this.cachedHtmlEscapedMessageFormats.remove(code);
+			long weight = usage.weight.sum();
+			this.cachedMessagesWeight.add(-weight);
+			return weight;
+		}
+
+		/**
+		 * Drop the messages compiled for the given Locales.
+		 */
+		void evictLocales(Set<Locale> locales) {
+			evictLocales(this.cachedMessageFormats, locales);
+			evictLocales(this.cachedMessageTemplates, locales);
+			evictLocales(this.cachedHtmlEscapedMessageFormats, locales);
+		}
+
+		private void evictLocales(Map<String, ? extends Map<Locale, ?>> cache, Set<Locale> locales) {
+			for (Map.Entry<String, ? extends Map<Locale, ?>> entry : cache.entrySet()) {
+				for (Locale locale : locales) {
+					if (entry.getValue().remove(locale) != null) {
+						MessageUsage usage = this.messageUsages.get(entry.getKey());
+						if (usage != null) {
+							usage.weight.add(-MemoryWeigher.COMPILED_ENTRY);
+							this.cachedMessagesWeight.add(-MemoryWeigher.COMPILED_ENTRY);
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * Take over the cached messages of the given holder for all codes
+		 * whose message is the same in both holders.
+		 */
+		void copyCachedMessages(PropertiesHolder other) {
+			Set<String> unchangedCodes = new HashSet<>();
+			Set<String> changedCodes = new HashSet<>();
+			copyCachedEntries(other, other.cachedMessageFormats, this.cachedMessageFormats,
+					MemoryWeigher::weighCompiled, unchangedCodes, changedCodes);
+			copyCachedEntries(other, other.cachedMessageTemplates, this.cachedMessageTemplates,
+					MemoryWeigher::weighCompiled, unchangedCodes, changedCodes);
+			copyCachedEntries(other, other.cachedEncodedMessages, this.cachedEncodedMessages,
+					MemoryWeigher::weighEncoded, unchangedCodes, changedCodes);
+			copyCachedEntries(other, other.cachedHtmlEscapedMessages, this.cachedHtmlEscapedMessages,
+					message -> MemoryWeigher.ENTRY + MemoryWeigher.weigh(message), unchangedCodes, changedCodes);
+			copyCachedEntries(other, other.cachedHtmlEscapedMessageFormats, this.cachedHtmlEscapedMessageFormats,
+					MemoryWeigher::weighCompiled, unchangedCodes, changedCodes);
+		}
+
+		private <V> void copyCachedEntries(PropertiesHolder other, Map<String, V> source, Map<String, V> target,
+				ToLongFunction<V> weigher, Set<String> unchangedCodes, Set<String> changedCodes) {
+			for (Map.Entry<String, V> entry : source.entrySet()) {
+				String code = entry.getKey();
+				boolean unchanged = unchangedCodes.contains(code);
+				if (!unchanged && !changedCodes.contains(code)) {
+					unchanged = Objects.equals(other.getProperty(code), getProperty(code));
+					(unchanged ? unchangedCodes : changedCodes).add(code);
+				}
+				if (unchanged && target.put(code, entry.getValue()) == null) {
+					messageCached(code, weigher.applyAsLong(entry.getValue()));
+				}
+			}
+		}
+
+		public String getProperty(String code) {
+			if (this.properties == null) {
+				return null;
+			}
+			return this.properties.getProperty(code);
+		}
+
+		public MessageFormat getMessageFormat(String code, Locale locale) {
+			if (this.properties == null) {
+				return null;
+			}
+			Map<Locale, MessageFormat> localeMap = this.cachedMessageFormats.get(code);
+			if (localeMap != null) {
+				MessageFormat result = localeMap.get(locale);
+				if (result != null) {
+					touchMessage(code);
+					return result;
+				}
+			}
+			String msg = this.properties.getProperty(code);
+			if (msg != null) {
+				if (localeMap == null) {
+					localeMap = new ConcurrentHashMap<>();
+					Map<Locale, MessageFormat> existing = this.cachedMessageFormats.putIfAbsent(code, localeMap);
+					if (existing != null) {
+						localeMap = existing;
+					} else {
+						messageCached(code, MemoryWeigher.weighCode());
+					}
+				}
+				MessageFormat result = createMessageFormat(msg, locale);
+				if (localeMap.put(locale, result) == null) {
+					messageCached(code, MemoryWeigher.COMPILED_ENTRY);
+				}
+				return result;
+			}
+			return null;
+		}
+
+		public MessageTemplate getMessageTemplate(String code, Locale locale) {
+			if (this.properties == null) {
+				return null;
+			}
+			Map<Locale, MessageTemplate> localeMap = this.cachedMessageTemplates.get(code);
+			MessageTemplate result = null;
+			if (localeMap != null) {
+				result = localeMap.get(locale);
+			}
+			if (result != null) {
+				touchMessage(code);
+			} else {
+				String msg = this.properties.getProperty(code);
+				if (msg == null) {
+					return null;
+				}
+				if (localeMap == null) {
+					localeMap = new ConcurrentHashMap<>();
+					Map<Locale, MessageTemplate> existing = this.cachedMessageTemplates.putIfAbsent(code, localeMap);
+					if (existing != null) {
+						localeMap = existing;
+					} else {
+						messageCached(code, MemoryWeigher.weighCode());
+					}
+				}
+				result = MessageTemplate.compile(msg, locale);
+				if (localeMap.put(locale, result) == null) {
+					messageCached(code, MemoryWeigher.COMPILED_ENTRY);
+				}
+			}
+			return result != MessageTemplate.UNSUPPORTED ? result : null;
+		}
+
+		public byte[] getEncodedProperty(String code, Charset charset) {
+			if (this.properties == null) {
+				return null;
+			}
+			Map<Charset, byte[]> charsetMap = this.cachedEncodedMessages.get(code);
+			if (charsetMap != null) {
+				byte[] result = charsetMap.get(charset);
+				if (result != null) {
+					touchMessage(code);
+					return result;
+				}
+			}
+			String msg = this.properties.getProperty(code);
+			if (msg != null) {
+				if (charsetMap == null) {
+					charsetMap = new ConcurrentHashMap<>();
+					Map<Charset, byte[]> existing = this.cachedEncodedMessages.putIfAbsent(code, charsetMap);
+					if (existing != null) {
+						charsetMap = existing;
+					} else {
+						messageCached(code, MemoryWeigher.weighCode());
+					}
+				}
+				byte[] result = msg.getBytes(charset);
+				if (charsetMap.put(charset, result) == null) {
+					messageCached(code, MemoryWeigher.ENTRY + MemoryWeigher.OBJECT + result.length);
+				}
+				return result;
+			}
+			return null;
+		}
+
+		public String getHtmlEscapedProperty(String code) {
+			if (this.properties == null) {
+				return null;
+			}
+			String result = this.cachedHtmlEscapedMessages.get(code);
+			if (result != null) {
+				touchMessage(code);
+			} else {
+				String msg = this.properties.getProperty(code);
+				if (msg == null) {
+					return null;
+				}
+				result = HtmlUtils.htmlEscape(msg);
+				if (this.cachedHtmlEscapedMessages.put(code, result) == null) {
+					messageCached(code, MemoryWeigher.ENTRY + MemoryWeigher.weigh(result));
+				}
+			}
+			return result;
+		}
+
+		public MessageFormat getHtmlEscapedMessageFormat(String code, Locale locale) {
+			if (this.properties == null) {
+				return null;
+			}
+			Map<Locale, MessageFormat> localeMap = this.cachedHtmlEscapedMessageFormats.get(code);
+			MessageFormat result = null;
+			if (localeMap != null) {
+				result = localeMap.get(locale);
+			}
+			if (result != null) {
+				touchMessage(code);
+			} else {
+				String msg = this.properties.getProperty(code);
+				if (msg == null) {
+					return null;
+				}
+				if (localeMap == null) {
+					localeMap = new ConcurrentHashMap<>();
+					Map<Locale, MessageFormat> existing = this.cachedHtmlEscapedMessageFormats.putIfAbsent(code,
+							localeMap);
+					if (existing != null) {
+						localeMap = existing;
+					} else {
+						messageCached(code, MemoryWeigher.weighCode());
+					}
+				}
+				result = HtmlEscapingFormat.createMessageFormat(msg, createMessageFormat(msg, locale), locale);
+				if (result == null) {
+					result = UNESCAPABLE_MESSAGE_FORMAT;
+				}
+				if (localeMap.put(locale, result) == null) {
+					messageCached(code, MemoryWeigher.COMPILED_ENTRY);
+				}
+			}
+			return result != UNESCAPABLE_MESSAGE_FORMAT ? result : null;
+		}
+	}
+
+	/**
+	 * Message resolved through a {@link MessageKey}, remembering the holder it
+	 * was found in along with its MessageFormat once compiled.
+	 */
+	private static final class KeyedMessage {
+
+		/** Table entry marking a key that is not defined in any bundle file */
+		static final Object NOT_FOUND = new Object();
+
+		private final PropertiesHolder propHolder;
+
+		private final String code;
+
+		private final String message;
+
+		private volatile MessageFormat messageFormat;
+
+		KeyedMessage(PropertiesHolder propHolder, String code) {
+			this.propHolder = propHolder;
+			this.code = code;
+			this.message = propHolder.getProperty(code);
+		}
+
+		String getMessage() {
+			return this.message;
+		}
+
+		MessageFormat getMessageFormat(Locale locale) {
+			MessageFormat result = this.messageFormat;
+			if (result == null) {
+				result = this.propHolder.getMessageFormat(this.code, locale);
+				this.messageFormat = result;
+			} else {
+				this.propHolder.touchMessage(this.code);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Resource whose content has already been read into memory, standing in
+	 * for the original resource when parsing it.
+	 */
+	private static final class LoadedResource extends AbstractResource {
+
+		private final Resource resource;
+
+		private final byte[] content;
+
+		LoadedResource(Resource resource, byte[] content) {
+			this.resource = resource;
+			this.content = content;
+		}
+
+		@Override
+		public boolean exists() {
+			return true;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return new ByteArrayInputStream(this.content);
+		}
+
+		@Override
+		public long contentLength() {
+			return this.content.length;
 		}
 
-		if (variant.length() > 0 && (language.length() > 0 || country.length() > 0)) {
-			temp.append('_').append(variant);
-			result.add(0, temp.toString());
+		@Override
+		public String getFilename() {
+			return this.resource.getFilename();
 		}
 
-		return result;
+		@Override
+		public String getDescription() {
+			return this.resource.getDescription();
+		}
 	}
 
 	/**
-	 * Get a PropertiesHolder for the given filename, either from the cache or
-	 * freshly loaded.
-	 * 
-	 * @param filename
-	 *            the bundle filename (basename + Locale)
-	 * @return the current PropertiesHolder for the bundle
+	 * Immutable set of loaded bundle files and merged properties, published
+	 * as a whole when refreshing bundle files atomically.
 	 */
-	protected PropertiesHolder getProperties(String filename) {
-		PropertiesHolder propHolder = this.cachedProperties.get(filename);
-		long originalTimestamp = -2;
+	private static final class BundleSnapshot {
 
-		if (propHolder != null) {
-			originalTimestamp = propHolder.getRefreshTimestamp();
-			if (originalTimestamp == -1 || originalTimestamp > System.currentTimeMillis() - this.cacheMillis) {
-				// Up to date
-				return propHolder;
-			}
-		} else {
-			propHolder = new PropertiesHolder();
-			PropertiesHolder existingHolder = this.cachedProperties.putIfAbsent(filename, propHolder);
-			if (existingHolder != null) {
-				propHolder = existingHolder;
-			}
+		private final Map<String, PropertiesHolder> holders;
+
+		private final Map<Locale, PropertiesHolder> mergedHolders;
+
+		private final long refreshTimestamp;
+
+		BundleSnapshot(Map<String, PropertiesHolder> holders, Map<Locale, PropertiesHolder> mergedHolders,
+				long refreshTimestamp) {
+			this.holders = holders;
+			this.mergedHolders = mergedHolders;
+			this.refreshTimestamp = refreshTimestamp;
 		}
 
-		// At this point, we need to refresh...
-		if (this.concurrentRefresh && propHolder.getRefreshTimestamp() >= 0) {
-			// A populated but stale holder -> could keep using it.
-			if (!propHolder.refreshLock.tryLock()) {
-				// Getting refreshed by another thread already ->
-				// let's return the existing properties for the time being.
-				return propHolder;
-			}
-		} else {
-			propHolder.refreshLock.lock();
+		Map<String, PropertiesHolder> getHolders() {
+			return this.holders;
 		}
-		try {
-			PropertiesHolder existingHolder = this.cachedProperties.get(filename);
-			if (existingHolder != null && existingHolder.getRefreshTimestamp() > originalTimestamp) {
-				return existingHolder;
-			}
-			return refreshProperties(filename, propHolder);
-		} finally {
-			propHolder.refreshLock.unlock();
+
+		Map<Locale, PropertiesHolder> getMergedHolders() {
+			return this.mergedHolders;
 		}
-	}
 
-	/**
-	 * Refresh the PropertiesHolder for the given bundle filename. The holder
-	 * can be {@code null} if not cached before, or a timed-out cache entry
-	 * (potentially getting re-validated against the current last-modified
-	 * timestamp).
-	 * 
-	 * @param filename
-	 *            the bundle filename (basename + Locale)
-	 * @param propHolder
-	 *            the current PropertiesHolder for the bundle
-	 */
-	protected PropertiesHolder refreshProperties(String filename, PropertiesHolder propHolder) {
-		long refreshTimestamp = this.cacheMillis < 0 ? -1 : System.currentTimeMillis();
+		PropertiesHolder getProperties(String filename) {
+			return this.holders.get(filename);
+		}
 
-		Resource resource = this.resourceLoader.getResource(filename + PROPERTIES_SUFFIX);
-		if (!resource.exists()) {
-			resource = this.resourceLoader.getResource(filename + XML_SUFFIX);
+		PropertiesHolder getMergedProperties(Locale locale) {
+			return this.mergedHolders.get(locale);
 		}
 
-		if (resource.exists()) {
-			long fileTimestamp = -1;
-			if (this.cacheMillis >= 0) {
-				// Last-modified timestamp of file will just be read if caching
-				// with timeout.
-				try {
-					fileTimestamp = resource.lastModified();
-					if (propHolder != null && propHolder.getFileTimestamp() == fileTimestamp) {
-						if (logger.isDebugEnabled()) {
-							logger.debug("Re-caching properties for filename [" + filename
-									+ "] - file hasn't been modified");
-						}
-						propHolder.setRefreshTimestamp(refreshTimestamp);
-						return propHolder;
-					}
-				} catch (IOException ex) {
-					// Probably a class path resource: cache it forever.
-					if (logger.isDebugEnabled()) {
-						logger.debug(
-								resource + " could not be resolved in the file system - assuming that it hasn't changed",
-								ex);
-					}
-					fileTimestamp = -1;
-				}
-			}
-			try {
-				Properties props = loadProperties(resource, filename);
-				propHolder = new PropertiesHolder(props, fileTimestamp);
-			} catch (IOException ex) {
-				if (logger.isWarnEnabled()) {
-					logger.warn("Could not parse properties file [" + resource.getFilename() + "]", ex);
-				}
-				// Empty holder representing "not valid".
-				propHolder = new PropertiesHolder();
-			}
+		long getRefreshTimestamp() {
+			return this.refreshTimestamp;
 		}
 
-		else {
-			// Resource does not exist.
-			if (logger.isDebugEnabled()) {
-				logger.debug("No properties file found for [" + filename + "] - neither plain properties nor XML");
-			}
-			// Empty holder representing "not found".
-			propHolder = new PropertiesHolder();
+		BundleSnapshot withProperties(String filename, PropertiesHolder propHolder) {
+			Map<String, PropertiesHolder> holders = new HashMap<>(this.holders);
+			holders.put(filename, propHolder);
+			return new BundleSnapshot(holders, this.mergedHolders, this.refreshTimestamp);
 		}
 
-		propHolder.setRefreshTimestamp(refreshTimestamp);
-		this.cachedProperties.put(filename, propHolder);
-		return propHolder;
+		BundleSnapshot withMergedProperties(Locale locale, PropertiesHolder mergedHolder) {
+			Map<Locale, PropertiesHolder> mergedHolders = new HashMap<>(this.mergedHolders);
+			mergedHolders.put(locale, mergedHolder);
+			return new BundleSnapshot(this.holders, mergedHolders, this.refreshTimestamp);
+		}
+
+		BundleSnapshot without(Set<String> filenames, Set<Locale> locales) {
+			Map<String, PropertiesHolder> holders = new HashMap<>(this.holders);
+			holders.keySet().removeAll(filenames);
+			Map<Locale, PropertiesHolder> mergedHolders = new HashMap<>(this.mergedHolders);
+			mergedHolders.keySet().removeAll(locales);
+			return new BundleSnapshot(holders, mergedHolders, this.refreshTimestamp);
+		}
 	}
 
 	/**
-	 * Load the properties from the given resource.
-	 * 
-	 * @param resource
-	 *            the resource to load from
-	 * @param filename
-	 *            the original bundle filename (basename + Locale)
-	 * @return the populated Properties instance
-	 * @throws IOException
-	 *             if properties loading failed
+	 * Access tracking for the cached state of a Locale, for evicting it when
+	 * idle or when memory runs low.
 	 */
-	protected Properties loadProperties(Resource resource, String filename) throws IOException {
-		Properties props = newProperties();
-		try (InputStream is = resource.getInputStream()) {
-			if (resource.getFilename().endsWith(XML_SUFFIX)) {
-				if (logger.isDebugEnabled()) {
-					logger.debug("Loading properties [" + resource.getFilename() + "]");
-				}
-				this.propertiesPersister.loadFromXml(props, is);
-			} else {
-				String encoding = null;
-				if (this.fileEncodings != null) {
-					encoding = this.fileEncodings.getProperty(filename);
-				}
-				if (encoding == null) {
-					encoding = this.defaultEncoding;
-				}
-				if (encoding != null) {
-					if (logger.isDebugEnabled()) {
-						logger.debug(
-								"Loading properties [" + resource.getFilename() + "] with encoding '" + encoding + "'");
-					}
-					this.propertiesPersister.load(props, new InputStreamReader(is, encoding));
-				} else {
-					if (logger.isDebugEnabled()) {
-						logger.debug("Loading properties [" + resource.getFilename() + "]");
-					}
-					this.propertiesPersister.load(props, is);
-				}
+	private static final class LocaleSlice {
+
+		private final Locale locale;
+
+		private volatile long lastAccess;
+
+		/** Canary for memory pressure, if tracked */
+		private final LocaleCanary canary;
+
+		LocaleSlice(Locale locale, long now, ReferenceQueue<Object> canaryQueue) {
+			this.locale = locale;
+			this.lastAccess = now;
+			this.canary = (canaryQueue != null ? new LocaleCanary(this, canaryQueue) : null);
+		}
+
+		void touch(long now) {
+			// Coarse-grained, to keep lookups from contending on the field.
+			if (now - this.lastAccess >= LOCALE_EVICTION_CHECK_MILLIS) {
+				this.lastAccess = now;
+			}
+			if (this.canary != null) {
+				// Marks the canary as recently used for the garbage collector.
+				this.canary.get();
 			}
-			return props;
 		}
 	}
 
 	/**
-	 * Template method for creating a plain new {@link Properties} instance. The
-	 * default implementation simply calls {@link Properties#Properties()}.
-	 * <p>
-	 * Allows for returning a custom {@link Properties} extension in subclasses.
-	 * Overriding methods should just instantiate a custom {@link Properties}
-	 * subclass, with no further initialization or population to be performed at
-	 * that point.
-	 * 
-	 * @return a plain Properties instance
-	 * @since 4.2
+	 * Estimated weight and last access of the messages cached for a message
+	 * code, for evicting them when over the memory budget.
 	 */
-	protected Properties newProperties() {
-		return new Properties();
-	}
+	private static final class MessageUsage {
 
-	/**
-	 * Clear the resource bundle cache. Subsequent resolve calls will lead to
-	 * reloading of the properties files.
-	 */
-	public void clearCache() {
-		logger.debug("Clearing entire resource bundle cache");
-		this.cachedProperties.clear();
-		this.cachedMergedProperties.clear();
+		private final LongAdder weight = new LongAdder();
+
+		private volatile long lastAccess;
+
+		MessageUsage(long now) {
+			this.lastAccess = now;
+		}
+
+		void touch(long now) {
+			// Coarse-grained, as lookups share the time per eviction check.
+			if (this.lastAccess != now) {
+				this.lastAccess = now;
+			}
+		}
 	}
 
 	/**
-	 * Clear the resource bundle caches of this MessageSource and all its
-	 * ancestors.
-	 * 
-	 * @see #clearCache
+	 * Softly referenced object that the garbage collector clears when memory
+	 * runs low, least recently accessed first, signalling that its Locale is
+	 * to be evicted.
 	 */
-	public void clearCacheIncludingAncestors() {
-		clearCache();
-		if (getParentMessageSource() instanceof ReloadableResourceBundleMessageSource) {
-			((ReloadableResourceBundleMessageSource) getParentMessageSource()).clearCacheIncludingAncestors();
-		}
-	}
+	private static final class LocaleCanary extends SoftReference<Object> {
 
-	@Override
-	public String toString() {
-		return getClass().getName() + ": basenames=[" + Arrays.stream(basenames).collect(Collectors.joining(",")) + "]";
+		private final LocaleSlice slice;
+
+		LocaleCanary(LocaleSlice slice, ReferenceQueue<Object> queue) {
+			super(new Object(), queue);
+			this.slice = slice;
+		}
 	}
 
 	/**
-	 * PropertiesHolder for caching. Stores the last-modified timestamp of the
-	 * source file for efficient change detection, and the timestamp of the last
-	 * refresh attempt (updated every time the cache entry gets re-validated).
+	 * Per-locale index of the bundle filename that defines each message code,
+	 * valid until a given expiry time or until one of the bundle files it was
+	 * built from changes.
 	 */
-	protected class PropertiesHolder {
+	private static final class RoutingIndex {
 
-		private final Properties properties;
+		private final long expiry;
 
-		private final long fileTimestamp;
+		private final Map<String, String> filenames;
 
-		private volatile long refreshTimestamp = -2;
+		private final Set<String> sources;
 
-		private final ReentrantLock refreshLock = new ReentrantLock();
+		RoutingIndex(long expiry, Map<String, String> filenames, Set<String> sources) {
+			this.expiry = expiry;
+			this.filenames = filenames;
+			this.sources = sources;
+		}
 
-		/** Cache to hold already generated MessageFormats per message code */
-		private final ConcurrentMap<String, Map<Locale, MessageFormat>> cachedMessageFormats = new ConcurrentHashMap<>();
+		boolean isValid() {
+			return this.expiry > System.currentTimeMillis();
+		}
 
-		public PropertiesHolder() {
-			this.properties = null;
-			this.fileTimestamp = -1;
+		boolean isBuiltFromAnyOf(Set<String> changedFilenames) {
+			for (String filename : changedFilenames) {
+				if (this.sources.contains(filename)) {
+					return true;
+				}
+			}
+			return false;
 		}
 
-		public PropertiesHolder(Properties properties, long fileTimestamp) {
-			this.properties = properties;
-			this.fileTimestamp = fileTimestamp;
+		String getFilename(String code) {
+			return this.filenames.get(code);
 		}
 
-		public Properties getProperties() {
-			return this.properties;
+		long getWeight() {
+			// Codes and filenames are shared with the properties and caches.
+			return MemoryWeigher.ENTRY * (this.filenames.size() + this.sources.size() + 2);
 		}
+	}
 
-		public long getFileTimestamp() {
-			return this.fileTimestamp;
+	/**
+	 * Per-locale table of {@link KeyedMessage} entries indexed by key slot,
+	 * valid for a specific bundle generation until a given expiry time.
+	 */
+	private static final class MessageKeyTable {
+
+		private final long generation;
+
+		private final long expiry;
+
+		private final AtomicReferenceArray<Object> entries;
+
+		/** Estimated weight of the messages, kept up to date */
+		private final LongAdder messagesWeight;
+
+		MessageKeyTable(long generation, long expiry, int size) {
+			this(generation, expiry, new AtomicReferenceArray<>(Math.max(size, 16)), new LongAdder());
 		}
 
-		public void setRefreshTimestamp(long refreshTimestamp) {
-			this.refreshTimestamp = refreshTimestamp;
+		private MessageKeyTable(long generation, long expiry, AtomicReferenceArray<Object> entries,
+				LongAdder messagesWeight) {
+			this.generation = generation;
+			this.expiry = expiry;
+			this.entries = entries;
+			this.messagesWeight = messagesWeight;
 		}
 
-		public long getRefreshTimestamp() {
-			return this.refreshTimestamp;
+		boolean isValid(long currentGeneration) {
+			return this.generation == currentGeneration
+					&& (this.expiry == Long.MAX_VALUE || this.expiry > System.currentTimeMillis());
 		}
 
-		public String getProperty(String code) {
-			if (this.properties == null) {
-				return null;
-			}
-			return this.properties.getProperty(code);
+		Object get(int slot) {
+			return slot < this.entries.length() ? this.entries.get(slot) : null;
 		}
 
-		public MessageFormat getMessageFormat(String code, Locale locale) {
-			if (this.properties == null) {
-				return null;
+		long getWeight() {
+			return MemoryWeigher.OBJECT * 2 + 4L * this.entries.length() + this.messagesWeight.sum();
+		}
+
+		/**
+		 * Store the given entry, returning this table or - if the slot is out
+		 * of range - a grown copy of it.
+		 */
+		MessageKeyTable set(int slot, Object entry) {
+			Object previous = (slot < this.entries.length() ? this.entries.getAndSet(slot, entry) : null);
+			if (previous == null && entry instanceof KeyedMessage) {
+				// Message compiled on demand, pattern shared with the properties.
+				this.messagesWeight.add(MemoryWeigher.OBJECT * 2 + MemoryWeigher.COMPILED_MESSAGE);
 			}
-			Map<Locale, MessageFormat> localeMap = this.cachedMessageFormats.get(code);
-			if (localeMap != null) {
-				MessageFormat result = localeMap.get(locale);
-				if (result != null) {
-					return result;
-				}
+			if (slot < this.entries.length()) {
+				return this;
 			}
-			String msg = this.properties.getProperty(code);
-			if (msg != null) {
-				if (localeMap == null) {
-					localeMap = new ConcurrentHashMap<>();
-					Map<Locale, MessageFormat> existing = this.cachedMessageFormats.putIfAbsent(code, localeMap);
-					if (existing != null) {
-						localeMap = existing;
-					}
-				}
-				MessageFormat result = createMessageFormat(msg, locale);
-				localeMap.put(locale, result);
-				return result;
+			AtomicReferenceArray<Object> grown = new AtomicReferenceArray<>(Math.max(slot + 1,
+					this.entries.length() * 2));
+			for (int i = 0; i < this.entries.length(); i++) {
+				grown.set(i, this.entries.get(i));
 			}
-			return null;
+			grown.set(slot, entry);
+			return new MessageKeyTable(this.generation, this.expiry, grown, this.messagesWeight);
 		}
 	}
 
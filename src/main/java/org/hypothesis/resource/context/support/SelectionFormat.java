@@ -0,0 +1,348 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hypothesis.resource.context.support;
+
+import java.text.ChoiceFormat;
+import java.text.FieldPosition;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Base class for the ICU-style "plural" and "select" argument formats, e.g.
+ * "{0,plural,=0{no files} one{# file} other{# files}}" or
+ * "{1,select,female{her} male{his} other{their}}".
+ *
+ * <p>
+ * The format style is a sequence of selectors, each followed by a message
+ * in braces; an "other" message is required. Plural selectors are exact
+ * values such as "=0", which take precedence, and the CLDR plural categories
+ * "zero", "one", "two", "few", "many" and "other" as determined by
+ * {@link PluralRules} for the Locale. Within a plural message, an unquoted
+ * "#" stands for the formatted number. Select selectors are matched against
+ * the String value of the argument.
+ *
+ * <p>
+ * Both formats extend {@link ChoiceFormat}, so that MessageFormat formats
+ * any placeholders within the chosen message, e.g. "other{# files in {2}}",
+ * against the full argument array, just like it does for "choice"
+ * arguments. Such nested placeholders cannot themselves be "plural" or
+ * "select" arguments. Messages without nested placeholders are unquoted
+ * when the format is built, so that formatting them involves neither
+ * parsing nor quote handling.
+ *
+ * @see PluralRules
+ * @see SharedFormats#createMessageFormat
+ */
+@SuppressWarnings("serial")
+abstract class SelectionFormat extends ChoiceFormat {
+
+	private final String pattern;
+
+	private final Locale locale;
+
+	private SelectionFormat(String pattern, Locale locale) {
+		super(new double[] { 0 }, new String[] { "" });
+		this.pattern = pattern;
+		this.locale = locale;
+	}
+
+	/**
+	 * Create a format for the style of a "plural" argument.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the style is invalid
+	 */
+	static SelectionFormat plural(String style, Locale locale) {
+		return new Plural(style, locale);
+	}
+
+	/**
+	 * Create a format for the style of a "select" argument.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the style is invalid
+	 */
+	static SelectionFormat select(String style, Locale locale) {
+		return new Select(style, locale);
+	}
+
+	/**
+	 * Parse the given format style into its selectors and messages, in
+	 * pattern syntax.
+	 */
+	private static Map<String, String> parseMessages(String style) {
+		Map<String, String> messages = new HashMap<>();
+		int i = 0;
+		while (true) {
+			while (i < style.length() && Character.isWhitespace(style.charAt(i))) {
+				i++;
+			}
+			if (i == style.length()) {
+				break;
+			}
+			int start = i;
+			while (i < style.length() && style.charAt(i) != '{' && !Character.isWhitespace(style.charAt(i))) {
+				i++;
+			}
+			String selector = style.substring(start, i);
+			while (i < style.length() && Character.isWhitespace(style.charAt(i))) {
+				i++;
+			}
+			if (selector.isEmpty() || i == style.length() || style.charAt(i) != '{') {
+				throw new IllegalArgumentException("Expected selector followed by '{' in: " + style);
+			}
+			start = ++i;
+			int depth = 1;
+			boolean inQuote = false;
+			for (; i < style.length() && depth > 0; i++) {
+				char ch = style.charAt(i);
+				if (ch == '\'') {
+					inQuote = !inQuote;
+				} else if (!inQuote && ch == '{') {
+					depth++;
+				} else if (!inQuote && ch == '}') {
+					depth--;
+				}
+			}
+			if (depth > 0) {
+				throw new IllegalArgumentException("Unmatched braces in: " + style);
+			}
+			if (messages.put(selector, style.substring(start, i - 1)) != null) {
+				throw new IllegalArgumentException("Duplicate selector '" + selector + "' in: " + style);
+			}
+		}
+		if (!messages.containsKey("other")) {
+			throw new IllegalArgumentException("Missing 'other' selector in: " + style);
+		}
+		return messages;
+	}
+
+	@Override
+	public String toPattern() {
+		return this.pattern;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (this == other) {
+			return true;
+		}
+		if (other == null || getClass() != other.getClass()) {
+			return false;
+		}
+		SelectionFormat otherFormat = (SelectionFormat) other;
+		return this.pattern.equals(otherFormat.pattern) && this.locale.equals(otherFormat.locale);
+	}
+
+	@Override
+	public int hashCode() {
+		return this.pattern.hashCode();
+	}
+
+	/**
+	 * A compiled message of a selector: literal pieces separated by
+	 * occurrences of the number.
+	 */
+	private static final class Branch {
+
+		private final String[] pieces;
+
+		/**
+		 * Whether the message is kept in pattern syntax, for MessageFormat
+		 * to format its nested placeholders
+		 */
+		private final boolean nested;
+
+		Branch(String message, boolean numbered) {
+			List<String> pieces = new ArrayList<>();
+			boolean nested = false;
+			int depth = 0;
+			boolean inQuote = false;
+			int start = 0;
+			for (int i = 0; i < message.length(); i++) {
+				char ch = message.charAt(i);
+				if (ch == '\'') {
+					inQuote = !inQuote;
+				} else if (!inQuote && ch == '{') {
+					nested = true;
+					depth++;
+				} else if (!inQuote && ch == '}') {
+					depth--;
+				} else if (!inQuote && ch == '#' && depth == 0 && numbered) {
+					pieces.add(message.substring(start, i));
+					start = i + 1;
+				}
+			}
+			pieces.add(message.substring(start));
+			if (!nested) {
+				// Unquote the pieces, unless literal braces would make
+				// MessageFormat take the result for a pattern.
+				String[] texts = new String[pieces.size()];
+				for (int i = 0; i < texts.length; i++) {
+					StringBuilder sb = new StringBuilder();
+					for (MessagePattern.Part part : MessagePattern.parse(pieces.get(i)).getParts()) {
+						sb.append(part.getText());
+					}
+					texts[i] = sb.toString();
+					nested |= texts[i].indexOf('{') >= 0;
+				}
+				if (!nested) {
+					pieces = Arrays.asList(texts);
+				}
+			}
+			this.pieces = pieces.toArray(new String[pieces.size()]);
+			this.nested = nested;
+		}
+
+		void append(StringBuffer sb, String number) {
+			sb.append(this.pieces[0]);
+			for (int i = 1; i < this.pieces.length; i++) {
+				sb.append(this.nested ? MessagePattern.quote(number) : number).append(this.pieces[i]);
+			}
+		}
+
+		boolean isNumbered() {
+			return this.pieces.length > 1;
+		}
+	}
+
+	/**
+	 * Format for "plural" arguments.
+	 */
+	private static final class Plural extends SelectionFormat {
+
+		private final PluralRules rules;
+
+		private final SharedFormats.StripedFormat numberFormat;
+
+		private final double[] exactValues;
+
+		private final Branch[] exactBranches;
+
+		/** Branch per plural category, with "other" as default */
+		private final Branch[] categoryBranches = new Branch[PluralRules.OTHER + 1];
+
+		Plural(String style, Locale locale) {
+			super(style, locale);
+			this.rules = PluralRules.forLocale(locale);
+			this.numberFormat = SharedFormats.getNumberFormat(locale, "");
+			List<Double> exactValues = new ArrayList<>();
+			List<Branch> exactBranches = new ArrayList<>();
+			for (Map.Entry<String, String> entry : parseMessages(style).entrySet()) {
+				String selector = entry.getKey();
+				Branch branch = new Branch(entry.getValue(), true);
+				if (selector.startsWith("=")) {
+					try {
+						exactValues.add(Double.valueOf(selector.substring(1)));
+					} catch (NumberFormatException ex) {
+						throw new IllegalArgumentException("Invalid plural value '" + selector + "' in: " + style);
+					}
+					exactBranches.add(branch);
+				} else {
+					int category = PluralRules.category(selector);
+					if (category < 0) {
+						throw new IllegalArgumentException("Unknown plural category '" + selector + "' in: " + style);
+					}
+					this.categoryBranches[category] = branch;
+				}
+			}
+			this.exactValues = new double[exactValues.size()];
+			for (int i = 0; i < this.exactValues.length; i++) {
+				this.exactValues[i] = exactValues.get(i);
+			}
+			this.exactBranches = exactBranches.toArray(new Branch[exactBranches.size()]);
+			for (int i = 0; i < PluralRules.OTHER; i++) {
+				if (this.categoryBranches[i] == null) {
+					this.categoryBranches[i] = this.categoryBranches[PluralRules.OTHER];
+				}
+			}
+		}
+
+		@Override
+		public StringBuffer format(long number, StringBuffer toAppendTo, FieldPosition status) {
+			Branch branch = getExactBranch(number);
+			if (branch == null) {
+				branch = this.categoryBranches[this.rules.select(number)];
+			}
+			branch.append(toAppendTo, branch.isNumbered() ? formatNumber(number) : null);
+			return toAppendTo;
+		}
+
+		@Override
+		public StringBuffer format(double number, StringBuffer toAppendTo, FieldPosition status) {
+			Branch branch = getExactBranch(number);
+			if (branch == null) {
+				branch = this.categoryBranches[this.rules.select(number)];
+			}
+			branch.append(toAppendTo, branch.isNumbered() ? formatNumber(number) : null);
+			return toAppendTo;
+		}
+
+		private Branch getExactBranch(double number) {
+			for (int i = 0; i < this.exactValues.length; i++) {
+				if (this.exactValues[i] == number) {
+					return this.exactBranches[i];
+				}
+			}
+			return null;
+		}
+
+		private String formatNumber(Object number) {
+			return this.numberFormat.format(number);
+		}
+	}
+
+	/**
+	 * Format for "select" arguments.
+	 */
+	private static final class Select extends SelectionFormat {
+
+		private final Map<String, Branch> branches = new HashMap<>();
+
+		private final Branch otherBranch;
+
+		Select(String style, Locale locale) {
+			super(style, locale);
+			for (Map.Entry<String, String> entry : parseMessages(style).entrySet()) {
+				this.branches.put(entry.getKey(), new Branch(entry.getValue(), false));
+			}
+			this.otherBranch = this.branches.get("other");
+		}
+
+		@Override
+		public StringBuffer format(Object obj, StringBuffer toAppendTo, FieldPosition pos) {
+			Branch branch = this.branches.get(String.valueOf(obj));
+			(branch != null ? branch : this.otherBranch).append(toAppendTo, null);
+			return toAppendTo;
+		}
+
+		@Override
+		public StringBuffer format(long number, StringBuffer toAppendTo, FieldPosition status) {
+			return format(Long.valueOf(number), toAppendTo, status);
+		}
+
+		@Override
+		public StringBuffer format(double number, StringBuffer toAppendTo, FieldPosition status) {
+			return format(Double.valueOf(number), toAppendTo, status);
+		}
+	}
+
+}
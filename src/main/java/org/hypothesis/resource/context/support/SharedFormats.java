@@ -0,0 +1,394 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hypothesis.resource.context.support;
+
+import java.text.ChoiceFormat;
+import java.text.DateFormat;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.FieldPosition;
+import java.text.Format;
+import java.text.MessageFormat;
+import java.text.NumberFormat;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+import org.hypothesis.resource.context.ConcurrentReferenceHashMap;
+
+/**
+ * Pool of thread-safe subformats shared by all {@link MessageFormat
+ * MessageFormats} compiled through {@link #createMessageFormat}, keyed by
+ * Locale, format type and style.
+ *
+ * <p>
+ * A plain {@code MessageFormat} constructs its own {@link NumberFormat},
+ * {@link DateFormat} and {@link ChoiceFormat} instances for every placeholder
+ * with a format type, and even creates a NumberFormat per call for numbers
+ * formatted through a plain "{n}" placeholder. Formats compiled here instead
+ * refer to shared {@link StripedFormat} instances, which spread concurrent
+ * access over a small, fixed number of copies of a format, each used under
+ * its own lock, so that each distinct subformat is built at most once per
+ * stripe. No formats are kept per thread, so pooled threads do not pin them
+ * beyond the lifetime of the application. Plain "{n}" placeholders render
+ * anything but numbers and dates without locking at all. ChoiceFormats are
+ * immutable once constructed and therefore shared as-is, as are the
+ * {@link SelectionFormat SelectionFormats} for the "plural" and "select"
+ * format types, which only MessageFormats compiled here understand.
+ *
+ * <p>
+ * The pool holds its formats through soft references, so rarely used formats
+ * can be reclaimed under memory pressure.
+ */
+final class SharedFormats {
+
+	private static final ConcurrentMap<String, Format> formats = new ConcurrentReferenceHashMap<>();
+
+	private SharedFormats() {
+	}
+
+	/**
+	 * Return whether the given message contains "plural" or "select"
+	 * arguments, which require {@link #createMessageFormat} to compile it.
+	 * Only parses messages that mention either format type at all.
+	 */
+	static boolean containsSelection(String msg) {
+		if (msg.indexOf('{') < 0 || (!msg.contains("plural") && !msg.contains("select"))) {
+			return false;
+		}
+		MessagePattern pattern;
+		try {
+			pattern = MessagePattern.parse(msg);
+		} catch (IllegalArgumentException ex) {
+			// Leave it to MessageFormat to reject the pattern.
+			return false;
+		}
+		for (MessagePattern.Part part : pattern.getParts()) {
+			if (part.isArgument() && ("plural".equals(part.getType()) || "select".equals(part.getType()))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Create a MessageFormat for the given message and Locale, equivalent to
+	 * {@code new MessageFormat(msg, locale)} but supporting the "plural" and
+	 * "select" format types.
+	 *
+	 * @param shared
+	 *            whether to use shared subformats, or to build them for the
+	 *            MessageFormat alone
+	 * @throws IllegalArgumentException
+	 *             if the pattern is invalid
+	 */
+	static MessageFormat createMessageFormat(String msg, Locale locale, boolean shared) {
+		MessagePattern pattern = MessagePattern.parse(msg);
+		if (!pattern.hasArguments()) {
+			return new MessageFormat(msg, locale);
+		}
+		StringBuilder plainPattern = new StringBuilder(msg.length());
+		List<Format> subformats = new ArrayList<>();
+		for (MessagePattern.Part part : pattern.getParts()) {
+			if (part.isArgument()) {
+				plainPattern.append('{').append(part.getArgumentIndex()).append('}');
+				subformats.add(shared ? getFormat(part, locale) : createFormat(part, locale));
+			} else {
+				plainPattern.append(MessagePattern.quote(part.getText()));
+			}
+		}
+		MessageFormat messageFormat = new MessageFormat(plainPattern.toString(), locale);
+		messageFormat.setFormats(subformats.toArray(new Format[subformats.size()]));
+		return messageFormat;
+	}
+
+	/**
+	 * Return the shared subformat for the given argument placeholder.
+	 *
+	 * @throws IllegalArgumentException
+	 *             for an unknown format type or an invalid style pattern
+	 */
+	static Format getFormat(MessagePattern.Part part, Locale locale) {
+		String type = part.getType();
+		String style = part.getStyle();
+		switch (type) {
+		case "":
+			return getDefaultFormat(locale);
+		case "number":
+			return getNumberFormat(locale, style);
+		case "date":
+			return getDateFormat(locale, style, false);
+		case "time":
+			return getDateFormat(locale, style, true);
+		case "choice":
+			return getFormat("choice||" + style, () -> new ChoiceFormat(style));
+		case "plural":
+			return getFormat("plural|" + locale + "|" + style, () -> SelectionFormat.plural(style, locale));
+		case "select":
+			return getFormat("select|" + locale + "|" + style, () -> SelectionFormat.select(style, locale));
+		default:
+			throw new IllegalArgumentException("unknown format type: " + type);
+		}
+	}
+
+	/**
+	 * Create an unshared subformat for the given argument placeholder, as
+	 * {@code new MessageFormat(pattern, locale)} would; {@code null} for a
+	 * placeholder without format type.
+	 *
+	 * @throws IllegalArgumentException
+	 *             for an unknown format type or an invalid style pattern
+	 */
+	private static Format createFormat(MessagePattern.Part part, Locale locale) {
+		String type = part.getType();
+		String style = part.getStyle();
+		switch (type) {
+		case "":
+			return null;
+		case "number":
+			return getNumberFormatFactory(locale, style).get();
+		case "date":
+			return getDateFormatFactory(locale, style, false).get();
+		case "time":
+			return getDateFormatFactory(locale, style, true).get();
+		case "choice":
+			return new ChoiceFormat(style);
+		case "plural":
+			return SelectionFormat.plural(style, locale);
+		case "select":
+			return SelectionFormat.select(style, locale);
+		default:
+			throw new IllegalArgumentException("unknown format type: " + type);
+		}
+	}
+
+	/**
+	 * Return the shared format for a plain "{n}" placeholder, rendering
+	 * arguments the way MessageFormat does without a subformat.
+	 */
+	static Format getDefaultFormat(Locale locale) {
+		return getFormat("|" + locale + "|", () -> new DefaultFormat(locale));
+	}
+
+	/**
+	 * Return the shared NumberFormat for the given Locale and style, which
+	 * may be one of the MessageFormat keywords "", "integer", "percent" and
+	 * "currency", or a DecimalFormat pattern.
+	 */
+	static StripedFormat getNumberFormat(Locale locale, String style) {
+		String keyword = style.trim().toLowerCase(Locale.ROOT);
+		Supplier<Format> factory = getNumberFormatFactory(locale, style);
+		return (StripedFormat) getFormat("number|" + locale + "|" + (isKeyword(keyword) ? keyword : style),
+				() -> new StripedFormat(factory));
+	}
+
+	private static boolean isKeyword(String keyword) {
+		return keyword.isEmpty() || "integer".equals(keyword) || "percent".equals(keyword)
+				|| "currency".equals(keyword);
+	}
+
+	/**
+	 * Return the factory for NumberFormats of the given Locale and style,
+	 * validating a DecimalFormat pattern eagerly, as MessageFormat does.
+	 */
+	private static Supplier<Format> getNumberFormatFactory(Locale locale, String style) {
+		switch (style.trim().toLowerCase(Locale.ROOT)) {
+		case "":
+			return () -> NumberFormat.getInstance(locale);
+		case "integer":
+			return () -> NumberFormat.getIntegerInstance(locale);
+		case "percent":
+			return () -> NumberFormat.getPercentInstance(locale);
+		case "currency":
+			return () -> NumberFormat.getCurrencyInstance(locale);
+		default:
+			new DecimalFormat(style, DecimalFormatSymbols.getInstance(locale));
+			return () -> new DecimalFormat(style, DecimalFormatSymbols.getInstance(locale));
+		}
+	}
+
+	private static Format getDateFormat(Locale locale, String style, boolean time) {
+		String keyword = style.trim().toLowerCase(Locale.ROOT);
+		boolean isKeyword = keyword.isEmpty() || "short".equals(keyword) || "medium".equals(keyword)
+				|| "long".equals(keyword) || "full".equals(keyword);
+		Supplier<Format> factory = getDateFormatFactory(locale, style, time);
+		return getFormat((time ? "time|" : "date|") + locale + "|" + (isKeyword ? keyword : style),
+				() -> new StripedFormat(factory));
+	}
+
+	/**
+	 * Return the factory for DateFormats of the given Locale and style,
+	 * validating a SimpleDateFormat pattern eagerly, as MessageFormat does.
+	 */
+	private static Supplier<Format> getDateFormatFactory(Locale locale, String style, boolean time) {
+		String keyword = style.trim().toLowerCase(Locale.ROOT);
+		int dateStyle;
+		switch (keyword) {
+		case "":
+			dateStyle = DateFormat.DEFAULT;
+			break;
+		case "short":
+			dateStyle = DateFormat.SHORT;
+			break;
+		case "medium":
+			dateStyle = DateFormat.MEDIUM;
+			break;
+		case "long":
+			dateStyle = DateFormat.LONG;
+			break;
+		case "full":
+			dateStyle = DateFormat.FULL;
+			break;
+		default:
+			dateStyle = -1;
+			break;
+		}
+		if (dateStyle >= 0) {
+			return time ? () -> DateFormat.getTimeInstance(dateStyle, locale)
+					: () -> DateFormat.getDateInstance(dateStyle, locale);
+		}
+		new SimpleDateFormat(style, locale);
+		return () -> new SimpleDateFormat(style, locale);
+	}
+
+	private static Format getFormat(String key, Supplier<Format> factory) {
+		Format format = formats.get(key);
+		if (format == null) {
+			format = factory.get();
+			Format existing = formats.putIfAbsent(key, format);
+			if (existing != null) {
+				format = existing;
+			}
+		}
+		return format;
+	}
+
+	/**
+	 * Thread-safe Format that spreads access over a fixed number of lazily
+	 * built copies of a format, picked by thread and each used under its own
+	 * lock.
+	 */
+	@SuppressWarnings("serial")
+	static final class StripedFormat extends Format {
+
+		private static final int STRIPES = Integer.highestOneBit(
+				Math.min(Runtime.getRuntime().availableProcessors(), 8) * 2 - 1);
+
+		private final transient Supplier<Format> factory;
+
+		private final AtomicReferenceArray<Format> stripes = new AtomicReferenceArray<>(STRIPES);
+
+		StripedFormat(Supplier<Format> factory) {
+			this.factory = factory;
+		}
+
+		private Format stripe() {
+			int index = (int) Thread.currentThread().getId() & (STRIPES - 1);
+			Format format = this.stripes.get(index);
+			if (format == null) {
+				format = this.factory.get();
+				if (!this.stripes.compareAndSet(index, null, format)) {
+					format = this.stripes.get(index);
+				}
+			}
+			return format;
+		}
+
+		/**
+		 * Format the given number without boxing it, if delegating to a
+		 * NumberFormat.
+		 */
+		String format(long number) {
+			NumberFormat format = (NumberFormat) stripe();
+			synchronized (format) {
+				return format.format(number);
+			}
+		}
+
+		/**
+		 * Format the given number without boxing it, if delegating to a
+		 * NumberFormat.
+		 */
+		String format(double number) {
+			NumberFormat format = (NumberFormat) stripe();
+			synchronized (format) {
+				return format.format(number);
+			}
+		}
+
+		@Override
+		public StringBuffer format(Object obj, StringBuffer toAppendTo, FieldPosition pos) {
+			Format format = stripe();
+			synchronized (format) {
+				return format.format(obj, toAppendTo, pos);
+			}
+		}
+
+		@Override
+		public Object parseObject(String source, ParsePosition pos) {
+			Format format = stripe();
+			synchronized (format) {
+				return format.parseObject(source, pos);
+			}
+		}
+	}
+
+	/**
+	 * Thread-safe Format rendering an argument the way MessageFormat does for
+	 * a placeholder without format type: numbers and dates through the
+	 * Locale's shared default formats, everything else through its String
+	 * form, without locking.
+	 */
+	@SuppressWarnings("serial")
+	private static final class DefaultFormat extends Format {
+
+		private final StripedFormat numberFormat;
+
+		private final StripedFormat dateFormat;
+
+		DefaultFormat(Locale locale) {
+			this.numberFormat = getNumberFormat(locale, "");
+			this.dateFormat = (StripedFormat) getFormat("datetime|" + locale + "|",
+					() -> new StripedFormat(
+							() -> DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT, locale)));
+		}
+
+		@Override
+		public StringBuffer format(Object obj, StringBuffer toAppendTo, FieldPosition pos) {
+			if (obj instanceof Number) {
+				return this.numberFormat.format(obj, toAppendTo, pos);
+			}
+			if (obj instanceof Date) {
+				return this.dateFormat.format(obj, toAppendTo, pos);
+			}
+			return toAppendTo.append(obj);
+		}
+
+		@Override
+		public Object parseObject(String source, ParsePosition pos) {
+			pos.setIndex(source.length());
+			return source;
+		}
+	}
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hypothesis.resource.context.support;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Runs at most one load per key at a time: Threads asking for a key that
+ * is already being loaded wait for that load and share its result, rather
+ * than loading the same value again.
+ *
+ * <p>
+ * Loads are not cached beyond their completion; callers are expected to
+ * cache the result themselves and to check that cache from within the
+ * loader, as a late caller may start a new load just after the previous
+ * one has completed.
+ *
+ * @param <K>
+ *            the key type
+ * @param <V>
+ *            the value type
+ * @see ReloadableResourceBundleMessageSource#getCollapsedLoadCount
+ */
+final class SingleFlight<K, V> {
+
+	private final ConcurrentMap<K, FutureTask<V>> loads = new ConcurrentHashMap<>();
+
+	private final LongAdder collapsedLoads;
+
+	/**
+	 * Create a new SingleFlight.
+	 * 
+	 * @param collapsedLoads
+	 *            the counter to increment for every caller that waits for
+	 *            the load of another one
+	 */
+	SingleFlight(LongAdder collapsedLoads) {
+		this.collapsedLoads = collapsedLoads;
+	}
+
+	/**
+	 * Load the value for the given key through the given loader, or wait for
+	 * the load already in progress for the key.
+	 * 
+	 * @return the loaded value
+	 */
+	V load(K key, Supplier<V> loader) {
+		FutureTask<V> load = new FutureTask<>(loader::get);
+		FutureTask<V> existing = this.loads.putIfAbsent(key, load);
+		if (existing != null) {
+			this.collapsedLoads.increment();
+			return getResult(existing);
+		}
+		try {
+			load.run();
+		} finally {
+			this.loads.remove(key, load);
+		}
+		return getResult(load);
+	}
+
+	private static <V> V getResult(FutureTask<V> load) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return load.get();
+				} catch (InterruptedException ex) {
+					// Keep waiting: the result is needed to answer the lookup.
+					interrupted = true;
+				} catch (ExecutionException ex) {
+					Throwable cause = ex.getCause();
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					}
+					if (cause instanceof Error) {
+						throw (Error) cause;
+					}
+					throw new IllegalStateException(cause);
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hypothesis.resource.context.support;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent table of weakly referenced Strings, for sharing one instance
+ * among all equal Strings passed in, e.g. message codes and messages that
+ * recur across bundle files.
+ *
+ * <p>
+ * Unlike {@link String#intern()}, the table is private to its owner and
+ * does not keep its Strings alive: A String drops out of the table once no
+ * longer referenced from elsewhere.
+ *
+ * @see ReloadableResourceBundleMessageSource#setDeduplicateStrings
+ */
+final class StringInterner {
+
+	private final ConcurrentMap<WeakKey, WeakKey> strings = new ConcurrentHashMap<>();
+
+	private final ReferenceQueue<String> clearedStrings = new ReferenceQueue<>();
+
+	private final LongAdder savedBytes = new LongAdder();
+
+	/**
+	 * Return the shared instance equal to the given String, registering the
+	 * given one if there is none yet.
+	 * 
+	 * @param value
+	 *            the String to intern, may be {@code null}
+	 * @return the shared instance, or {@code null} if the given String is
+	 *         {@code null}
+	 */
+	String intern(String value) {
+		if (value == null) {
+			return null;
+		}
+		purgeClearedStrings();
+		WeakKey key = new WeakKey(value, this.clearedStrings);
+		while (true) {
+			WeakKey existing = this.strings.putIfAbsent(key, key);
+			if (existing == null) {
+				return value;
+			}
+			String shared = existing.get();
+			if (shared != null) {
+				if (shared != value) {
+					this.savedBytes.add(MemoryWeigher.weigh(value));
+				}
+				return shared;
+			}
+			// Cleared in the meantime: replace it.
+			this.strings.remove(existing, existing);
+		}
+	}
+
+	/**
+	 * Return the estimated number of bytes saved by returning shared
+	 * instances instead of the Strings passed in, in total.
+	 */
+	long getSavedBytes() {
+		return this.savedBytes.sum();
+	}
+
+	private void purgeClearedStrings() {
+		Reference<? extends String> cleared;
+		while ((cleared = this.clearedStrings.poll()) != null) {
+			this.strings.remove(cleared, cleared);
+		}
+	}
+
+	/**
+	 * Weak reference to a String that compares equal to references to an
+	 * equal String, as long as not cleared.
+	 */
+	private static final class WeakKey extends WeakReference<String> {
+
+		private final int hash;
+
+		WeakKey(String value, ReferenceQueue<String> queue) {
+			super(value, queue);
+			this.hash = value.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (this == other) {
+				return true;
+			}
+			if (!(other instanceof WeakKey)) {
+				return false;
+			}
+			WeakKey otherKey = (WeakKey) other;
+			String value = get();
+			return this.hash == otherKey.hash && value != null && value.equals(otherKey.get());
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+	}
+
+}
@@ -0,0 +1,545 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hypothesis.resource.core.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hypothesis.resource.context.AbstractResource;
+import org.hypothesis.resource.util.StringUtils;
+
+/**
+ * {@link ResourceLoader} decorator that keeps a local disk copy of resources
+ * served over HTTP, e.g. message bundles provided by a translation service.
+ *
+ * <p>
+ * Resources with an "http" or "https" URL are fetched on first access and
+ * stored in the cache directory, along with their "ETag" and "Last-Modified"
+ * validators. All reads are served from the disk copy, also across restarts
+ * of the VM. Once the copy is older than the {@link #setRevalidateSeconds
+ * revalidation interval}, a conditional request is issued in the background
+ * on the next access, while the current copy keeps being served. If the
+ * server reports changed content, the new copy replaces the old one and
+ * {@link Resource#lastModified()} changes accordingly, so that e.g.
+ * {@link org.hypothesis.resource.context.support.ReloadableResourceBundleMessageSource}
+ * picks it up on its next refresh check. Failed revalidations are logged and
+ * leave the copy in place; a 404 or 410 response removes it. After a failed
+ * first fetch, the resource is reported missing without contacting the server
+ * for a backoff period, starting at one second and doubling with every
+ * further failure up to five minutes.
+ *
+ * <p>
+ * All other locations are passed through to the target ResourceLoader as-is.
+ *
+ * @see #setCacheDirectory
+ * @see #setExecutor
+ */
+public class CachingResourceLoader implements ResourceLoader {
+
+	private static final Log logger = LogFactory.getLog(CachingResourceLoader.class);
+
+	private static final String DATA_SUFFIX = ".data";
+
+	private static final String META_SUFFIX = ".meta";
+
+	private static final long INITIAL_FETCH_BACKOFF_MILLIS = 1000;
+
+	private static final long MAX_FETCH_BACKOFF_MILLIS = 5 * 60 * 1000;
+
+	private final ResourceLoader targetResourceLoader;
+
+	private File cacheDirectory = new File(System.getProperty("java.io.tmpdir"), "resource-cache");
+
+	private long revalidateMillis = 60 * 1000;
+
+	private int connectTimeout = 10000;
+
+	private int readTimeout = 30000;
+
+	private Executor executor;
+
+	/** Executor created by this ResourceLoader, if any */
+	private ExecutorService defaultExecutor;
+
+	private boolean destroyed;
+
+	/** Cache to hold the resource handles per URL */
+	private final ConcurrentMap<String, CachedResource> cachedResources = new ConcurrentHashMap<>();
+
+	/**
+	 * Create a new CachingResourceLoader on top of a DefaultResourceLoader.
+	 */
+	public CachingResourceLoader() {
+		this(new DefaultResourceLoader());
+	}
+
+	/**
+	 * Create a new CachingResourceLoader on top of the given ResourceLoader.
+	 * 
+	 * @param targetResourceLoader
+	 *            the ResourceLoader to resolve locations with
+	 */
+	public CachingResourceLoader(ResourceLoader targetResourceLoader) {
+		Validate.notNull(targetResourceLoader, "Target ResourceLoader must not be null");
+		this.targetResourceLoader = targetResourceLoader;
+	}
+
+	/**
+	 * Set the directory to keep the fetched resources in. Created on demand.
+	 * <p>
+	 * Default is the "resource-cache" directory within the system's temp
+	 * directory.
+	 */
+	public void setCacheDirectory(File cacheDirectory) {
+		Validate.notNull(cacheDirectory, "Cache directory must not be null");
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	/**
+	 * Return the directory to keep the fetched resources in.
+	 */
+	public File getCacheDirectory() {
+		return this.cacheDirectory;
+	}
+
+	/**
+	 * Set the number of seconds after which a cached resource gets
+	 * revalidated against the server on its next access.
+	 * <p>
+	 * Default is 60 seconds. A value of "0" revalidates on every access,
+	 * while a negative value never revalidates, once a resource is cached.
+	 */
+	public void setRevalidateSeconds(int revalidateSeconds) {
+		this.revalidateMillis = revalidateSeconds * 1000L;
+	}
+
+	/**
+	 * Set the connect and read timeouts for requests, in milliseconds.
+	 * <p>
+	 * Default is 10 seconds for connecting and 30 seconds for reading.
+	 */
+	public void setTimeouts(int connectTimeout, int readTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Set the Executor to run background revalidations with.
+	 * <p>
+	 * Default is a single daemon thread owned by this ResourceLoader, created
+	 * on first use and shut down by {@link #destroy()}.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public ClassLoader getClassLoader() {
+		return this.targetResourceLoader.getClassLoader();
+	}
+
+	@Override
+	public Resource getResource(String location) {
+		Validate.notNull(location, "Location must not be null");
+		Resource resource = this.targetResourceLoader.getResource(location);
+		URL url;
+		try {
+			url = resource.getURL();
+		} catch (IOException ex) {
+			return resource;
+		}
+		if (!"http".equals(url.getProtocol()) && !"https".equals(url.getProtocol())) {
+			return resource;
+		}
+		String key = url.toExternalForm();
+		CachedResource cachedResource = this.cachedResources.get(key);
+		if (cachedResource == null) {
+			cachedResource = new CachedResource(url, resource);
+			CachedResource existing = this.cachedResources.putIfAbsent(key, cachedResource);
+			if (existing != null) {
+				cachedResource = existing;
+			}
+		}
+		return cachedResource;
+	}
+
+	/**
+	 * Remove all resources from the in-memory and the disk cache.
+	 */
+	public void clearCache() {
+		this.cachedResources.clear();
+		File[] files = this.cacheDirectory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().endsWith(DATA_SUFFIX) || file.getName().endsWith(META_SUFFIX)) {
+					file.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Shut down the executor created for background revalidations, if any.
+	 * To be invoked once this ResourceLoader is no longer used, e.g. from a
+	 * destroy method. Cached resources are served without revalidation
+	 * afterwards.
+	 * 
+	 * @see #setExecutor
+	 */
+	public synchronized void destroy() {
+		this.destroyed = true;
+		if (this.defaultExecutor != null) {
+			this.defaultExecutor.shutdown();
+		}
+	}
+
+	private Executor getExecutor() {
+		Executor executor = this.executor;
+		if (executor == null) {
+			synchronized (this) {
+				if (this.executor == null) {
+					if (this.destroyed) {
+						throw new RejectedExecutionException("CachingResourceLoader has been destroyed");
+					}
+					ExecutorService defaultExecutor = Executors.newSingleThreadExecutor(runnable -> {
+						Thread thread = new Thread(runnable, "resource-revalidation");
+						thread.setDaemon(true);
+						return thread;
+					});
+					this.executor = defaultExecutor;
+					this.defaultExecutor = defaultExecutor;
+				}
+				executor = this.executor;
+			}
+		}
+		return executor;
+	}
+
+	private static String hash(String url) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			StringBuilder sb = new StringBuilder(64);
+			for (byte b : digest.digest(url.getBytes(StandardCharsets.UTF_8))) {
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("SHA-256 not supported", ex);
+		}
+	}
+
+	/**
+	 * Resource backed by the disk copy of an HTTP resource.
+	 */
+	private class CachedResource extends AbstractResource {
+
+		private final URL url;
+
+		private final Resource targetResource;
+
+		private final File dataFile;
+
+		private final File metaFile;
+
+		private final AtomicBoolean revalidating = new AtomicBoolean();
+
+		/**
+		 * Validators of the current copy; guarded by "this", which is held
+		 * while fetching
+		 */
+		private String etag;
+
+		private String lastModifiedHeader;
+
+		/** Time the current copy was fetched, or 0 if none */
+		private volatile long timestamp;
+
+		/** Time the current copy was last validated against the server */
+		private volatile long validated;
+
+		private volatile boolean initialized;
+
+		/** Number of failed fetches in a row while no copy is cached */
+		private int failedFetches;
+
+		/** Time before which no fetch is attempted after a failed one */
+		private volatile long nextFetchAttempt;
+
+		CachedResource(URL url, Resource targetResource) {
+			this.url = url;
+			this.targetResource = targetResource;
+			String hash = hash(url.toExternalForm());
+			this.dataFile = new File(cacheDirectory, hash + DATA_SUFFIX);
+			this.metaFile = new File(cacheDirectory, hash + META_SUFFIX);
+		}
+
+		/**
+		 * Make sure a copy is available if the resource exists, fetching it
+		 * synchronously if none is cached yet, or scheduling a background
+		 * revalidation if the copy is due for one. Resources found missing
+		 * are not requested again before the revalidation interval has
+		 * passed, and failed fetches are retried with exponential backoff.
+		 * 
+		 * @return whether a copy is available
+		 */
+		private boolean ensureCached() {
+			if (!this.initialized || this.timestamp == 0) {
+				if (this.nextFetchAttempt > System.currentTimeMillis()) {
+					// Backing off after a failed fetch.
+					return false;
+				}
+				synchronized (this) {
+					if (!this.initialized) {
+						readMetadata();
+						this.initialized = true;
+					}
+					if (this.timestamp == 0) {
+						if (this.validated != 0 && (revalidateMillis < 0
+								|| this.validated + revalidateMillis > System.currentTimeMillis())) {
+							// Recently found missing on the server.
+							return false;
+						}
+						if (this.nextFetchAttempt > System.currentTimeMillis()) {
+							return false;
+						}
+						try {
+							fetch();
+							this.failedFetches = 0;
+						} catch (IOException ex) {
+							long backoff = Math.min(INITIAL_FETCH_BACKOFF_MILLIS << Math.min(this.failedFetches, 20),
+									MAX_FETCH_BACKOFF_MILLIS);
+							this.failedFetches++;
+							this.nextFetchAttempt = System.currentTimeMillis() + backoff;
+							if (logger.isWarnEnabled()) {
+								logger.warn("Could not fetch " + this.url + " - retrying in " + backoff + " ms", ex);
+							}
+						}
+						return this.timestamp != 0;
+					}
+				}
+			}
+			if (revalidateMillis >= 0 && this.validated + revalidateMillis <= System.currentTimeMillis()
+					&& this.revalidating.compareAndSet(false, true)) {
+				try {
+					getExecutor().execute(this::revalidate);
+				} catch (RejectedExecutionException ex) {
+					// Shut down -> keep serving the local copy.
+					this.revalidating.set(false);
+				} catch (RuntimeException ex) {
+					this.revalidating.set(false);
+					throw ex;
+				}
+			}
+			return true;
+		}
+
+		private void revalidate() {
+			try {
+				synchronized (this) {
+					fetch();
+				}
+			} catch (IOException ex) {
+				if (logger.isWarnEnabled()) {
+					logger.warn("Could not revalidate " + this.url + " - keeping cached copy", ex);
+				}
+			} finally {
+				this.revalidating.set(false);
+			}
+		}
+
+		/**
+		 * Issue a (conditional) request and update the copy from the
+		 * response. To be called with the lock held.
+		 */
+		private void fetch() throws IOException {
+			HttpURLConnection con = (HttpURLConnection) this.url.openConnection();
+			try {
+				con.setConnectTimeout(connectTimeout);
+				con.setReadTimeout(readTimeout);
+				con.setUseCaches(false);
+				if (this.timestamp != 0) {
+					if (this.etag != null) {
+						con.setRequestProperty("If-None-Match", this.etag);
+					}
+					if (this.lastModifiedHeader != null) {
+						con.setRequestProperty("If-Modified-Since", this.lastModifiedHeader);
+					}
+				}
+				int status = con.getResponseCode();
+				long now = System.currentTimeMillis();
+				if (status == HttpURLConnection.HTTP_NOT_MODIFIED && this.timestamp != 0) {
+					if (logger.isDebugEnabled()) {
+						logger.debug("Cached copy of " + this.url + " is up to date");
+					}
+					this.validated = now;
+					writeMetadata();
+				} else if (status == HttpURLConnection.HTTP_OK) {
+					if (logger.isDebugEnabled()) {
+						logger.debug("Caching " + this.url + " in " + this.dataFile);
+					}
+					Files.createDirectories(cacheDirectory.toPath());
+					File tempFile = File.createTempFile(this.dataFile.getName(), ".tmp", cacheDirectory);
+					try (InputStream is = con.getInputStream()) {
+						Files.copy(is, tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+						Files.move(tempFile.toPath(), this.dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+								StandardCopyOption.ATOMIC_MOVE);
+					} finally {
+						tempFile.delete();
+					}
+					this.etag = con.getHeaderField("ETag");
+					this.lastModifiedHeader = con.getHeaderField("Last-Modified");
+					// Strictly increasing, as change detection relies on it.
+					this.timestamp = Math.max(now, this.timestamp + 1);
+					this.validated = now;
+					writeMetadata();
+				} else if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE) {
+					if (logger.isDebugEnabled()) {
+						logger.debug("Resource " + this.url + " not found - removing cached copy");
+					}
+					this.dataFile.delete();
+					this.metaFile.delete();
+					this.etag = null;
+					this.lastModifiedHeader = null;
+					this.timestamp = 0;
+					this.validated = now;
+				} else {
+					throw new IOException("Unexpected response status " + status + " for " + this.url);
+				}
+			} finally {
+				con.disconnect();
+			}
+		}
+
+		private void readMetadata() {
+			if (!this.metaFile.exists() || !this.dataFile.exists()) {
+				return;
+			}
+			Properties meta = new Properties();
+			try (InputStream is = new FileInputStream(this.metaFile)) {
+				meta.load(is);
+				this.etag = meta.getProperty("etag");
+				this.lastModifiedHeader = meta.getProperty("lastModified");
+				this.timestamp = Long.parseLong(meta.getProperty("timestamp", "0"));
+				this.validated = Long.parseLong(meta.getProperty("validated", "0"));
+			} catch (IOException | NumberFormatException ex) {
+				if (logger.isWarnEnabled()) {
+					logger.warn("Could not read cache metadata " + this.metaFile + " - refetching", ex);
+				}
+				this.timestamp = 0;
+			}
+		}
+
+		private void writeMetadata() throws IOException {
+			Properties meta = new Properties();
+			meta.setProperty("url", this.url.toExternalForm());
+			if (this.etag != null) {
+				meta.setProperty("etag", this.etag);
+			}
+			if (this.lastModifiedHeader != null) {
+				meta.setProperty("lastModified", this.lastModifiedHeader);
+			}
+			meta.setProperty("timestamp", Long.toString(this.timestamp));
+			meta.setProperty("validated", Long.toString(this.validated));
+			File tempFile = File.createTempFile(this.metaFile.getName(), ".tmp", cacheDirectory);
+			try {
+				try (OutputStream os = Files.newOutputStream(tempFile.toPath())) {
+					meta.store(os, null);
+				}
+				Files.move(tempFile.toPath(), this.metaFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				tempFile.delete();
+			}
+		}
+
+		@Override
+		public boolean exists() {
+			return ensureCached();
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			if (!ensureCached()) {
+				throw new FileNotFoundException(getDescription() + " cannot be opened because it does not exist");
+			}
+			try {
+				return Files.newInputStream(this.dataFile.toPath());
+			} catch (NoSuchFileException ex) {
+				throw new FileNotFoundException(getDescription() + " cannot be opened because it does not exist");
+			}
+		}
+
+		@Override
+		public URL getURL() throws IOException {
+			return this.url;
+		}
+
+		@Override
+		public long contentLength() throws IOException {
+			if (!ensureCached()) {
+				throw new FileNotFoundException(getDescription() + " does not exist");
+			}
+			return this.dataFile.length();
+		}
+
+		/**
+		 * Return the time the current copy was fetched, changing whenever
+		 * the server delivers new content.
+		 */
+		@Override
+		public long lastModified() throws IOException {
+			if (!ensureCached()) {
+				throw new FileNotFoundException(getDescription() + " does not exist");
+			}
+			return this.timestamp;
+		}
+
+		@Override
+		public String getFilename() {
+			return StringUtils.getFilename(this.url.getPath());
+		}
+
+		@Override
+		public String getDescription() {
+			return "cached " + this.targetResource.getDescription();
+		}
+	}
+
+}
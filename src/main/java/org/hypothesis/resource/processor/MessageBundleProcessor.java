@@ -0,0 +1,458 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hypothesis.resource.processor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+import org.hypothesis.resource.context.annotation.Message;
+import org.hypothesis.resource.context.annotation.MessageBundle;
+
+/**
+ * Annotation processor for {@link MessageBundle} interfaces.
+ *
+ * <p>
+ * Reads the bundle files of each annotated interface - the default file plus
+ * all locale-specific variants next to it - and verifies that every message
+ * code exists in the default file and that the number of message arguments
+ * declared by each method matches the argument placeholders of the message
+ * pattern in every file defining it. Violations are reported as compilation
+ * errors, so that missing keys fail the build instead of surfacing as
+ * {@code NoSuchMessageException} at runtime.
+ *
+ * <p>
+ * For a valid interface, an implementation class is generated that takes a
+ * {@link org.hypothesis.resource.context.support.ReloadableResourceBundleMessageSource}
+ * and obtains a {@link org.hypothesis.resource.context.support.MessageKey} per
+ * method once, so that each call resolves its message by slot index rather
+ * than by code.
+ *
+ * <p>
+ * Bundle files are looked up on the source path, the class output and the
+ * class path, in that order; alternatively, the directory holding them can be
+ * specified through the {@value #BUNDLE_DIRECTORY_OPTION} option. The
+ * {@value #BUNDLE_ENCODING_OPTION} option sets the charset for parsing them,
+ * defaulting to ISO-8859-1 like {@code java.util.Properties}.
+ *
+ * <p>
+ * The processor is registered as a service of this library, so javac runs
+ * it whenever the library is on the class path of a compilation.
+ *
+ * @see MessageBundle
+ * @see Message
+ */
+@SupportedAnnotationTypes("org.hypothesis.resource.context.annotation.MessageBundle")
+@SupportedOptions({ MessageBundleProcessor.BUNDLE_DIRECTORY_OPTION, MessageBundleProcessor.BUNDLE_ENCODING_OPTION })
+public class MessageBundleProcessor extends AbstractProcessor {
+
+	/** Option specifying the root directory of the bundle files */
+	public static final String BUNDLE_DIRECTORY_OPTION = "resource.bundleDirectory";
+
+	/** Option specifying the charset of the bundle files */
+	public static final String BUNDLE_ENCODING_OPTION = "resource.bundleEncoding";
+
+	private static final String PROPERTIES_SUFFIX = ".properties";
+
+	private static final String IMPL_SUFFIX = "Impl";
+
+	private static final StandardLocation[] BUNDLE_LOCATIONS = { StandardLocation.SOURCE_PATH,
+			StandardLocation.CLASS_OUTPUT, StandardLocation.CLASS_PATH };
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		for (Element element : roundEnv.getElementsAnnotatedWith(MessageBundle.class)) {
+			if (element.getKind() != ElementKind.INTERFACE) {
+				error(element, "@MessageBundle may only be declared on interfaces");
+				continue;
+			}
+			processBundle((TypeElement) element);
+		}
+		return true;
+	}
+
+	private void processBundle(TypeElement type) {
+		MessageBundle annotation = type.getAnnotation(MessageBundle.class);
+		if (!type.getTypeParameters().isEmpty()) {
+			error(type, "@MessageBundle interfaces must not declare type parameters");
+			return;
+		}
+		Map<String, Properties> bundleFiles = loadBundleFiles(annotation.value(), type);
+		if (bundleFiles == null) {
+			return;
+		}
+
+		List<MessageMethod> methods = new ArrayList<>();
+		boolean valid = true;
+		for (ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type))) {
+			if (method.getEnclosingElement().getKind() != ElementKind.INTERFACE
+					|| !method.getModifiers().contains(Modifier.ABSTRACT)) {
+				continue;
+			}
+			MessageMethod messageMethod = validateMethod(method, annotation.value(), bundleFiles);
+			if (messageMethod != null) {
+				methods.add(messageMethod);
+			} else {
+				valid = false;
+			}
+		}
+
+		if (valid) {
+			String className = annotation.className().isEmpty() ? type.getSimpleName() + IMPL_SUFFIX
+					: annotation.className();
+			try {
+				writeImplementation(type, className, methods);
+			} catch (IOException ex) {
+				error(type, "Could not generate " + className + ": " + ex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Validate a single interface method against the bundle files.
+	 *
+	 * @return the method description, or {@code null} if invalid
+	 */
+	private MessageMethod validateMethod(ExecutableElement method, String basename,
+			Map<String, Properties> bundleFiles) {
+		TypeMirror stringType = processingEnv.getElementUtils().getTypeElement(String.class.getName()).asType();
+		TypeMirror localeType = processingEnv.getElementUtils().getTypeElement("java.util.Locale").asType();
+
+		if (!processingEnv.getTypeUtils().isSameType(method.getReturnType(), stringType)) {
+			error(method, "Message methods must return String");
+			return null;
+		}
+		if (!method.getTypeParameters().isEmpty() || method.isVarArgs()) {
+			error(method, "Message methods must not be generic or declare varargs");
+			return null;
+		}
+
+		List<? extends VariableElement> parameters = method.getParameters();
+		boolean localeParameter = !parameters.isEmpty()
+				&& processingEnv.getTypeUtils().isSameType(parameters.get(0).asType(), localeType);
+		int argumentCount = localeParameter ? parameters.size() - 1 : parameters.size();
+
+		Message message = method.getAnnotation(Message.class);
+		String code = message != null ? message.value() : method.getSimpleName().toString();
+
+		Properties defaultFile = bundleFiles.get(basename);
+		if (defaultFile.getProperty(code) == null) {
+			error(method, "Message code '" + code + "' is not defined in bundle '" + basename + "'");
+			return null;
+		}
+
+		boolean valid = true;
+		for (Map.Entry<String, Properties> entry : bundleFiles.entrySet()) {
+			String pattern = entry.getValue().getProperty(code);
+			if (pattern == null) {
+				continue;
+			}
+			int placeholderCount = countArguments(pattern);
+			if (placeholderCount < 0) {
+				if (argumentCount > 0) {
+					error(method, "Message '" + code + "' in '" + entry.getKey() + "' is not a valid MessageFormat pattern");
+					valid = false;
+				}
+			} else if (placeholderCount != argumentCount) {
+				error(method, "Message '" + code + "' in '" + entry.getKey() + "' expects " + placeholderCount
+						+ " argument(s) but the method declares " + argumentCount);
+				valid = false;
+			}
+		}
+		return valid ? new MessageMethod(method, code, localeParameter) : null;
+	}
+
+	/**
+	 * Count the arguments referenced by the given MessageFormat pattern, i.e.
+	 * the highest argument index plus one. Within "plural" and "select"
+	 * arguments, the braces enclosing the selector messages are skipped and
+	 * the placeholders inside of them are counted.
+	 *
+	 * @return the number of arguments, or -1 if the pattern contains invalid
+	 *         argument placeholders
+	 */
+	static int countArguments(String pattern) {
+		int highestIndex = -1;
+		boolean quoted = false;
+		// Per open brace: whether the braces directly within it enclose
+		// selector messages rather than placeholders
+		Deque<Boolean> selections = new ArrayDeque<>();
+		for (int i = 0; i < pattern.length(); i++) {
+			char ch = pattern.charAt(i);
+			if (ch == '\'') {
+				if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '\'') {
+					i++;
+				} else {
+					quoted = !quoted;
+				}
+			} else if (ch == '}' && !quoted) {
+				selections.poll();
+			} else if (ch == '{' && !quoted) {
+				if (Boolean.TRUE.equals(selections.peek())) {
+					selections.push(Boolean.FALSE);
+					continue;
+				}
+				int pos = i + 1;
+				while (pos < pattern.length() && Character.isWhitespace(pattern.charAt(pos))) {
+					pos++;
+				}
+				int start = pos;
+				while (pos < pattern.length() && pattern.charAt(pos) >= '0' && pattern.charAt(pos) <= '9') {
+					pos++;
+				}
+				if (pos == start) {
+					return -1;
+				}
+				int index = Integer.parseInt(pattern.substring(start, pos));
+				while (pos < pattern.length() && Character.isWhitespace(pattern.charAt(pos))) {
+					pos++;
+				}
+				if (pos == pattern.length() || (pattern.charAt(pos) != ',' && pattern.charAt(pos) != '}')) {
+					return -1;
+				}
+				highestIndex = Math.max(highestIndex, index);
+				int typeEnd = pattern.indexOf(',', pos + 1);
+				String type = (pattern.charAt(pos) == ',' && typeEnd > 0 ? pattern.substring(pos + 1, typeEnd).trim()
+						: "");
+				selections.push("plural".equalsIgnoreCase(type) || "select".equalsIgnoreCase(type));
+			}
+		}
+		return highestIndex + 1;
+	}
+
+	/**
+	 * Load the default bundle file and all locale-specific variants next to
+	 * it, keyed by bundle filename (basename + Locale).
+	 *
+	 * @return the loaded files, with the default file first, or {@code null}
+	 *         if the default file could not be found
+	 */
+	private Map<String, Properties> loadBundleFiles(String basename, TypeElement type) {
+		Path defaultFile = findDefaultFile(basename);
+		if (defaultFile == null) {
+			error(type, "Bundle file '" + basename + PROPERTIES_SUFFIX + "' not found - specify its root directory through the '"
+					+ BUNDLE_DIRECTORY_OPTION + "' option");
+			return null;
+		}
+
+		Map<String, Properties> bundleFiles = new LinkedHashMap<>();
+		String prefix = defaultFile.getFileName().toString();
+		prefix = prefix.substring(0, prefix.length() - PROPERTIES_SUFFIX.length()) + "_";
+		try {
+			bundleFiles.put(basename, loadProperties(defaultFile));
+			try (DirectoryStream<Path> variants = Files.newDirectoryStream(defaultFile.getParent(),
+					prefix + "*" + PROPERTIES_SUFFIX)) {
+				for (Path variant : variants) {
+					String filename = variant.getFileName().toString();
+					String suffix = filename.substring(prefix.length(), filename.length() - PROPERTIES_SUFFIX.length());
+					// Only locale variants, not sidecar files such as patches.
+					if (suffix.matches("[A-Za-z0-9_]+")) {
+						bundleFiles.put(basename + "_" + suffix, loadProperties(variant));
+					}
+				}
+			}
+		} catch (IOException ex) {
+			error(type, "Could not read bundle files for '" + basename + "': " + ex.getMessage());
+			return null;
+		}
+		return bundleFiles;
+	}
+
+	private Path findDefaultFile(String basename) {
+		String relativeName = basename + PROPERTIES_SUFFIX;
+		String directory = processingEnv.getOptions().get(BUNDLE_DIRECTORY_OPTION);
+		if (directory != null) {
+			Path path = Paths.get(directory, relativeName);
+			return Files.isRegularFile(path) ? path : null;
+		}
+		for (StandardLocation location : BUNDLE_LOCATIONS) {
+			try {
+				FileObject resource = processingEnv.getFiler().getResource(location, "", relativeName);
+				URI uri = resource.toUri();
+				if ("file".equals(uri.getScheme())) {
+					Path path = Paths.get(uri);
+					if (Files.isRegularFile(path)) {
+						return path;
+					}
+				}
+			} catch (IOException | IllegalArgumentException ex) {
+				// Location not supported by this compiler or no such file -
+				// try the next one.
+			}
+		}
+		return null;
+	}
+
+	private Properties loadProperties(Path path) throws IOException {
+		Properties props = new Properties();
+		String encoding = processingEnv.getOptions().get(BUNDLE_ENCODING_OPTION);
+		try (InputStream is = Files.newInputStream(path)) {
+			if (encoding != null) {
+				props.load(new InputStreamReader(is, encoding));
+			} else {
+				props.load(is);
+			}
+		}
+		return props;
+	}
+
+	private void writeImplementation(TypeElement type, String className, List<MessageMethod> methods)
+			throws IOException {
+		PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+		String packageName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+		String qualifiedName = packageName.isEmpty() ? className : packageName + "." + className;
+
+		JavaFileObject sourceFile = processingEnv.getFiler().createSourceFile(qualifiedName, type);
+		try (Writer writer = sourceFile.openWriter(); PrintWriter out = new PrintWriter(writer)) {
+			if (!packageName.isEmpty()) {
+				out.println("package " + packageName + ";");
+				out.println();
+			}
+			out.println("import java.util.Locale;");
+			out.println();
+			out.println("import org.hypothesis.resource.context.support.MessageKey;");
+			out.println("import org.hypothesis.resource.context.support.ReloadableResourceBundleMessageSource;");
+			out.println();
+			out.println("/**");
+			out.println(" * Implementation of {@link " + type.getQualifiedName() + "}, generated by");
+			out.println(" * {@code " + getClass().getName() + "}.");
+			out.println(" */");
+			out.println("public class " + className + " implements " + type.getQualifiedName() + " {");
+			out.println();
+			out.println("\tprivate final ReloadableResourceBundleMessageSource messageSource;");
+			out.println();
+			out.println("\tprivate final MessageKey[] keys;");
+			out.println();
+			out.println("\tpublic " + className + "(ReloadableResourceBundleMessageSource messageSource) {");
+			out.println("\t\tthis.messageSource = messageSource;");
+			out.println("\t\tthis.keys = new MessageKey[] {");
+			for (MessageMethod method : methods) {
+				out.println("\t\t\t\tmessageSource.key(\"" + escape(method.code) + "\"),");
+			}
+			out.println("\t\t};");
+			out.println("\t}");
+
+			for (int slot = 0; slot < methods.size(); slot++) {
+				MessageMethod method = methods.get(slot);
+				List<? extends VariableElement> parameters = method.element.getParameters();
+				StringBuilder signature = new StringBuilder();
+				StringBuilder arguments = new StringBuilder();
+				for (int i = 0; i < parameters.size(); i++) {
+					String name = "arg" + i;
+					if (i > 0) {
+						signature.append(", ");
+					}
+					signature.append(parameters.get(i).asType()).append(' ').append(name);
+					if (i > 0 || !method.localeParameter) {
+						if (arguments.length() > 0) {
+							arguments.append(", ");
+						}
+						arguments.append(name);
+					}
+				}
+				String locale = method.localeParameter ? "arg0" : "Locale.getDefault()";
+				String args = arguments.length() > 0 ? "new Object[] { " + arguments + " }" : "null";
+
+				out.println();
+				out.println("\t@Override");
+				out.println("\tpublic String " + method.element.getSimpleName() + "(" + signature + ") {");
+				out.println("\t\treturn this.messageSource.getMessage(this.keys[" + slot + "], " + args + ", " + locale
+						+ ");");
+				out.println("\t}");
+			}
+			out.println();
+			out.println("}");
+		}
+	}
+
+	private static String escape(String value) {
+		StringBuilder sb = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char ch = value.charAt(i);
+			if (ch == '"' || ch == '\\') {
+				sb.append('\\').append(ch);
+			} else if (ch < 0x20 || ch > 0x7e) {
+				sb.append(String.format("\\u%04x", (int) ch));
+			} else {
+				sb.append(ch);
+			}
+		}
+		return sb.toString();
+	}
+
+	private void error(Element element, String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+	}
+
+	/**
+	 * Validated interface method along with its message code.
+	 */
+	private static class MessageMethod {
+
+		private final ExecutableElement element;
+
+		private final String code;
+
+		private final boolean localeParameter;
+
+		MessageMethod(ExecutableElement element, String code, boolean localeParameter) {
+			this.element = element;
+			this.code = code;
+			this.localeParameter = localeParameter;
+		}
+	}
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hypothesis.resource.util;
+
+/**
+ * Utility class for HTML escaping of text to be embedded into HTML element
+ * content or quoted attribute values.
+ *
+ * <p>
+ * Escapes the characters {@code &}, {@code <}, {@code >}, {@code "} and
+ * {@code '} as character entity or numeric references; all other characters,
+ * including non-ASCII ones, are kept as-is, assuming an appropriate response
+ * encoding.
+ */
+public abstract class HtmlUtils {
+
+	private HtmlUtils() {
+	}
+
+	/**
+	 * Turn special characters into HTML character references.
+	 * 
+	 * @param input
+	 *            the (unescaped) input string
+	 * @return the escaped string, or {@code null} if the input was
+	 *         {@code null}
+	 */
+	public static String htmlEscape(String input) {
+		if (input == null) {
+			return null;
+		}
+		for (int i = 0; i < input.length(); i++) {
+			if (getReference(input.charAt(i)) != null) {
+				StringBuilder escaped = new StringBuilder(input.length() + 16);
+				escaped.append(input, 0, i);
+				htmlEscape(input.subSequence(i, input.length()), escaped);
+				return escaped.toString();
+			}
+		}
+		return input;
+	}
+
+	/**
+	 * Turn special characters into HTML character references, appending the
+	 * result to the given buffer.
+	 * 
+	 * @param input
+	 *            the (unescaped) input characters
+	 * @param escaped
+	 *            the buffer to append the escaped characters to
+	 */
+	public static void htmlEscape(CharSequence input, StringBuilder escaped) {
+		for (int i = 0; i < input.length(); i++) {
+			char ch = input.charAt(i);
+			String reference = getReference(ch);
+			if (reference != null) {
+				escaped.append(reference);
+			} else {
+				escaped.append(ch);
+			}
+		}
+	}
+
+	private static String getReference(char ch) {
+		switch (ch) {
+		case '&':
+			return "&amp;";
+		case '<':
+			return "&lt;";
+		case '>':
+			return "&gt;";
+		case '"':
+			return "&quot;";
+		case '\'':
+			return "&#39;";
+		default:
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hypothesis.resource.context.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link HotMessageProfile}.
+ */
+public class HotMessageProfileTests {
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		this.file = File.createTempFile("hot-messages", ".txt");
+		this.file.delete();
+	}
+
+	@After
+	public void tearDown() {
+		this.file.delete();
+	}
+
+	private static List<String> codes(List<HotMessageProfile.HotMessage> messages) {
+		List<String> codes = new ArrayList<>();
+		for (HotMessageProfile.HotMessage message : messages) {
+			codes.add(message.getCode());
+		}
+		return codes;
+	}
+
+	@Test
+	public void keepsMostFrequentMessages() throws IOException {
+		HotMessageProfile profile = new HotMessageProfile(this.file, 2);
+		profile.record("rare", Locale.ENGLISH, false);
+		for (int i = 0; i < 3; i++) {
+			profile.record("hot", Locale.ENGLISH, i == 2);
+			profile.record("warm", Locale.ENGLISH, false);
+		}
+		profile.record("hot", Locale.ENGLISH, false);
+		profile.write();
+
+		List<HotMessageProfile.HotMessage> messages = new HotMessageProfile(this.file, 2).read();
+		assertEquals(2, messages.size());
+		assertEquals("hot", messages.get(0).getCode());
+		assertTrue(messages.get(0).isFormatted());
+		assertEquals("warm", messages.get(1).getCode());
+		assertFalse(messages.get(1).isFormatted());
+	}
+
+	@Test
+	public void makesRoomForNewMessagesWhenFull() throws IOException {
+		HotMessageProfile profile = new HotMessageProfile(this.file, 1);
+		profile.record("hot", Locale.ENGLISH, false);
+		profile.record("hot", Locale.ENGLISH, false);
+		profile.record("once", Locale.ENGLISH, false);
+		profile.record("late", Locale.ENGLISH, false);
+		profile.record("late", Locale.ENGLISH, false);
+		profile.record("late", Locale.ENGLISH, false);
+		profile.write();
+
+		assertEquals("[late]", codes(new HotMessageProfile(this.file, 1).read()).toString());
+	}
+
+	@Test
+	public void mergesPreviousRun() throws IOException {
+		HotMessageProfile profile = new HotMessageProfile(this.file, 10);
+		for (int i = 0; i < 4; i++) {
+			profile.record("previous", Locale.GERMAN, false);
+		}
+		profile.write();
+
+		HotMessageProfile next = new HotMessageProfile(this.file, 10);
+		assertEquals("[previous]", codes(next.read()).toString());
+		next.record("current", Locale.GERMAN, false);
+		next.write();
+
+		List<HotMessageProfile.HotMessage> messages = new HotMessageProfile(this.file, 10).read();
+		assertEquals("[previous, current]", codes(messages).toString());
+		assertEquals(Locale.GERMAN, messages.get(1).getLocale());
+	}
+
+	@Test
+	public void readsProfilesWithoutCounts() throws IOException {
+		Files.write(this.file.toPath(), "de\tgreeting\nfr\tfiles\tformatted\n".getBytes(StandardCharsets.UTF_8));
+
+		List<HotMessageProfile.HotMessage> messages = new HotMessageProfile(this.file, 10).read();
+		assertEquals("[greeting, files]", codes(messages).toString());
+		assertFalse(messages.get(0).isFormatted());
+		assertTrue(messages.get(1).isFormatted());
+		assertEquals(Locale.FRENCH, messages.get(1).getLocale());
+	}
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hypothesis.resource.context.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link MessagePattern}.
+ */
+public class MessagePatternTests {
+
+	private static void assertLiteral(String text, MessagePattern.Part part) {
+		assertFalse(part.isArgument());
+		assertEquals(text, part.getText());
+	}
+
+	private static void assertArgument(int index, String type, String style, MessagePattern.Part part) {
+		assertTrue(part.isArgument());
+		assertEquals(index, part.getArgumentIndex());
+		assertEquals(type, part.getType());
+		assertEquals(style, part.getStyle());
+	}
+
+	private static void assertInvalid(String pattern) {
+		try {
+			MessagePattern.parse(pattern);
+			fail("Should have rejected: " + pattern);
+		} catch (IllegalArgumentException ex) {
+			// expected
+		}
+	}
+
+	@Test
+	public void parsesLiteralsAndArguments() {
+		List<MessagePattern.Part> parts = MessagePattern.parse("It''s {0} of {1,number,#.##}").getParts();
+
+		assertEquals(4, parts.size());
+		assertLiteral("It's ", parts.get(0));
+		assertArgument(0, "", "", parts.get(1));
+		assertLiteral(" of ", parts.get(2));
+		assertArgument(1, "number", "#.##", parts.get(3));
+	}
+
+	@Test
+	public void unquotesLiteralBraces() {
+		MessagePattern pattern = MessagePattern.parse("'{0}' is {0}");
+
+		assertLiteral("{0} is ", pattern.getParts().get(0));
+		assertArgument(0, "", "", pattern.getParts().get(1));
+		assertTrue(pattern.hasArguments());
+		assertFalse(MessagePattern.parse("'{0}'").hasArguments());
+	}
+
+	@Test
+	public void keepsSelectionStylesWhole() {
+		List<MessagePattern.Part> parts = MessagePattern.parse(
+				"{0,plural,=0{none} one{# file in {1}} other{# files in {1}}} and {2,select,a{x} other{y}}")
+				.getParts();
+
+		assertEquals(3, parts.size());
+		assertArgument(0, "plural", "=0{none} one{# file in {1}} other{# files in {1}}", parts.get(0));
+		assertLiteral(" and ", parts.get(1));
+		assertArgument(2, "select", "a{x} other{y}", parts.get(2));
+	}
+
+	@Test
+	public void normalizesFormatTypes() {
+		MessagePattern.Part part = MessagePattern.parse("{3, NUMBER , Integer }").getParts().get(0);
+
+		assertArgument(3, "number", " Integer ", part);
+		assertEquals("integer", part.getStyleKeyword());
+	}
+
+	@Test
+	public void rendersPartsBackIntoPatterns() {
+		String text = "It's {x}";
+		List<MessagePattern.Part> parts = MessagePattern.parse(MessagePattern.quote(text)).getParts();
+
+		assertEquals(1, parts.size());
+		assertLiteral(text, parts.get(0));
+		assertEquals("{1,number,integer}",
+				MessagePattern.parse("{1,number,integer}").getParts().get(0).toPattern());
+	}
+
+	@Test
+	public void rejectsInvalidPatterns() {
+		assertInvalid("{0");
+		assertInvalid("{name}");
+		assertInvalid("{-1}");
+		assertInvalid("{ 0 }");
+		assertInvalid("{0,plural,one{# file}");
+	}
+
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hypothesis.resource.context.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hypothesis.resource.util.DefaultPropertiesPersister;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the concurrent loading and refreshing of bundle files in
+ * {@link ReloadableResourceBundleMessageSource}.
+ */
+public class ReloadableResourceBundleMessageSourceTests {
+
+	private static final Locale POLISH = new Locale("pl");
+
+	private File directory;
+
+	private String basename;
+
+	private final CountingPropertiesPersister persister = new CountingPropertiesPersister();
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+	@Before
+	public void setUp() throws IOException {
+		this.directory = Files.createTempDirectory("messages").toFile();
+		this.basename = new File(this.directory, "messages").toURI().toString();
+		write("messages", "greeting=Hello\nfarewell=Bye\n"
+				+ "files={0,plural,=0{no files} one{# file} other{# files}}\n"
+				+ "owner={0,select,female{her} male{his} other{their}} files\n");
+		write("messages_de", "greeting=Hallo\n");
+		write("messages_fr", "greeting=Bonjour\n");
+		write("messages_pl", "files={0,plural,one{# plik} few{# pliki} many{# plików} other{# pliku}}\n");
+	}
+
+	@After
+	public void tearDown() {
+		this.executor.shutdownNow();
+		File[] files = this.directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		this.directory.delete();
+	}
+
+	private void write(String name, String content) throws IOException {
+		File file = new File(this.directory, name + ".properties");
+		long lastModified = file.lastModified();
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		// Make the change visible to timestamp checks at any resolution.
+		file.setLastModified(Math.max(System.currentTimeMillis(), lastModified + 2000));
+	}
+
+	private ReloadableResourceBundleMessageSource createMessageSource() {
+		ReloadableResourceBundleMessageSource messageSource = new ReloadableResourceBundleMessageSource();
+		messageSource.setBasename(this.basename);
+		messageSource.setDefaultEncoding("UTF-8");
+		messageSource.setFallbackToSystemLocale(false);
+		messageSource.setCacheSeconds(60);
+		messageSource.setPropertiesPersister(this.persister);
+		return messageSource;
+	}
+
+	@Test
+	public void loadsBundleFilesOnceForConcurrentLookups() throws Exception {
+		ReloadableResourceBundleMessageSource messageSource = createMessageSource();
+		this.persister.delayMillis = 100;
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<String>> results = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			results.add(this.executor.submit(() -> {
+				start.await();
+				return messageSource.getMessage("greeting", null, Locale.GERMAN);
+			}));
+		}
+		start.countDown();
+
+		for (Future<String> result : results) {
+			assertEquals("Hallo", result.get(10, TimeUnit.SECONDS));
+		}
+		// messages_de and messages
+		assertEquals(2, this.persister.loadCount.get());
+	}
+
+	@Test
+	public void reloadsSingleFileKeepingOthers() throws IOException {
+		ReloadableResourceBundleMessageSource messageSource = createMessageSource();
+		assertEquals("Hallo", messageSource.getMessage("greeting", null, Locale.GERMAN));
+		assertEquals("Bonjour", messageSource.getMessage("greeting", null, Locale.FRENCH));
+		int loadCount = this.persister.loadCount.get();
+
+		write("messages_de", "greeting=Guten Tag\n");
+		messageSource.clearCacheForFilename(this.basename + "_de");
+
+		assertEquals("Guten Tag", messageSource.getMessage("greeting", null, Locale.GERMAN));
+		assertEquals("Bonjour", messageSource.getMessage("greeting", null, Locale.FRENCH));
+		assertEquals("Bye", messageSource.getMessage("farewell", null, Locale.FRENCH));
+		assertEquals(loadCount + 1, this.persister.loadCount.get());
+	}
+
+	@Test
+	public void findsCodesMovedBetweenFilesAfterReload() throws IOException {
+		ReloadableResourceBundleMessageSource messageSource = createMessageSource();
+		assertEquals("Bye", messageSource.getMessage("farewell", null, Locale.GERMAN));
+
+		write("messages_de", "greeting=Hallo\nfarewell=Tschüss\n");
+		messageSource.clearCacheForFilename(this.basename + "_de");
+
+		assertEquals("Tschüss", messageSource.getMessage("farewell", null, Locale.GERMAN));
+	}
+
+	@Test
+	public void servesPreviousSnapshotWhileRebuilding() throws Exception {
+		ReloadableResourceBundleMessageSource messageSource = createMessageSource();
+		messageSource.setAtomicRefresh(true);
+		assertEquals("Hallo", messageSource.getMessage("greeting", null, Locale.GERMAN));
+		assertEquals("Bye", messageSource.getMessage("farewell", null, Locale.GERMAN));
+
+		write("messages_de", "greeting=Guten Tag\n");
+		write("messages", "greeting=Hi\nfarewell=See you\n");
+		CountDownLatch release = new CountDownLatch(1);
+		this.persister.gate = release;
+		Future<?> rebuild = this.executor.submit(messageSource::clearCache);
+		assertTrue(this.persister.blocked.await(10, TimeUnit.SECONDS));
+
+		// Rebuilding, with the first changed file being parsed
+		assertEquals("Hallo", messageSource.getMessage("greeting", null, Locale.GERMAN));
+		assertEquals("Bye", messageSource.getMessage("farewell", null, Locale.GERMAN));
+
+		release.countDown();
+		rebuild.get(10, TimeUnit.SECONDS);
+		assertEquals("Guten Tag", messageSource.getMessage("greeting", null, Locale.GERMAN));
+		assertEquals("See you", messageSource.getMessage("farewell", null, Locale.GERMAN));
+	}
+
+	@Test
+	public void formatsPluralAndSelectMessages() {
+		ReloadableResourceBundleMessageSource messageSource = createMessageSource();
+
+		assertEquals("no files", messageSource.getMessage("files", new Object[] { 0 }, Locale.ENGLISH));
+		assertEquals("1 file", messageSource.getMessage("files", new Object[] { 1 }, Locale.ENGLISH));
+		assertEquals("1,234 files", messageSource.getMessage("files", new Object[] { 1234 }, Locale.ENGLISH));
+		assertEquals("22 pliki", messageSource.getMessage("files", new Object[] { 22 }, POLISH));
+		assertEquals("25 plików", messageSource.getMessage("files", new Object[] { 25 }, POLISH));
+		assertEquals("her files", messageSource.getMessage("owner", new Object[] { "female" }, Locale.ENGLISH));
+		assertEquals("their files", messageSource.getMessage("owner", new Object[] { "n/a" }, Locale.ENGLISH));
+	}
+
+	/**
+	 * Look up a message after the interval between eviction checks, and wait
+	 * for the check triggered by it in the background.
+	 */
+	private static void checkEviction(ReloadableResourceBundleMessageSource messageSource)
+			throws InterruptedException {
+		Thread.sleep(1100);
+		messageSource.getMessage("greeting", null, Locale.ENGLISH);
+		Thread.sleep(300);
+	}
+
+	@Test
+	public void trimsToLowWaterMarkInBackground() throws Exception {
+		ReloadableResourceBundleMessageSource messageSource = createMessageSource();
+		assertEquals("Hello", messageSource.getMessage("greeting", null, Locale.ENGLISH));
+		long baseUsage = messageSource.getEstimatedMemoryUsage();
+		for (int i = 0; i < 50; i++) {
+			messageSource.getMessage("files", new Object[] { i }, Locale.ENGLISH);
+		}
+		long budget = baseUsage + (messageSource.getEstimatedMemoryUsage() - baseUsage) / 2;
+		messageSource.setMemoryBudgetBytes(budget);
+
+		checkEviction(messageSource);
+		assertEquals(1, messageSource.getMemoryBudgetTrimCount());
+		assertTrue(messageSource.getEstimatedMemoryUsage() <= budget - budget / 10);
+		messageSource.destroy();
+	}
+
+	@Test
+	public void evictsDefaultMessageFormats() throws Exception {
+		ReloadableResourceBundleMessageSource messageSource = createMessageSource();
+		assertEquals("Hello", messageSource.getMessage("greeting", null, Locale.ENGLISH));
+		long baseUsage = messageSource.getEstimatedMemoryUsage();
+		for (int i = 0; i < 100; i++) {
+			messageSource.getMessage("unknown", new Object[] { i }, "Default " + i + ": {0}", Locale.ENGLISH);
+		}
+		long defaultsWeight = messageSource.getDefaultMessageFormatsWeight();
+		messageSource.setMemoryBudgetBytes(baseUsage + defaultsWeight / 2);
+
+		checkEviction(messageSource);
+		assertEquals(1, messageSource.getMemoryBudgetTrimCount());
+		assertTrue(messageSource.getDefaultMessageFormatsWeight() < defaultsWeight / 2);
+		assertEquals("Default 3: 7",
+				messageSource.getMessage("unknown", new Object[] { 7 }, "Default 3: {0}", Locale.ENGLISH));
+		messageSource.destroy();
+	}
+
+	@Test
+	public void keepsEntriesWhenBudgetIsUnreachable() throws Exception {
+		ReloadableResourceBundleMessageSource messageSource = createMessageSource();
+		assertEquals("Hello", messageSource.getMessage("greeting", null, Locale.ENGLISH));
+		messageSource.setMemoryBudgetBytes(messageSource.getEstimatedMemoryUsage() / 4);
+		for (int i = 0; i < 50; i++) {
+			messageSource.getMessage("files", new Object[] { i }, Locale.ENGLISH);
+		}
+		long usage = messageSource.getEstimatedMemoryUsage();
+
+		checkEviction(messageSource);
+		checkEviction(messageSource);
+		assertEquals(1, messageSource.getMemoryBudgetTrimCount());
+		assertEquals(usage, messageSource.getEstimatedMemoryUsage());
+		messageSource.destroy();
+	}
+
+	/**
+	 * PropertiesPersister counting the loaded files, optionally slowing down
+	 * or blocking each load.
+	 */
+	private static class CountingPropertiesPersister extends DefaultPropertiesPersister {
+
+		private final AtomicInteger loadCount = new AtomicInteger();
+
+		private final CountDownLatch blocked = new CountDownLatch(1);
+
+		private volatile long delayMillis;
+
+		private volatile CountDownLatch gate;
+
+		@Override
+		public void load(Properties props, InputStream is) throws IOException {
+			loaded();
+			super.load(props, is);
+		}
+
+		@Override
+		public void load(Properties props, Reader reader) throws IOException {
+			loaded();
+			super.load(props, reader);
+		}
+
+		private void loaded() throws IOException {
+			this.loadCount.incrementAndGet();
+			try {
+				if (this.delayMillis > 0) {
+					Thread.sleep(this.delayMillis);
+				}
+				CountDownLatch gate = this.gate;
+				if (gate != null) {
+					this.blocked.countDown();
+					gate.await();
+				}
+			} catch (InterruptedException ex) {
+				throw new IOException(ex);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hypothesis.resource.context.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.text.MessageFormat;
+import java.util.Locale;
+
+import org.junit.Test;
+
+/**
+ * Tests for the "plural" and "select" argument formats, compiled through
+ * {@link SharedFormats#createMessageFormat}.
+ */
+public class SelectionFormatTests {
+
+	private static final String FILES = "{0,plural,=0{no files} one{# file} other{# files}}";
+
+	private static String format(String pattern, Locale locale, Object... args) {
+		return SharedFormats.createMessageFormat(pattern, locale, false).format(args);
+	}
+
+	private static void assertInvalid(String pattern) {
+		try {
+			SharedFormats.createMessageFormat(pattern, Locale.ENGLISH, false);
+			fail("Should have rejected: " + pattern);
+		} catch (IllegalArgumentException ex) {
+			// expected
+		}
+	}
+
+	@Test
+	public void selectsEnglishPluralCategories() {
+		assertEquals("1 file", format(FILES, Locale.ENGLISH, 1));
+		assertEquals("2 files", format(FILES, Locale.ENGLISH, 2));
+		assertEquals("1,000 files", format(FILES, Locale.ENGLISH, 1000));
+		assertEquals("1.5 files", format(FILES, Locale.ENGLISH, 1.5));
+	}
+
+	@Test
+	public void prefersExactValues() {
+		assertEquals("no files", format(FILES, Locale.ENGLISH, 0));
+		assertEquals("no files", format(FILES, Locale.ENGLISH, 0.0));
+	}
+
+	@Test
+	public void selectsPolishPluralCategories() {
+		String pattern = "{0,plural,one{# plik} few{# pliki} many{# plików} other{# pliku}}";
+
+		assertEquals("1 plik", format(pattern, new Locale("pl"), 1));
+		assertEquals("3 pliki", format(pattern, new Locale("pl"), 3));
+		assertEquals("5 plików", format(pattern, new Locale("pl"), 5));
+		assertEquals("12 plików", format(pattern, new Locale("pl"), 12));
+		assertEquals("22 pliki", format(pattern, new Locale("pl"), 22));
+		assertEquals("1,5 pliku", format(pattern, new Locale("pl"), 1.5));
+	}
+
+	@Test
+	public void treatsFrenchZeroAsOne() {
+		String pattern = "{0,plural,one{# fichier} other{# fichiers}}";
+
+		assertEquals("0 fichier", format(pattern, Locale.FRENCH, 0));
+		assertEquals("2 fichiers", format(pattern, Locale.FRENCH, 2));
+	}
+
+	@Test
+	public void formatsNestedPlaceholders() {
+		String pattern = "{0,plural,one{# file in {1}} other{# files in {1}}}, ''{1}''";
+
+		assertEquals("1 file in docs, 'docs'", format(pattern, Locale.ENGLISH, 1, "docs"));
+		assertEquals("4 files in docs, 'docs'", format(pattern, Locale.ENGLISH, 4, "docs"));
+	}
+
+	@Test
+	public void unquotesSelectorMessages() {
+		String pattern = "{0,plural,one{it''s '#'#} other{# in '{'braces'}'}}";
+
+		assertEquals("it's #1", format(pattern, Locale.ENGLISH, 1));
+		assertEquals("2 in {braces}", format(pattern, Locale.ENGLISH, 2));
+	}
+
+	@Test
+	public void selectsByStringValue() {
+		String pattern = "{0} lost {1,select,female{her} male{his} other{their}} keys";
+
+		assertEquals("Ann lost her keys", format(pattern, Locale.ENGLISH, "Ann", "female"));
+		assertEquals("Bob lost his keys", format(pattern, Locale.ENGLISH, "Bob", "male"));
+		assertEquals("Kim lost their keys", format(pattern, Locale.ENGLISH, "Kim", "unknown"));
+	}
+
+	@Test
+	public void sharesFormatsOnlyWhenRequested() {
+		String pattern = "{0,plural,one{# file} other{# files}} {1,select,a{x} other{y}}";
+		MessageFormat shared = SharedFormats.createMessageFormat(pattern, Locale.ENGLISH, true);
+		MessageFormat sharedAgain = SharedFormats.createMessageFormat(pattern, Locale.ENGLISH, true);
+		MessageFormat sharedGerman = SharedFormats.createMessageFormat(pattern, Locale.GERMAN, true);
+		MessageFormat unshared = SharedFormats.createMessageFormat(pattern, Locale.ENGLISH, false);
+
+		assertSame(shared.getFormats()[0], sharedAgain.getFormats()[0]);
+		assertSame(shared.getFormats()[1], sharedAgain.getFormats()[1]);
+		assertNotSame(shared.getFormats()[1], sharedGerman.getFormats()[1]);
+		assertNotSame(shared.getFormats()[0], unshared.getFormats()[0]);
+		assertEquals(shared.format(new Object[] { 2, "a" }), unshared.format(new Object[] { 2, "a" }));
+	}
+
+	@Test
+	public void rejectsInvalidStyles() {
+		assertInvalid("{0,plural,one{# file}}");
+		assertInvalid("{0,plural,several{# files} other{# files}}");
+		assertInvalid("{0,plural,=x{none} other{# files}}");
+		assertInvalid("{0,select,a{x} a{y} other{z}}");
+		assertInvalid("{0,select,{x} other{z}}");
+	}
+
+}
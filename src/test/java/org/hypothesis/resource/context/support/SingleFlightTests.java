@@ -0,0 +1,135 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hypothesis.resource.context.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for {@link SingleFlight}.
+ */
+public class SingleFlightTests {
+
+	private static final int THREADS = 8;
+
+	private final LongAdder collapsedLoads = new LongAdder();
+
+	private final SingleFlight<String, String> loads = new SingleFlight<>(this.collapsedLoads);
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+	@After
+	public void tearDown() {
+		this.executor.shutdownNow();
+	}
+
+	private void awaitCollapsedLoads(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (this.collapsedLoads.sum() < count) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("Only " + this.collapsedLoads.sum() + " of " + count + " loads collapsed");
+			}
+			Thread.sleep(5);
+		}
+	}
+
+	@Test
+	public void collapsesConcurrentLoads() throws Exception {
+		AtomicInteger loaderCalls = new AtomicInteger();
+		CountDownLatch release = new CountDownLatch(1);
+		List<Future<String>> results = new ArrayList<>();
+		for (int i = 0; i < THREADS; i++) {
+			results.add(this.executor.submit(() -> this.loads.load("key", () -> {
+				loaderCalls.incrementAndGet();
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					throw new IllegalStateException(ex);
+				}
+				return "value";
+			})));
+		}
+		awaitCollapsedLoads(THREADS - 1);
+		release.countDown();
+
+		for (Future<String> result : results) {
+			assertEquals("value", result.get(10, TimeUnit.SECONDS));
+		}
+		assertEquals(1, loaderCalls.get());
+		assertEquals(THREADS - 1, this.collapsedLoads.sum());
+	}
+
+	@Test
+	public void loadsDistinctKeysIndependently() {
+		assertEquals("a", this.loads.load("a", () -> "a"));
+		assertEquals("b", this.loads.load("b", () -> "b"));
+		assertEquals(0, this.collapsedLoads.sum());
+	}
+
+	@Test
+	public void loadsAgainAfterCompletion() {
+		AtomicInteger loaderCalls = new AtomicInteger();
+		this.loads.load("key", () -> "v" + loaderCalls.incrementAndGet());
+
+		assertEquals("v2", this.loads.load("key", () -> "v" + loaderCalls.incrementAndGet()));
+	}
+
+	@Test
+	public void propagatesFailureToAllCallers() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		List<Future<String>> results = new ArrayList<>();
+		for (int i = 0; i < 2; i++) {
+			results.add(this.executor.submit(() -> this.loads.load("key", () -> {
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					throw new IllegalStateException(ex);
+				}
+				throw new IllegalArgumentException("broken");
+			})));
+		}
+		awaitCollapsedLoads(1);
+		release.countDown();
+
+		for (Future<String> result : results) {
+			try {
+				result.get(10, TimeUnit.SECONDS);
+				fail("Should have thrown IllegalArgumentException");
+			} catch (ExecutionException ex) {
+				assertTrue(ex.getCause() instanceof IllegalArgumentException);
+			}
+		}
+		// Failures are not cached.
+		assertEquals("fixed", this.loads.load("key", () -> "fixed"));
+	}
+
+}
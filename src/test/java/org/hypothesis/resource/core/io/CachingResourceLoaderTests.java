@@ -0,0 +1,251 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hypothesis.resource.core.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests for {@link CachingResourceLoader} against an in-process HTTP server.
+ */
+public class CachingResourceLoaderTests {
+
+	private static final String LAST_MODIFIED = "Mon, 19 Oct 2026 12:00:00 GMT";
+
+	private HttpServer server;
+
+	private String location;
+
+	private File cacheDirectory;
+
+	private final AtomicInteger requestCount = new AtomicInteger();
+
+	private volatile int status = 200;
+
+	private volatile String content = "greeting=Hello";
+
+	private volatile String etag = "\"v1\"";
+
+	private volatile String ifNoneMatch;
+
+	private volatile String ifModifiedSince;
+
+	@Before
+	public void setUp() throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		this.server.createContext("/messages.properties", this::handle);
+		this.server.start();
+		this.location = "http://127.0.0.1:" + this.server.getAddress().getPort() + "/messages.properties";
+		this.cacheDirectory = Files.createTempDirectory("resource-cache").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		this.server.stop(0);
+		File[] files = this.cacheDirectory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		this.cacheDirectory.delete();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		this.requestCount.incrementAndGet();
+		this.ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+		this.ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+		boolean notModified = (this.etag != null ? this.etag.equals(this.ifNoneMatch)
+				: LAST_MODIFIED.equals(this.ifModifiedSince));
+		if (this.status != 200) {
+			exchange.sendResponseHeaders(this.status, -1);
+		} else if (notModified) {
+			exchange.sendResponseHeaders(304, -1);
+		} else {
+			if (this.etag != null) {
+				exchange.getResponseHeaders().set("ETag", this.etag);
+			}
+			exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+			byte[] body = this.content.getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(body);
+			}
+		}
+		exchange.close();
+	}
+
+	private CachingResourceLoader createLoader(int revalidateSeconds) {
+		CachingResourceLoader loader = new CachingResourceLoader();
+		loader.setCacheDirectory(this.cacheDirectory);
+		loader.setRevalidateSeconds(revalidateSeconds);
+		// Revalidate synchronously, for deterministic assertions.
+		loader.setExecutor(Runnable::run);
+		return loader;
+	}
+
+	private static String read(Resource resource) throws IOException {
+		try (InputStream is = resource.getInputStream()) {
+			byte[] buffer = new byte[1024];
+			StringBuilder sb = new StringBuilder();
+			int read;
+			while ((read = is.read(buffer)) != -1) {
+				sb.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+			}
+			return sb.toString();
+		}
+	}
+
+	private File getDataFile() {
+		File[] files = this.cacheDirectory.listFiles((dir, name) -> name.endsWith(".data"));
+		return (files != null && files.length == 1 ? files[0] : null);
+	}
+
+	@Test
+	public void fetchesOnFirstAccess() throws IOException {
+		Resource resource = createLoader(-1).getResource(this.location);
+
+		assertEquals("greeting=Hello", read(resource));
+		assertTrue(resource.exists());
+		assertEquals(1, this.requestCount.get());
+		assertNull(this.ifNoneMatch);
+		assertTrue(getDataFile() != null);
+	}
+
+	@Test
+	public void revalidatesWithETag() throws IOException {
+		Resource resource = createLoader(0).getResource(this.location);
+		assertEquals("greeting=Hello", read(resource));
+		long lastModified = resource.lastModified();
+		int requestCount = this.requestCount.get();
+
+		assertEquals("greeting=Hello", read(resource));
+		assertEquals(requestCount + 1, this.requestCount.get());
+		assertEquals("\"v1\"", this.ifNoneMatch);
+		assertEquals(lastModified, resource.lastModified());
+	}
+
+	@Test
+	public void revalidatesWithLastModified() throws IOException {
+		this.etag = null;
+		Resource resource = createLoader(0).getResource(this.location);
+		assertEquals("greeting=Hello", read(resource));
+		long lastModified = resource.lastModified();
+		int requestCount = this.requestCount.get();
+
+		assertEquals("greeting=Hello", read(resource));
+		assertEquals(requestCount + 1, this.requestCount.get());
+		assertNull(this.ifNoneMatch);
+		assertEquals(LAST_MODIFIED, this.ifModifiedSince);
+		assertEquals(lastModified, resource.lastModified());
+	}
+
+	@Test
+	public void replacesChangedContent() throws IOException {
+		Resource resource = createLoader(0).getResource(this.location);
+		assertEquals("greeting=Hello", read(resource));
+		long lastModified = resource.lastModified();
+
+		this.content = "greeting=Hi";
+		this.etag = "\"v2\"";
+		// Revalidated in the course of this access, served on the next one.
+		resource.exists();
+
+		assertEquals("greeting=Hi", read(resource));
+		assertTrue(resource.lastModified() > lastModified);
+	}
+
+	@Test
+	public void servesFromDiskWhileServerIsDown() throws IOException {
+		assertEquals("greeting=Hello", read(createLoader(-1).getResource(this.location)));
+		this.server.stop(0);
+
+		// A new loader, as after a restart of the VM.
+		Resource resource = createLoader(0).getResource(this.location);
+
+		assertTrue(resource.exists());
+		assertEquals("greeting=Hello", read(resource));
+	}
+
+	@Test
+	public void removesCopyOnNotFound() throws IOException {
+		assertRemovesCopyOn(404);
+	}
+
+	@Test
+	public void removesCopyOnGone() throws IOException {
+		assertRemovesCopyOn(410);
+	}
+
+	private void assertRemovesCopyOn(int status) throws IOException {
+		Resource resource = createLoader(0).getResource(this.location);
+		assertEquals("greeting=Hello", read(resource));
+
+		this.status = status;
+		// Revalidated in the course of this access, removed from the next one.
+		resource.exists();
+
+		assertNull(getDataFile());
+		assertFalse(resource.exists());
+	}
+
+	@Test
+	public void backsOffAfterFailedFirstFetch() throws IOException {
+		this.status = 500;
+		Resource resource = createLoader(0).getResource(this.location);
+
+		assertFalse(resource.exists());
+		assertFalse(resource.exists());
+		assertFalse(resource.exists());
+
+		assertEquals(1, this.requestCount.get());
+	}
+
+	@Test
+	public void servesCopyWithoutRevalidationAfterDestroy() throws IOException {
+		CachingResourceLoader loader = new CachingResourceLoader();
+		loader.setCacheDirectory(this.cacheDirectory);
+		loader.setRevalidateSeconds(0);
+		loader.destroy();
+		Resource resource = loader.getResource(this.location);
+		assertEquals("greeting=Hello", read(resource));
+		int requestCount = this.requestCount.get();
+
+		assertTrue(resource.exists());
+		assertEquals("greeting=Hello", read(resource));
+		assertEquals(requestCount, this.requestCount.get());
+	}
+
+}
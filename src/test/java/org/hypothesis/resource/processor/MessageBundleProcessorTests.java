@@ -0,0 +1,219 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hypothesis.resource.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.hypothesis.resource.context.support.ReloadableResourceBundleMessageSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link MessageBundleProcessor}, compiling sample
+ * {@code @MessageBundle} interfaces in-process.
+ */
+public class MessageBundleProcessorTests {
+
+	private Path directory;
+
+	private Path bundleDirectory;
+
+	private Path sourceDirectory;
+
+	private Path classDirectory;
+
+	private final List<String> errors = new ArrayList<>();
+
+	@Before
+	public void setUp() throws IOException {
+		this.directory = Files.createTempDirectory("message-bundle");
+		this.bundleDirectory = Files.createDirectories(this.directory.resolve("bundles"));
+		this.sourceDirectory = Files.createDirectories(this.directory.resolve("src"));
+		this.classDirectory = Files.createDirectories(this.directory.resolve("classes"));
+		write(this.bundleDirectory.resolve("messages.properties"),
+				"greeting=Hello {0}\nfarewell=Bye\nitems={0,plural,one{# item in {1}} other{# items in {1}}}\n");
+		write(this.bundleDirectory.resolve("messages_de.properties"), "greeting=Hallo {0}\n");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try (Stream<Path> paths = Files.walk(this.directory)) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	private static void write(Path path, String content) throws IOException {
+		Files.createDirectories(path.getParent());
+		Files.write(path, content.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private void writeSource(String className, String body) throws IOException {
+		write(this.sourceDirectory.resolve("sample/" + className + ".java"),
+				"package sample;\n\nimport java.util.Locale;\n\n"
+						+ "import org.hypothesis.resource.context.annotation.Message;\n"
+						+ "import org.hypothesis.resource.context.annotation.MessageBundle;\n\n" + body);
+	}
+
+	/**
+	 * Compile the sample sources with the processor, collecting the errors.
+	 *
+	 * @return whether the compilation succeeded
+	 */
+	private boolean compile() throws IOException, URISyntaxException {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+		try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null,
+				StandardCharsets.UTF_8)) {
+			List<File> sources = new ArrayList<>();
+			try (Stream<Path> paths = Files.walk(this.sourceDirectory)) {
+				paths.filter(path -> path.toString().endsWith(".java")).forEach(path -> sources.add(path.toFile()));
+			}
+			String classPath = new File(MessageBundleProcessor.class.getProtectionDomain().getCodeSource()
+					.getLocation().toURI()).getPath();
+			List<String> options = Arrays.asList("-classpath", classPath, "-d",
+					this.classDirectory.toString(), "-processor", MessageBundleProcessor.class.getName(),
+					"-A" + MessageBundleProcessor.BUNDLE_DIRECTORY_OPTION + "=" + this.bundleDirectory);
+			boolean success = compiler.getTask(null, fileManager, diagnostics, options, null,
+					fileManager.getJavaFileObjectsFromFiles(sources)).call();
+			for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+				if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+					this.errors.add(diagnostic.getMessage(Locale.ROOT));
+				}
+			}
+			return success;
+		}
+	}
+
+	private boolean hasError(String text) {
+		for (String error : this.errors) {
+			if (error.contains(text)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Test
+	public void countsArguments() {
+		assertEquals(0, MessageBundleProcessor.countArguments("Hello"));
+		assertEquals(1, MessageBundleProcessor.countArguments("Hello {0}"));
+		assertEquals(3, MessageBundleProcessor.countArguments("{0} and {2,number,integer}"));
+		assertEquals(1, MessageBundleProcessor.countArguments("It''s {0}"));
+		assertEquals(0, MessageBundleProcessor.countArguments("'{0}' is quoted"));
+		assertEquals(2, MessageBundleProcessor.countArguments("{0,plural,one{# item in {1}} other{# items}}"));
+		assertEquals(1, MessageBundleProcessor.countArguments("{0,select,male{he} female{she} other{they}}"));
+		assertEquals(-1, MessageBundleProcessor.countArguments("Hello {name}"));
+	}
+
+	@Test
+	public void generatesImplementation() throws Exception {
+		writeSource("Greetings", "@MessageBundle(\"messages\")\npublic interface Greetings {\n\n"
+				+ "\tString greeting(Locale locale, String name);\n\n"
+				+ "\t@Message(\"farewell\")\n\tString bye(Locale locale);\n\n"
+				+ "\tString items(Locale locale, int count, String place);\n\n}\n");
+
+		assertTrue(this.errors.toString(), compile());
+		assertTrue(Files.isRegularFile(this.classDirectory.resolve("sample/GreetingsImpl.class")));
+
+		ReloadableResourceBundleMessageSource messageSource = new ReloadableResourceBundleMessageSource();
+		messageSource.setBasename(this.bundleDirectory.resolve("messages").toUri().toString());
+		messageSource.setFallbackToSystemLocale(false);
+		try (URLClassLoader classLoader = new URLClassLoader(new URL[] { this.classDirectory.toUri().toURL() },
+				getClass().getClassLoader())) {
+			Class<?> implClass = classLoader.loadClass("sample.GreetingsImpl");
+			Object greetings = implClass.getConstructor(ReloadableResourceBundleMessageSource.class)
+					.newInstance(messageSource);
+			Method greeting = implClass.getMethod("greeting", Locale.class, String.class);
+			Method bye = implClass.getMethod("bye", Locale.class);
+			Method items = implClass.getMethod("items", Locale.class, int.class, String.class);
+
+			assertEquals("Hello World", greeting.invoke(greetings, Locale.ENGLISH, "World"));
+			assertEquals("Hallo Welt", greeting.invoke(greetings, Locale.GERMAN, "Welt"));
+			assertEquals("Bye", bye.invoke(greetings, Locale.ENGLISH));
+			assertEquals("1 item in Rome", items.invoke(greetings, Locale.ENGLISH, 1, "Rome"));
+			assertEquals("3 items in Rome", items.invoke(greetings, Locale.ENGLISH, 3, "Rome"));
+		}
+	}
+
+	@Test
+	public void reportsMissingKey() throws Exception {
+		writeSource("Missing", "@MessageBundle(\"messages\")\npublic interface Missing {\n\n"
+				+ "\tString greeting(String name);\n\n\tString unknown();\n\n}\n");
+
+		assertFalse(compile());
+		assertTrue(this.errors.toString(), hasError("Message code 'unknown' is not defined in bundle 'messages'"));
+		assertFalse(Files.exists(this.classDirectory.resolve("sample/MissingImpl.class")));
+	}
+
+	@Test
+	public void reportsArgumentCountMismatch() throws Exception {
+		write(this.bundleDirectory.resolve("messages_fr.properties"), "greeting=Bonjour {0} et {1}\n");
+		writeSource("Mismatch", "@MessageBundle(\"messages\")\npublic interface Mismatch {\n\n"
+				+ "\tString greeting(Locale locale, String name);\n\n\tString farewell(String name);\n\n}\n");
+
+		assertFalse(compile());
+		assertTrue(this.errors.toString(),
+				hasError("Message 'greeting' in 'messages_fr' expects 2 argument(s) but the method declares 1"));
+		assertTrue(this.errors.toString(),
+				hasError("Message 'farewell' in 'messages' expects 0 argument(s) but the method declares 1"));
+		assertFalse(hasError("'greeting' in 'messages_de'"));
+	}
+
+	@Test
+	public void reportsMissingBundle() throws Exception {
+		writeSource("NoBundle", "@MessageBundle(\"unknown\")\npublic interface NoBundle {\n\n"
+				+ "\tString greeting();\n\n}\n");
+
+		assertFalse(compile());
+		assertTrue(this.errors.toString(), hasError("Bundle file 'unknown.properties' not found"));
+	}
+
+	@Test
+	public void rejectsClasses() throws Exception {
+		writeSource("NotAnInterface", "@MessageBundle(\"messages\")\npublic abstract class NotAnInterface {\n}\n");
+
+		assertFalse(compile());
+		assertTrue(this.errors.toString(), hasError("@MessageBundle may only be declared on interfaces"));
+	}
+
+}